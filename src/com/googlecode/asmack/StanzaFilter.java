@@ -0,0 +1,251 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import android.os.Parcel;
+import android.os.Parcelable;
+
+/**
+ * A stanza subscription filter. All set criteria have to match, unset
+ * (null) criteria match every stanza.
+ */
+public class StanzaFilter implements Parcelable {
+
+    /**
+     * The root element name (e.g. "message"), or null.
+     */
+    private String name;
+
+    /**
+     * The root element namespace (e.g. "jabber:client"), or null.
+     */
+    private String namespace;
+
+    /**
+     * The namespace of a direct child element (e.g. "urn:xmpp:ping"), or
+     * null.
+     */
+    private String childNamespace;
+
+    /**
+     * The bare account jid the stanza was received on, or null.
+     */
+    private String account;
+
+    /**
+     * The required root element attributes (name/value pairs).
+     */
+    private ArrayList<Attribute> attributes = new ArrayList<Attribute>(2);
+
+    /**
+     * Create a new filter matching all stanzas.
+     */
+    public StanzaFilter() {
+    }
+
+    /**
+     * Create a new filter for a given root element and child namespace.
+     * @param name The root element name, or null.
+     * @param childNamespace The child element namespace, or null.
+     */
+    public StanzaFilter(String name, String childNamespace) {
+        this.name = name;
+        this.childNamespace = childNamespace;
+    }
+
+    /**
+     * Deserialize a parcel into a new StanzaFilter.
+     * @param source The source parcel.
+     */
+    public StanzaFilter(Parcel source) {
+        name = source.readString();
+        namespace = source.readString();
+        childNamespace = source.readString();
+        account = source.readString();
+        int attributeCount = source.readInt();
+        for (int i = 0; i < attributeCount; i++) {
+            attributes.add(new Attribute(
+                source.readString(),
+                "",
+                source.readString()
+            ));
+        }
+    }
+
+    /**
+     * Retrieve the root element name.
+     * @return The root element name, or null.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Set the root element name.
+     * @param name The root element name, or null for any.
+     */
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Retrieve the root element namespace.
+     * @return The root element namespace, or null.
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Set the root element namespace.
+     * @param namespace The root element namespace, or null for any.
+     */
+    public void setNamespace(String namespace) {
+        this.namespace = namespace;
+    }
+
+    /**
+     * Retrieve the child element namespace.
+     * @return The child element namespace, or null.
+     */
+    public String getChildNamespace() {
+        return childNamespace;
+    }
+
+    /**
+     * Set the namespace of a direct child element.
+     * @param childNamespace The child element namespace, or null for any.
+     */
+    public void setChildNamespace(String childNamespace) {
+        this.childNamespace = childNamespace;
+    }
+
+    /**
+     * Retrieve the account jid.
+     * @return The bare account jid, or null.
+     */
+    public String getAccount() {
+        return account;
+    }
+
+    /**
+     * Set the account the stanza has to be received on.
+     * @param account The bare account jid, or null for any.
+     */
+    public void setAccount(String account) {
+        this.account = account;
+    }
+
+    /**
+     * Require a root element attribute value, e.g. type="chat".
+     * @param name The attribute name.
+     * @param value The attribute value.
+     */
+    public void addAttribute(String name, String value) {
+        attributes.add(new Attribute(name, "", value));
+    }
+
+    /**
+     * Retrieve the required root element attributes.
+     * @return A unmodifiable list of all required attributes.
+     */
+    public List<Attribute> getAttributes() {
+        return Collections.unmodifiableList(attributes);
+    }
+
+    /**
+     * Retrieve the special flags of this parcelable. None.
+     * @return 0. (No special flags)
+     */
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    /**
+     * Persist the filter to a Parcel.
+     * @param dest The target parcel.
+     * @param flags Ignored
+     */
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        dest.writeString(name);
+        dest.writeString(namespace);
+        dest.writeString(childNamespace);
+        dest.writeString(account);
+        dest.writeInt(attributes.size());
+        for (Attribute attribute: attributes) {
+            dest.writeString(attribute.getName());
+            dest.writeString(attribute.getValue());
+        }
+    }
+
+    /**
+     * A Parcelable.Creator for reading StanzaFilter objects. Named CREATOR as
+     * required by the parcelable convention.
+     */
+    public final static Parcelable.Creator<StanzaFilter> CREATOR =
+        new Creator<StanzaFilter>() {
+
+        /**
+         * Create a new StanzaFilter array of the given size.
+         * @param size The size of the returned array.
+         * @return A new StanzaFilter array of length size.
+         */
+        @Override
+        public StanzaFilter[] newArray(int size) {
+            return new StanzaFilter[size];
+        }
+
+        /**
+         * Create a new StanzaFilter with the values of the source parcel.
+         * This method delegates to the StanzaFilter(Parcel) constructor.
+         * @param source The source parcel.
+         */
+        @Override
+        public StanzaFilter createFromParcel(Parcel source) {
+            return new StanzaFilter(source);
+        }
+
+    };
+
+}
@@ -43,6 +43,24 @@ package com.googlecode.asmack;
  */
 public class XmppAccount {
 
+    /**
+     * The keepalive sent on idle connections.
+     */
+    public enum Keepalive {
+        /**
+         * A XEP-0199 ping, answered by the server.
+         */
+        Ping,
+        /**
+         * A single whitespace byte between stanzas, not answered.
+         */
+        Whitespace,
+        /**
+         * A whitespace byte followed by a XEP-0199 ping.
+         */
+        Both
+    }
+
     /**
      * The user jid as username@domain.tld.
      */
@@ -74,6 +92,27 @@ public class XmppAccount {
      */
     private String rosterVersion;
 
+    /**
+     * Boolean representing the optimistic (pipelined) feature negotiation
+     * status.
+     */
+    private boolean pipeliningEnabled;
+
+    /**
+     * Boolean representing the DNS/SRV target racing status.
+     */
+    private boolean targetRacingEnabled;
+
+    /**
+     * The keepalive sent on idle connections.
+     */
+    private Keepalive keepalive = Keepalive.Ping;
+
+    /**
+     * Boolean representing the warm standby connection status.
+     */
+    private boolean standbyEnabled;
+
     /**
      * Retrieve the account user jid.
      * @return A jid matching username@domain.tld.
@@ -170,4 +209,90 @@ public class XmppAccount {
         this.rosterVersion = rosterVersion;
     }
 
+    /**
+     * Retrieve the pipelined feature negotiation state.
+     * @return True if feature negotiation may be pipelined based on cached
+     *         server features.
+     */
+    public boolean isPipeliningEnabled() {
+        return pipeliningEnabled;
+    }
+
+    /**
+     * Set the pipelined feature negotiation state (enabled/disabled).
+     * @param pipeliningEnabled The new pipelining state.
+     */
+    public void setPipeliningEnabled(boolean pipeliningEnabled) {
+        this.pipeliningEnabled = pipeliningEnabled;
+    }
+
+    /**
+     * Retrieve the DNS/SRV target racing state.
+     * @return True if all DNS/SRV targets may be connected in parallel
+     *         instead of one after another.
+     */
+    public boolean isTargetRacingEnabled() {
+        return targetRacingEnabled;
+    }
+
+    /**
+     * Set the DNS/SRV target racing state (enabled/disabled).
+     * @param targetRacingEnabled The new target racing state.
+     */
+    public void setTargetRacingEnabled(boolean targetRacingEnabled) {
+        this.targetRacingEnabled = targetRacingEnabled;
+    }
+
+    /**
+     * Retrieve the keepalive sent on idle connections.
+     * @return The keepalive type.
+     */
+    public Keepalive getKeepalive() {
+        return keepalive;
+    }
+
+    /**
+     * Set the keepalive sent on idle connections.
+     * @param keepalive The new keepalive type.
+     */
+    public void setKeepalive(Keepalive keepalive) {
+        this.keepalive = keepalive;
+    }
+
+    /**
+     * Retrieve the warm standby state.
+     * @return True if a second, bound connection should be kept ready for
+     *         failover.
+     */
+    public boolean isStandbyEnabled() {
+        return standbyEnabled;
+    }
+
+    /**
+     * Set the warm standby state (enabled/disabled).
+     * @param standbyEnabled The new standby state.
+     */
+    public void setStandbyEnabled(boolean standbyEnabled) {
+        this.standbyEnabled = standbyEnabled;
+    }
+
+    /**
+     * Create a copy of this account, e.g. to login a second resource.
+     * @return A new account with the same settings.
+     */
+    public XmppAccount copy() {
+        XmppAccount copy = new XmppAccount();
+        copy.jid = jid;
+        copy.password = password;
+        copy.connection = connection;
+        copy.resource = resource;
+        copy.rosterSyncEnabled = rosterSyncEnabled;
+        copy.rosterVersion = rosterVersion;
+        copy.pipeliningEnabled = pipeliningEnabled;
+        copy.targetRacingEnabled = targetRacingEnabled;
+        copy.keepalive = keepalive;
+        copy.standbyEnabled = standbyEnabled;
+        return copy;
+    }
+
 }
@@ -37,6 +37,8 @@
 
 package com.googlecode.asmack.connection;
 
+import java.util.concurrent.ScheduledFuture;
+
 import android.util.Log;
 
 import com.googlecode.asmack.Stanza;
@@ -118,9 +120,14 @@ public class AccountConnection {
     private int failCount = 0;
 
     /**
-     * The current login thread.
+     * The current login attempt.
+     */
+    private LoginTask loginTask;
+
+    /**
+     * The duration of the last successful login in milliseconds.
      */
-    private LoginThread loginThread;
+    private long lastLoginDuration = -1;
 
     /**
      * The current connection if available.
@@ -132,11 +139,66 @@ public class AccountConnection {
      */
     private long lastFailTime;
 
+    /**
+     * The randomized reconnect delay after the last failure.
+     */
+    private long reconnectDelay;
+
     /**
      * The last time this connection established.
      */
     private long lastConnectedTime;
 
+    /**
+     * The network of the pending keepalive.
+     */
+    private String keepaliveNetwork;
+
+    /**
+     * The time the pending keepalive was sent, 0 if there is none.
+     */
+    private long keepaliveSent;
+
+    /**
+     * The idle time of the connection before the pending keepalive.
+     */
+    private long keepaliveIdle;
+
+    /**
+     * The round trip tracker of the current connection.
+     */
+    private final PingTracker pingTracker = new PingTracker();
+
+    /**
+     * The warm standby connection, if available.
+     */
+    private Connection standby;
+
+    /**
+     * The running standby login attempt.
+     */
+    private LoginTask standbyTask;
+
+    /**
+     * Number of times a standby connection replaced a failed connection.
+     */
+    private int promotionCount;
+
+    /**
+     * True while the connection is probed after a network change.
+     */
+    private boolean probing;
+
+    /**
+     * The pending deadline check, or null.
+     */
+    private ScheduledFuture<?> deadline;
+
+    /**
+     * The time of the last whitespace keepalive.
+     */
+    private long lastWhitespaceTime;
+
     /**
      * The target stanza sink.
      */
@@ -187,9 +249,22 @@ public class AccountConnection {
         return failCount;
     }
 
-    public void resetStats() {
+    /**
+     * Reset the failure statistics and the reconnect backoff.
+     */
+    public synchronized void resetStats() {
         lastFailTime = 0;
         failCount = 0;
+        reconnectDelay = 0;
+    }
+
+    /**
+     * Retrieve the reconnect delay that was picked on the last failure
+     * (see {@link ReconnectScheduler#getBackoff(int)}).
+     * @return The reconnect delay in milliseconds.
+     */
+    public synchronized long getReconnectDelay() {
+        return reconnectDelay;
     }
 
     /**
@@ -218,14 +293,16 @@ public class AccountConnection {
             return;
         }
         Log.d(TAG, "State transition from " + currentState + " -> " + state + " on " + account.getJid());
+        clearKeepalive();
+        probing = false;
         switch(state) {
         case Start:
             listener.onConnectionStart(this);
             break;
         case Connecting:
             disconnect();
-            loginThread = new LoginThread(this);
-            loginThread.start();
+            loginTask = new LoginTask(this);
+            loginTask.start();
             currentState = state;
             listener.onConnectionConnecting(this);
             break;
@@ -236,9 +313,13 @@ public class AccountConnection {
             failCount = 0;
             currentState = state;
             lastConnectedTime = System.currentTimeMillis();
+            pingTracker.reset();
             listener.onConnectionConnected(this);
             break;
         case Failed:
+            if (currentState == State.Connected && promoteStandby()) {
+                return;
+            }
             disconnect();
             lastFailTime = System.currentTimeMillis();
             if (state != State.Connected ||
@@ -246,6 +327,8 @@ public class AccountConnection {
                 // regard quick flips as failes
                 failCount++;
             }
+            reconnectDelay =
+                ReconnectScheduler.getInstance().getBackoff(failCount);
             currentState = state;
             listener.onConnectionFailed(this);
             break;
@@ -256,10 +339,11 @@ public class AccountConnection {
      * Safely cancel the current connection attempt and close any connection.
      */
     public synchronized void disconnect() {
-        if (loginThread != null) {
-            loginThread.interrupt();
-            loginThread = null;
+        if (loginTask != null) {
+            loginTask.cancel();
+            loginTask = null;
         }
+        dropStandby();
         Connection connection = getConnection();
         if (connection != null) {
             try {
@@ -273,76 +357,359 @@ public class AccountConnection {
     /**
      * Terminate a connection attempt as failed, happily ignoring the attempt
      * if the connection isn't attempting to connect.
-     * @param loginThread The original login thread.
+     * @param loginTask The original login attempt.
      */
-    public synchronized void connectionFail(LoginThread loginThread) {
+    public synchronized void connectionFail(LoginTask loginTask) {
         // Hint: If you think that you can't get a failed attempt while being
         //       out of the Connection state: please think again.
         //       Think about timing.
         //       And finally: think again :-)
-        if (loginThread != this.loginThread ||
-            currentState != State.Connecting) {
+        if (loginTask != this.loginTask) {
+            return;
+        }
+        if (currentState == State.Connected) {
+            // the migration failed, the old connection didn't answer the
+            // probe either
+            Log.d(TAG, "Migration failed on " + account.getJid());
+            this.loginTask = null;
+            transition(State.Failed);
+            return;
+        }
+        if (currentState != State.Connecting) {
             return;
         }
         transition(State.Failed);
     }
 
     /**
-     * Mark the connection as connected, unless the connection is connected.
-     * @param loginThread The initial login thread.
+     * Send the initial presence on a new connection, closing the
+     * connection if it fails.
      * @param connection The new connection.
+     * @return True on success.
      */
-    public synchronized void connectionSuccess(
-        LoginThread loginThread,
-        Connection connection
-    ) {
-        Connection oldConnection = null;
-        if (currentState == State.Connected) {
-            Log.w(TAG, "TWO CONNECTIONS RUNNING");
-            oldConnection = this.connection;
-        }
-
-        // Try to send an initial stanza
+    private boolean sendInitialPresence(Connection connection) {
         Stanza stanza = new Stanza("presence", "", null, "<presence />", null);
-
         try {
             connection.send(stanza);
+            return true;
         } catch (XmppException e) {
-
-            // Initial stanza failed
             try {
                 connection.close();
             } catch (XmppException e1) {
                 /* IGNORE */
             }
-            if (oldConnection == null || oldConnection.isClosed()) {
-                // Only fail if the old connection is invalid
-                transition(State.Failed);
+            return false;
+        }
+    }
+
+    /**
+     * Start the login of a warm standby connection, unless a standby is
+     * available or running. The standby binds its own resource but sends no
+     * presence, so the server doesn't route messages to it.
+     */
+    public synchronized void startStandby() {
+        if (currentState != State.Connected || loginTask != null ||
+            standbyTask != null ||
+            (standby != null && !standby.isClosed())) {
+            return;
+        }
+        standby = null;
+        standbyTask = new LoginTask(this, true);
+        standbyTask.start();
+    }
+
+    /**
+     * Keep a new standby connection, unless the standby isn't needed
+     * anymore.
+     * @param loginTask The standby login attempt.
+     * @param connection The bound standby connection.
+     */
+    public synchronized void standbySuccess(
+        LoginTask loginTask,
+        Connection connection
+    ) {
+        if (loginTask != standbyTask || currentState != State.Connected) {
+            try {
+                connection.close();
+            } catch (XmppException e) {
+                /* IGNORE */
             }
             return;
+        }
+        Log.d(TAG, "Standby ready on " + connection.getResourceJid());
+        standbyTask = null;
+        standby = connection;
+    }
 
+    /**
+     * Forget a failed standby login attempt. A new attempt is started by
+     * the next {@link #startStandby()}.
+     * @param loginTask The standby login attempt.
+     */
+    public synchronized void standbyFail(LoginTask loginTask) {
+        if (loginTask == standbyTask) {
+            standbyTask = null;
         }
+    }
 
-        // Attempt succeeded, cleanup
+    /**
+     * Forget a standby connection that failed.
+     * @param connection The failed connection.
+     * @return True if the connection was the standby connection.
+     */
+    public synchronized boolean standbyFailed(Connection connection) {
+        if (connection != standby) {
+            return false;
+        }
+        standby = null;
+        return true;
+    }
 
-        if (loginThread != null && loginThread != this.loginThread) {
-            // concurrent login attempt
-            loginThread.interrupt();
+    /**
+     * Retrieve the warm standby connection.
+     * @return The standby connection, or null.
+     */
+    public synchronized Connection getStandby() {
+        return standby;
+    }
+
+    /**
+     * Retrieve the number of failovers to a standby connection.
+     * @return The number of standby promotions.
+     */
+    public synchronized int getPromotionCount() {
+        return promotionCount;
+    }
+
+    /**
+     * Cancel the standby login and close the standby connection.
+     */
+    private void dropStandby() {
+        if (standbyTask != null) {
+            standbyTask.cancel();
+            standbyTask = null;
         }
-        this.loginThread = null;
+        if (standby != null) {
+            try {
+                standby.close();
+            } catch (XmppException e) {
+                /* IGNORE */
+            }
+            standby = null;
+        }
+    }
 
-        if (oldConnection != null) {
+    /**
+     * Replace the failed connection by the standby connection.
+     * @return True if the standby connection took over.
+     */
+    private boolean promoteStandby() {
+        Connection promoted = standby;
+        standby = null;
+        if (promoted == null || promoted.isClosed() ||
+            !sendInitialPresence(promoted)) {
+            return false;
+        }
+        Log.d(TAG, "Promoting standby " + promoted.getResourceJid());
+        Connection failed = connection;
+        connection = promoted;
+        if (failed != null) {
             try {
-                oldConnection.close();
+                failed.close();
             } catch (XmppException e) {
                 /* IGNORE */
             }
         }
+        promotionCount++;
+        lastConnectedTime = System.currentTimeMillis();
+        pingTracker.reset();
+        listener.onConnectionPromoted(this);
+        return true;
+    }
+
+    /**
+     * Start a parallel login while the current connection stays in use
+     * (make before break). The new connection replaces the current one
+     * through {@link #connectionSuccess(LoginTask, Connection)}.
+     */
+    public synchronized void migrate() {
+        if (currentState != State.Connected || loginTask != null) {
+            return;
+        }
+        Log.d(TAG, "Migrating " + account.getJid());
+        probing = false;
+        // the standby shares the network of the failed probe
+        dropStandby();
+        loginTask = new LoginTask(this);
+        loginTask.start();
+    }
+
+    /**
+     * Check if a connection migration is running.
+     * @return True if a parallel login is running on a connected account.
+     */
+    public synchronized boolean isMigrating() {
+        return currentState == State.Connected && loginTask != null;
+    }
+
+    /**
+     * Check if the connection is probed after a network change.
+     * @return True while the probe is pending.
+     */
+    public synchronized boolean isProbing() {
+        return probing;
+    }
+
+    /**
+     * Change the probe state of the connection.
+     * @param probing True while a probe is pending.
+     */
+    public synchronized void setProbing(boolean probing) {
+        this.probing = probing;
+    }
+
+    /**
+     * Mark the connection as connected, unless the connection is connected.
+     * @param loginTask The initial login attempt.
+     * @param connection The new connection.
+     */
+    public synchronized void connectionSuccess(
+        LoginTask loginTask,
+        Connection connection
+    ) {
+        Connection oldConnection = null;
+        if (currentState == State.Connected) {
+            Log.w(TAG, "TWO CONNECTIONS RUNNING");
+            oldConnection = this.connection;
+        }
+
+        if (!sendInitialPresence(connection)) {
+            if (oldConnection == null || oldConnection.isClosed() ||
+                loginTask == this.loginTask) {
+                // Only fail if the old connection is invalid or didn't
+                // answer the migration probe
+                transition(State.Failed);
+            }
+            return;
+        }
+
+        // Attempt succeeded, cleanup
+
+        if (this.loginTask != null && this.loginTask != loginTask) {
+            // concurrent login attempt
+            this.loginTask.cancel();
+        }
+        this.loginTask = null;
+        lastLoginDuration = loginTask.getDuration();
 
         this.connection = connection;
+
+        if (oldConnection != null) {
+            // swap without a state change, the old connection is drained
+            // by the listener
+            clearKeepalive();
+            probing = false;
+            lastConnectedTime = System.currentTimeMillis();
+            pingTracker.reset();
+            listener.onConnectionMigrated(this, oldConnection);
+            return;
+        }
+
         transition(State.Connected);
     }
 
+    /**
+     * Remember a keepalive that was sent on an idle connection.
+     * @param network The network the keepalive was sent on.
+     * @param sent The send time.
+     * @param idle The idle time of the connection before the keepalive.
+     */
+    public synchronized void startKeepalive(
+        String network,
+        long sent,
+        long idle
+    ) {
+        keepaliveNetwork = network;
+        keepaliveSent = sent;
+        keepaliveIdle = idle;
+    }
+
+    /**
+     * Forget the pending keepalive.
+     */
+    public synchronized void clearKeepalive() {
+        keepaliveNetwork = null;
+        keepaliveSent = 0;
+        keepaliveIdle = 0;
+    }
+
+    /**
+     * Retrieve the network of the pending keepalive.
+     * @return The network name, or null.
+     */
+    public synchronized String getKeepaliveNetwork() {
+        return keepaliveNetwork;
+    }
+
+    /**
+     * Retrieve the send time of the pending keepalive.
+     * @return The send time, or 0 if no keepalive is pending.
+     */
+    public synchronized long getKeepaliveSent() {
+        return keepaliveSent;
+    }
+
+    /**
+     * Retrieve the idle time before the pending keepalive.
+     * @return The idle time in milliseconds.
+     */
+    public synchronized long getKeepaliveIdle() {
+        return keepaliveIdle;
+    }
+
+    /**
+     * Replace the pending deadline check, cancelling the old one.
+     * @param deadline The new deadline check, or null.
+     */
+    public synchronized void setDeadline(ScheduledFuture<?> deadline) {
+        if (this.deadline != null && this.deadline != deadline) {
+            this.deadline.cancel(false);
+        }
+        this.deadline = deadline;
+    }
+
+    /**
+     * Retrieve the round trip tracker of the current connection.
+     * @return The ping tracker.
+     */
+    public PingTracker getPingTracker() {
+        return pingTracker;
+    }
+
+    /**
+     * Retrieve the time of the last whitespace keepalive.
+     * @return The time of the last whitespace keepalive.
+     */
+    public synchronized long getLastWhitespaceTime() {
+        return lastWhitespaceTime;
+    }
+
+    /**
+     * Set the time of the last whitespace keepalive.
+     * @param lastWhitespaceTime The time of the last whitespace keepalive.
+     */
+    public synchronized void setLastWhitespaceTime(long lastWhitespaceTime) {
+        this.lastWhitespaceTime = lastWhitespaceTime;
+    }
+
+    /**
+     * Retrieve the duration of the last successful login.
+     * @return The login duration in milliseconds, or -1 if there was none.
+     */
+    public long getLastLoginDuration() {
+        return lastLoginDuration;
+    }
+
     /**
      * Retrieve the timestamp of the last connection failure.
      * @return The timestamp of the last connection failure.
@@ -37,6 +37,8 @@
 
 package com.googlecode.asmack.connection;
 
+import android.os.Bundle;
+
 import com.googlecode.asmack.Stanza;
 import com.googlecode.asmack.StanzaSink;
 import com.googlecode.asmack.XmppAccount;
@@ -67,6 +69,12 @@ public interface Connection {
      */
     void send(Stanza stanza) throws XmppException;
 
+    /**
+     * Send a whitespace keepalive, bypassing the stanza pipeline.
+     * @throws XmppException On error.
+     */
+    void sendWhitespace() throws XmppException;
+
     /**
      * Close the current connection.
      * @throws XmppException On error.
@@ -91,4 +99,11 @@ public interface Connection {
      */
     boolean isClosed();
 
+    /**
+     * Add connection specific diagnostics (e.g. compression statistics) to
+     * the given bundle.
+     * @param diagnostics The bundle receiving the diagnostic values.
+     */
+    void addDiagnostics(Bundle diagnostics);
+
 }
@@ -0,0 +1,335 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * <p>Process wide executor for connection tasks. Virtual threads are used
+ * if the runtime provides them, two pools of named daemon threads
+ * otherwise:</p>
+ * <ul>
+ *   <li>Short tasks ({@link #submit(String, Runnable)}, e.g. sends and
+ *       queue drains) run on a bounded pool with a bounded queue. Tasks
+ *       beyond the queue are rejected with a
+ *       {@link RejectedExecutionException}.</li>
+ *   <li>Long running tasks ({@link #submitLongRunning(String, Runnable)},
+ *       stream readers for the life of their connection and logins) get a
+ *       thread of their own from a cached pool, so they never hold back
+ *       short tasks.</li>
+ * </ul>
+ * <p>Tasks are cancelled by closing their connection (which breaks
+ * blocking socket reads) and interrupting the worker, see
+ * {@link LoginTask#cancel()}.</p>
+ */
+public class ConnectionExecutor {
+
+    /**
+     * Log tag for this class (class.getSimpleName()).
+     */
+    private static final String TAG = ConnectionExecutor.class.getSimpleName();
+
+    /**
+     * Maximum number of short task threads.
+     */
+    private static final int MAX_THREADS = 64;
+
+    /**
+     * Maximum number of queued short tasks.
+     */
+    private static final int MAX_QUEUED = 256;
+
+    /**
+     * Time after which idle pool threads terminate, in seconds.
+     */
+    private static final long KEEP_ALIVE = 60;
+
+    /**
+     * The shared executor instance.
+     */
+    private static ConnectionExecutor instance;
+
+    /**
+     * The executor service for short tasks.
+     */
+    private final ExecutorService executor;
+
+    /**
+     * The executor service for long running tasks.
+     */
+    private final ExecutorService longRunningExecutor;
+
+    /**
+     * The short task pool, or null if virtual threads are used.
+     */
+    private final ThreadPoolExecutor pool;
+
+    /**
+     * The long running task pool, or null if virtual threads are used.
+     */
+    private final ThreadPoolExecutor longRunningPool;
+
+    /**
+     * Number of running tasks.
+     */
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * Number of running long running tasks.
+     */
+    private final AtomicInteger longRunning = new AtomicInteger();
+
+    /**
+     * Number of rejected short tasks.
+     */
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Number of started tasks.
+     */
+    private final AtomicLong started = new AtomicLong();
+
+    /**
+     * Sum of all start latencies in milliseconds.
+     */
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    /**
+     * Maximum start latency in milliseconds.
+     */
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    /**
+     * Create the executor, preferring virtual threads.
+     */
+    private ConnectionExecutor() {
+        ExecutorService virtual = newVirtualThreadExecutor();
+        if (virtual != null) {
+            executor = virtual;
+            longRunningExecutor = newVirtualThreadExecutor();
+            pool = null;
+            longRunningPool = null;
+            Log.d(TAG, "Using virtual threads");
+            return;
+        }
+        pool = new ThreadPoolExecutor(
+            MAX_THREADS,
+            MAX_THREADS,
+            KEEP_ALIVE,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED),
+            newThreadFactory("asmack-connection-"),
+            new RejectedExecutionHandler() {
+                @Override
+                public void rejectedExecution(
+                    Runnable runnable,
+                    ThreadPoolExecutor executor
+                ) {
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException(
+                        "Connection task queue full"
+                    );
+                }
+            }
+        );
+        pool.allowCoreThreadTimeOut(true);
+        executor = pool;
+        longRunningPool = new ThreadPoolExecutor(
+            0,
+            Integer.MAX_VALUE,
+            KEEP_ALIVE,
+            TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(),
+            newThreadFactory("asmack-stream-")
+        );
+        longRunningExecutor = longRunningPool;
+    }
+
+    /**
+     * Create a factory for named daemon threads.
+     * @param prefix String The thread name prefix.
+     * @return ThreadFactory The thread factory.
+     */
+    private static ThreadFactory newThreadFactory(final String prefix) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(
+                    runnable,
+                    prefix + count.incrementAndGet()
+                );
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Retrieve the shared executor.
+     * @return ConnectionExecutor The shared executor.
+     */
+    public static synchronized ConnectionExecutor getInstance() {
+        if (instance == null) {
+            instance = new ConnectionExecutor();
+        }
+        return instance;
+    }
+
+    /**
+     * Create a virtual thread per task executor if the runtime supports it.
+     * @return ExecutorService The executor, or null.
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod(
+                "newVirtualThreadPerTaskExecutor"
+            );
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            // not available on this runtime
+            return null;
+        }
+    }
+
+    /**
+     * Submit a named short task. The worker thread carries the task name
+     * while the task is running.
+     * @param name String The task name (e.g. "send-user@domain.tld").
+     * @param task Runnable The task.
+     * @return Future<?> The future of the task, used for cancellation.
+     * @throws RejectedExecutionException If the task queue is full.
+     */
+    public Future<?> submit(final String name, final Runnable task) {
+        return executor.submit(wrap(name, task, running));
+    }
+
+    /**
+     * Submit a named task that blocks for a long or unbounded time, e.g. a
+     * stream reader for the life of its connection or a login. The task
+     * gets a thread of its own, named after the task while it runs.
+     * @param name String The task name (e.g. "read-user@domain.tld").
+     * @param task Runnable The task.
+     * @return Future<?> The future of the task, used for cancellation.
+     */
+    public Future<?> submitLongRunning(
+        final String name,
+        final Runnable task
+    ) {
+        return longRunningExecutor.submit(wrap(name, task, longRunning));
+    }
+
+    /**
+     * Wrap a task to record its start latency, count it while it runs and
+     * name the worker after it.
+     * @param name String The task name.
+     * @param task Runnable The task.
+     * @param counter AtomicInteger The counter of running tasks.
+     * @return Runnable The wrapped task.
+     */
+    private Runnable wrap(
+        final String name,
+        final Runnable task,
+        final AtomicInteger counter
+    ) {
+        final long submitTime = System.currentTimeMillis();
+        return new Runnable() {
+            @Override
+            public void run() {
+                long latency = System.currentTimeMillis() - submitTime;
+                started.incrementAndGet();
+                totalLatency.addAndGet(latency);
+                long max = maxLatency.get();
+                while (latency > max &&
+                       !maxLatency.compareAndSet(max, latency)) {
+                    max = maxLatency.get();
+                }
+                Thread thread = Thread.currentThread();
+                String threadName = thread.getName();
+                thread.setName("asmack-" + name);
+                counter.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    counter.decrementAndGet();
+                    thread.setName(threadName);
+                }
+            }
+        };
+    }
+
+    /**
+     * Add the thread and latency statistics of this executor.
+     * @param diagnostics Bundle The diagnostics bundle to fill.
+     */
+    public void addDiagnostics(Bundle diagnostics) {
+        diagnostics.putBoolean("executor.virtual", pool == null);
+        if (pool != null) {
+            diagnostics.putInt("executor.threads", pool.getPoolSize());
+            diagnostics.putInt("executor.threads.largest",
+                               pool.getLargestPoolSize());
+            diagnostics.putInt("executor.queued", pool.getQueue().size());
+            diagnostics.putInt("executor.long.threads",
+                               longRunningPool.getPoolSize());
+        }
+        diagnostics.putInt("executor.running", running.get());
+        diagnostics.putInt("executor.long.running", longRunning.get());
+        diagnostics.putLong("executor.rejected", rejected.get());
+        long count = started.get();
+        diagnostics.putLong("executor.started", count);
+        diagnostics.putLong("executor.latency.avg",
+                            count == 0 ? 0 : totalLatency.get() / count);
+        diagnostics.putLong("executor.latency.max", maxLatency.get());
+    }
+
+}
@@ -39,6 +39,7 @@ package com.googlecode.asmack.connection;
 
 import com.googlecode.asmack.XmppAccount;
 import com.googlecode.asmack.connection.impl.TcpConnection;
+import com.googlecode.asmack.connection.impl.WebSocketConnection;
 import com.googlecode.asmack.connection.impl.XmppConnection;
 
 /**
@@ -47,19 +48,55 @@ import com.googlecode.asmack.connection.impl.XmppConnection;
 public class ConnectionFactory {
 
     /**
-     * Create a new connection for "tcp:" and "xmpp:" connection strings.
+     * Create a new connection for "tcp:", "tls:", "nio:", "loopback:",
+     * "xmpp:", "xmpps:", "ws:" and "wss:" connection strings.
      * @param account The xmpp account used for the connect.
      * @return A new connection instance.
      */
     public final static Connection createConnection(XmppAccount account) {
         String connectionUri = account.getConnection();
-        if (connectionUri.startsWith("tcp:")) {
+        if (connectionUri.startsWith("tcp:") ||
+            connectionUri.startsWith("tls:") ||
+            connectionUri.startsWith("nio:") ||
+            connectionUri.startsWith("loopback:")) {
             return new TcpConnection(account);
         }
-        if (connectionUri.startsWith("xmpp:")) {
+        if (connectionUri.startsWith("xmpp:") ||
+            connectionUri.startsWith("xmpps:")) {
             return new XmppConnection(account);
         }
+        if (connectionUri.startsWith("ws:") ||
+            connectionUri.startsWith("wss:")) {
+            return new WebSocketConnection(account);
+        }
         return null;
     }
 
+    /**
+     * Create a warm standby connection for an account. The standby binds
+     * its own resource and prefers a DNS/SRV target other than the one of
+     * the primary connection.
+     * @param account The xmpp account used for the connect.
+     * @param primary The primary connection, or null.
+     * @return A new connection instance.
+     */
+    public final static Connection createStandbyConnection(
+        XmppAccount account,
+        Connection primary
+    ) {
+        XmppAccount standbyAccount = account.copy();
+        String resource = account.getResource();
+        standbyAccount.setResource(
+            resource == null ? "standby" : resource + "-standby"
+        );
+        Connection connection = createConnection(standbyAccount);
+        if (connection instanceof XmppConnection &&
+            primary instanceof TcpConnection) {
+            ((XmppConnection) connection).setAvoidedHost(
+                ((TcpConnection) primary).getHost()
+            );
+        }
+        return connection;
+    }
+
 }
@@ -0,0 +1,260 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.googlecode.asmack.XMPPUtils;
+import com.googlecode.asmack.connection.AccountConnection.State;
+
+/**
+ * <p>Registry of all account connections, indexed by bare account jid and
+ * by the full resource jid of connected accounts.</p>
+ * <p>The registry is an immutable snapshot behind a volatile reference.
+ * Lookups take no locks and see either the complete old or the complete
+ * new state, updates copy the snapshot. Updates are rare (account changes
+ * and state transitions), lookups happen on every send.</p>
+ */
+public class ConnectionRegistry {
+
+    /**
+     * An immutable registry state.
+     */
+    private static class Snapshot {
+
+        /**
+         * Map of {{bare or full jid} => {AccountConnection}} pairs. Full
+         * jids are only present for connected accounts.
+         */
+        private final HashMap<String, AccountConnection> byJid;
+
+        /**
+         * Map of {{AccountConnection} => {connected connection}} pairs.
+         */
+        private final HashMap<AccountConnection, Connection> active;
+
+        /**
+         * Map of {{AccountConnection} => {full resource jid}} pairs.
+         */
+        private final HashMap<AccountConnection, String> resources;
+
+        /**
+         * All account connections.
+         */
+        private final List<AccountConnection> all;
+
+        /**
+         * Create a new snapshot.
+         * @param byJid The jid index.
+         * @param active The connected connections.
+         * @param resources The registered resource jids.
+         * @param all All account connections.
+         */
+        private Snapshot(
+            HashMap<String, AccountConnection> byJid,
+            HashMap<AccountConnection, Connection> active,
+            HashMap<AccountConnection, String> resources,
+            List<AccountConnection> all
+        ) {
+            this.byJid = byJid;
+            this.active = active;
+            this.resources = resources;
+            this.all = all;
+        }
+
+    }
+
+    /**
+     * The current snapshot.
+     */
+    private volatile Snapshot snapshot = new Snapshot(
+        new HashMap<String, AccountConnection>(),
+        new HashMap<AccountConnection, Connection>(),
+        new HashMap<AccountConnection, String>(),
+        Collections.<AccountConnection>emptyList()
+    );
+
+    /**
+     * Replace the set of accounts. Connected connections of accounts that
+     * are kept stay registered.
+     * @param accounts Map of {{bare jid} => {AccountConnection}} pairs.
+     */
+    public synchronized void setAccounts(
+        Map<String, AccountConnection> accounts
+    ) {
+        Snapshot old = snapshot;
+        HashMap<String, AccountConnection> byJid =
+            new HashMap<String, AccountConnection>(accounts);
+        HashMap<AccountConnection, Connection> active =
+            new HashMap<AccountConnection, Connection>();
+        HashMap<AccountConnection, String> resources =
+            new HashMap<AccountConnection, String>();
+        for (AccountConnection state: accounts.values()) {
+            Connection connection = old.active.get(state);
+            if (connection == null) {
+                continue;
+            }
+            active.put(state, connection);
+            String resource = old.resources.get(state);
+            if (resource != null) {
+                resources.put(state, resource);
+                byJid.put(resource, state);
+            }
+        }
+        snapshot = new Snapshot(
+            byJid,
+            active,
+            resources,
+            Collections.unmodifiableList(
+                new ArrayList<AccountConnection>(accounts.values())
+            )
+        );
+    }
+
+    /**
+     * Update the index after a state transition of an account connection.
+     * @param state The account connection.
+     */
+    public void update(AccountConnection state) {
+        // read the state before taking the registry lock, state changes
+        // call in while holding the account connection lock
+        Connection connection = null;
+        if (state.getCurrentState() == State.Connected) {
+            connection = state.getConnection();
+        }
+        if (connection != null && connection.isClosed()) {
+            connection = null;
+        }
+        String resource = connection == null ?
+                            null : connection.getResourceJid();
+        apply(state, connection, resource);
+    }
+
+    /**
+     * Publish the connection of an account connection.
+     * @param state The account connection.
+     * @param connection The connected connection, or null.
+     * @param resource The full resource jid, or null.
+     */
+    private synchronized void apply(
+        AccountConnection state,
+        Connection connection,
+        String resource
+    ) {
+        Snapshot old = snapshot;
+        if (!old.all.contains(state)) {
+            // removed account
+            return;
+        }
+        HashMap<String, AccountConnection> byJid =
+            new HashMap<String, AccountConnection>(old.byJid);
+        HashMap<AccountConnection, Connection> active =
+            new HashMap<AccountConnection, Connection>(old.active);
+        HashMap<AccountConnection, String> resources =
+            new HashMap<AccountConnection, String>(old.resources);
+        String oldResource = resources.remove(state);
+        if (oldResource != null && byJid.get(oldResource) == state) {
+            byJid.remove(oldResource);
+        }
+        active.remove(state);
+        if (connection != null) {
+            active.put(state, connection);
+            if (resource != null) {
+                resources.put(state, resource);
+                byJid.put(resource, state);
+            }
+        }
+        snapshot = new Snapshot(byJid, active, resources, old.all);
+    }
+
+    /**
+     * Retrieve the account connection of a jid.
+     * @param jid The bare account jid or a full resource jid.
+     * @return The account connection, or null.
+     */
+    public AccountConnection get(String jid) {
+        if (jid == null) {
+            return null;
+        }
+        Map<String, AccountConnection> byJid = snapshot.byJid;
+        AccountConnection state = byJid.get(jid);
+        if (state == null && jid.indexOf('/') != -1) {
+            // e.g. a replaced resource
+            state = byJid.get(XMPPUtils.getBareJid(jid));
+        }
+        return state;
+    }
+
+    /**
+     * Retrieve the connected connection of a jid.
+     * @param jid The bare account jid or the current full resource jid.
+     * @return The connection, or null if the jid isn't connected.
+     */
+    public Connection getConnection(String jid) {
+        if (jid == null) {
+            return null;
+        }
+        Snapshot snapshot = this.snapshot;
+        AccountConnection state = snapshot.byJid.get(jid);
+        if (state == null) {
+            return null;
+        }
+        return snapshot.active.get(state);
+    }
+
+    /**
+     * Retrieve all account connections.
+     * @return An unmodifiable list of all account connections.
+     */
+    public List<AccountConnection> getAll() {
+        return snapshot.all;
+    }
+
+    /**
+     * Retrieve all connected connections.
+     * @return A list of all connected connections.
+     */
+    public List<Connection> getConnections() {
+        return new ArrayList<Connection>(snapshot.active.values());
+    }
+
+}
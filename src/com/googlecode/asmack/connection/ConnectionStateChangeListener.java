@@ -68,4 +68,24 @@ public interface ConnectionStateChangeListener {
      */
     void onConnectionFailed(AccountConnection accountConnection);
 
+    /**
+     * Called when a failed connection was replaced by its warm standby.
+     * Requests sent on the failed connection will never be answered.
+     * @param accountConnection The account connection, connected through
+     *                          the promoted standby.
+     */
+    void onConnectionPromoted(AccountConnection accountConnection);
+
+    /**
+     * Called when a connected account switched to a new connection. The old
+     * connection is still open and should be closed once in flight stanzas
+     * had a chance to arrive.
+     * @param accountConnection The account connection.
+     * @param oldConnection The replaced connection.
+     */
+    void onConnectionMigrated(
+        AccountConnection accountConnection,
+        Connection oldConnection
+    );
+
 }
@@ -15,8 +15,14 @@ public class ConnectivityReceiver extends BroadcastReceiver {
 
     private boolean disconnected = false;
 
+    /**
+     * The last seen network, see {@link XmppTransportService#getNetwork()}.
+     */
+    private String network;
+
     public ConnectivityReceiver(XmppTransportService xmppTransportService) {
         this.xmppTransportService = xmppTransportService;
+        network = xmppTransportService.getNetwork();
     }
 
     @Override
@@ -31,10 +37,13 @@ public class ConnectivityReceiver extends BroadcastReceiver {
             }
             return;
         }
-        if (!disconnected) {
+        String network = xmppTransportService.getNetwork();
+        if (!disconnected && network.equals(this.network)) {
             return;
         }
+        Log.d(TAG, "Connected to " + network);
         disconnected = false;
+        this.network = network;
         xmppTransportService.onConnectivityAvailable();
     }
 
@@ -0,0 +1,334 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.googlecode.asmack.Attribute;
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XMPPUtils;
+
+/**
+ * <p>Correlates outgoing iq requests with their result or error replies.</p>
+ * <p>Every tracked request gets a fresh id. A reply completes the request
+ * if the id matches, it arrived on the same account and it came from the
+ * addressed entity (the account itself or its server if the request had
+ * no "to" attribute, RFC 6120 section 10.3.3). Unanswered requests fail
+ * after a per request timeout.</p>
+ */
+public class IqTracker {
+
+    /**
+     * Failure reason of requests without a reply in time ("timeout").
+     */
+    public static final String TIMEOUT = "timeout";
+
+    /**
+     * Failure reason of requests on a failed connection ("disconnected").
+     */
+    public static final String DISCONNECTED = "disconnected";
+
+    /**
+     * The default request timeout.
+     */
+    public static final long DEFAULT_TIMEOUT = 60 * 1000;
+
+    /**
+     * The shortest request timeout.
+     */
+    private static final long MIN_TIMEOUT = 1000;
+
+    /**
+     * The longest request timeout.
+     */
+    private static final long MAX_TIMEOUT = 10 * 60 * 1000;
+
+    /**
+     * Random source for the id prefix.
+     */
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Receiver of the outcome of a tracked request.
+     */
+    public static interface Callback {
+
+        /**
+         * Called with the result or error reply of a request.
+         * @param response The reply.
+         */
+        void onResponse(Stanza response);
+
+        /**
+         * Called if a request can't be answered anymore.
+         * @param id The request id.
+         * @param reason The failure reason, {@link IqTracker#TIMEOUT} or
+         *               {@link IqTracker#DISCONNECTED}.
+         */
+        void onFailure(String id, String reason);
+
+    }
+
+    /**
+     * A pending request.
+     */
+    private class Pending implements Runnable {
+
+        /**
+         * The request id.
+         */
+        private final String id;
+
+        /**
+         * The bare account jid of the request.
+         */
+        private final String account;
+
+        /**
+         * The addressed entity, or null for the account server.
+         */
+        private final String to;
+
+        /**
+         * The outcome receiver.
+         */
+        private final Callback callback;
+
+        /**
+         * The timeout future.
+         */
+        private volatile ScheduledFuture<?> timeout;
+
+        /**
+         * Create a new pending request.
+         * @param id The request id.
+         * @param account The bare account jid.
+         * @param to The addressed entity, or null.
+         * @param callback The outcome receiver.
+         */
+        private Pending(
+            String id,
+            String account,
+            String to,
+            Callback callback
+        ) {
+            this.id = id;
+            this.account = account;
+            this.to = to;
+            this.callback = callback;
+        }
+
+        /**
+         * Check if a reply comes from the addressed entity.
+         * @param from The reply sender, or null.
+         * @return True if the sender is valid for this request.
+         */
+        private boolean isValidSender(String from) {
+            if (to != null && !to.equalsIgnoreCase(account)) {
+                return to.equalsIgnoreCase(from);
+            }
+            // the account itself or its server
+            return from == null ||
+                   account.equalsIgnoreCase(XMPPUtils.getBareJid(from)) ||
+                   XMPPUtils.getDomain(account).equalsIgnoreCase(from);
+        }
+
+        /**
+         * Fail the request on timeout.
+         */
+        @Override
+        public void run() {
+            if (pending.remove(id, this)) {
+                timeouts.incrementAndGet();
+                callback.onFailure(id, TIMEOUT);
+            }
+        }
+
+    }
+
+    /**
+     * Map of {{request id} => {pending request}} pairs.
+     */
+    private final ConcurrentHashMap<String, Pending> pending =
+        new ConcurrentHashMap<String, Pending>();
+
+    /**
+     * The id prefix of this tracker.
+     */
+    private final String prefix =
+        "iq_" + Integer.toHexString(RANDOM.nextInt()) + "_";
+
+    /**
+     * The next id sequence number.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Number of requests that timed out.
+     */
+    private final AtomicLong timeouts = new AtomicLong();
+
+    /**
+     * The scheduler running the timeouts.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Create a new tracker.
+     * @param scheduler The scheduler running the timeouts.
+     */
+    public IqTracker(ScheduledExecutorService scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Track an iq request. The request gets a fresh id and has to be sent
+     * afterwards, via {@link Stanza#getVia()}.
+     * @param request The iq get or set request.
+     * @param timeout The timeout in milliseconds, 0 for the default.
+     * @param callback The outcome receiver.
+     * @return The assigned request id.
+     */
+    public String track(Stanza request, long timeout, Callback callback) {
+        String id = prefix + Long.toHexString(sequence.incrementAndGet());
+        request.addAttribute(new Attribute("id", "", id));
+        if (timeout <= 0) {
+            timeout = DEFAULT_TIMEOUT;
+        }
+        timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, timeout));
+        Pending entry = new Pending(
+            id,
+            XMPPUtils.getBareJid(request.getVia()),
+            request.getAttributeValue("to"),
+            callback
+        );
+        pending.put(id, entry);
+        entry.timeout =
+            scheduler.schedule(entry, timeout, TimeUnit.MILLISECONDS);
+        return id;
+    }
+
+    /**
+     * Stop tracking a request without calling the callback, e.g. because
+     * it could not be sent.
+     * @param id The request id.
+     */
+    public void cancel(String id) {
+        Pending entry = pending.remove(id);
+        if (entry != null && entry.timeout != null) {
+            entry.timeout.cancel(false);
+        }
+    }
+
+    /**
+     * Handle a received stanza, completing the matching request.
+     * @param stanza The received stanza.
+     * @return True if the stanza answered a tracked request.
+     */
+    public boolean onReceive(Stanza stanza) {
+        if (!"iq".equals(stanza.getName()) || stanza.getVia() == null) {
+            return false;
+        }
+        String type = stanza.getAttributeValue("type");
+        if (!"result".equals(type) && !"error".equals(type)) {
+            return false;
+        }
+        String id = stanza.getAttributeValue("id");
+        if (id == null || !id.startsWith(prefix)) {
+            return false;
+        }
+        Pending entry = pending.get(id);
+        if (entry == null ||
+            !entry.account.equalsIgnoreCase(
+                XMPPUtils.getBareJid(stanza.getVia())) ||
+            !entry.isValidSender(stanza.getAttributeValue("from")) ||
+            !pending.remove(id, entry)
+        ) {
+            return false;
+        }
+        if (entry.timeout != null) {
+            entry.timeout.cancel(false);
+        }
+        entry.callback.onResponse(stanza);
+        return true;
+    }
+
+    /**
+     * Fail all requests of an account, e.g. after a connection loss.
+     * @param account The bare account jid.
+     */
+    public void fail(String account) {
+        List<Pending> failed = new ArrayList<Pending>();
+        for (Pending entry: pending.values()) {
+            if (entry.account.equalsIgnoreCase(account) &&
+                pending.remove(entry.id, entry)) {
+                failed.add(entry);
+            }
+        }
+        for (Pending entry: failed) {
+            if (entry.timeout != null) {
+                entry.timeout.cancel(false);
+            }
+            entry.callback.onFailure(entry.id, DISCONNECTED);
+        }
+    }
+
+    /**
+     * Retrieve the number of pending requests.
+     * @return The number of pending requests.
+     */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Retrieve the number of requests that timed out.
+     * @return The number of timed out requests.
+     */
+    public long getTimeoutCount() {
+        return timeouts.get();
+    }
+
+}
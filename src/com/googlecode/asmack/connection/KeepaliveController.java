@@ -0,0 +1,290 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.util.HashMap;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.os.Bundle;
+import android.util.Log;
+
+/**
+ * <p>Adaptive keepalive interval, learned per network.</p>
+ * <p>Every network (connection type plus APN or SSID) starts with a one
+ * minute interval. After a few keepalives survived the current interval the
+ * interval is doubled, or moved halfway towards the shortest idle time that
+ * killed a connection on this network. A connection that dies while idle
+ * for the current interval lowers the interval to the longest idle time
+ * that was known to work. The learned values are persisted, failures are
+ * forgotten after a day so changed NAT timeouts are probed again.</p>
+ */
+public class KeepaliveController {
+
+    /**
+     * Logging tag of this class ("KeepaliveController").
+     */
+    private static final String TAG = KeepaliveController.class.getSimpleName();
+
+    /**
+     * Name of the shared preferences storing the learned intervals.
+     */
+    private static final String PREFERENCES = "keepalive";
+
+    /**
+     * The shortest interval (60 seconds), the starting point on unknown
+     * networks and the floor of every learned or backed off interval.
+     */
+    public static final long MIN_INTERVAL = 60 * 1000;
+
+    /**
+     * The longest interval, below common NAT and firewall timeouts of 30
+     * minutes.
+     */
+    public static final long MAX_INTERVAL = 28 * 60 * 1000;
+
+    /**
+     * Time after which a learned failure is ignored.
+     */
+    private static final long CEILING_TTL = 24 * 60 * 60 * 1000;
+
+    /**
+     * Number of keepalives that have to survive the current interval before
+     * a longer one is probed.
+     */
+    private static final int PROBE_SUCCESSES = 3;
+
+    /**
+     * The learned keepalive state of a single network.
+     */
+    private static class Network {
+
+        /**
+         * The current keepalive interval.
+         */
+        private long interval = MIN_INTERVAL;
+
+        /**
+         * The longest idle time that kept a connection alive.
+         */
+        private long stable = 0;
+
+        /**
+         * The shortest idle time that killed a connection, or 0.
+         */
+        private long ceiling = 0;
+
+        /**
+         * The time the ceiling was learned.
+         */
+        private long ceilingTime = 0;
+
+        /**
+         * Keepalives that survived the current interval.
+         */
+        private int successes = 0;
+
+    }
+
+    /**
+     * The preferences storing the learned intervals.
+     */
+    private final SharedPreferences preferences;
+
+    /**
+     * The connectivity manager used to identify the current network.
+     */
+    private final ConnectivityManager connectivityManager;
+
+    /**
+     * Map of {{network} => {learned state}} pairs.
+     */
+    private final HashMap<String, Network> networks =
+                                            new HashMap<String, Network>();
+
+    /**
+     * Create a new controller backed by the preferences of a context.
+     * @param context The service context.
+     */
+    public KeepaliveController(Context context) {
+        preferences = context.getSharedPreferences(
+            PREFERENCES,
+            Context.MODE_PRIVATE
+        );
+        connectivityManager = (ConnectivityManager)
+            context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    }
+
+    /**
+     * Identify the current network by type and APN/SSID.
+     * @return The network name, "none" without connectivity.
+     */
+    public String getNetwork() {
+        NetworkInfo info = connectivityManager == null ?
+                                null : connectivityManager.getActiveNetworkInfo();
+        if (info == null) {
+            return "none";
+        }
+        String extra = info.getExtraInfo();
+        return extra == null ? info.getTypeName() :
+                               info.getTypeName() + ":" + extra;
+    }
+
+    /**
+     * Retrieve the keepalive interval of a network.
+     * @param network The network name.
+     * @return The interval in milliseconds.
+     */
+    public synchronized long getInterval(String network) {
+        return getState(network).interval;
+    }
+
+    /**
+     * Record a keepalive that was answered after the connection was idle for
+     * the given time.
+     * @param network The network of the connection.
+     * @param idle The idle time before the keepalive in milliseconds.
+     */
+    public synchronized void onKeepaliveSuccess(String network, long idle) {
+        Network state = getState(network);
+        state.stable = Math.max(state.stable, Math.min(idle, MAX_INTERVAL));
+        if (idle < state.interval) {
+            return;
+        }
+        state.successes++;
+        if (state.successes < PROBE_SUCCESSES) {
+            return;
+        }
+        state.successes = 0;
+        long next = state.ceiling > 0 ?
+                        (state.stable + state.ceiling) / 2 :
+                        state.interval * 2;
+        next = Math.min(next, MAX_INTERVAL);
+        if (next - state.stable < MIN_INTERVAL) {
+            // converged
+            return;
+        }
+        Log.d(TAG, "Probing " + next + "ms on " + network);
+        state.interval = next;
+        save(network, state);
+    }
+
+    /**
+     * Record a connection that died after being idle for the given time.
+     * @param network The network of the connection.
+     * @param idle The idle time before the keepalive in milliseconds.
+     */
+    public synchronized void onKeepaliveFailure(String network, long idle) {
+        Network state = getState(network);
+        state.ceiling = Math.max(idle, MIN_INTERVAL);
+        state.ceilingTime = System.currentTimeMillis();
+        if (state.stable >= state.ceiling) {
+            // the network got more aggressive
+            state.stable = Math.max(MIN_INTERVAL, state.ceiling / 2);
+        }
+        state.interval = Math.max(MIN_INTERVAL, state.stable);
+        state.successes = 0;
+        Log.d(TAG, "Keepalive failed after " + idle + "ms on " + network +
+                   ", backing off to " + state.interval + "ms");
+        save(network, state);
+    }
+
+    /**
+     * Add the learned values of a network.
+     * @param network The network name.
+     * @param diagnostics The bundle receiving the diagnostic values.
+     */
+    public synchronized void addDiagnostics(
+        String network,
+        Bundle diagnostics
+    ) {
+        Network state = getState(network);
+        diagnostics.putString("keepalive.network", network);
+        diagnostics.putLong("keepalive.interval", state.interval);
+        diagnostics.putLong("keepalive.stable", state.stable);
+        diagnostics.putLong("keepalive.ceiling", state.ceiling);
+    }
+
+    /**
+     * Retrieve the state of a network, loading it from the preferences on
+     * first use and expiring old failures.
+     * @param network The network name.
+     * @return The learned state.
+     */
+    private Network getState(String network) {
+        Network state = networks.get(network);
+        if (state == null) {
+            state = new Network();
+            if (preferences != null) {
+                state.interval = preferences.getLong(
+                    network + ".interval", MIN_INTERVAL);
+                state.stable = preferences.getLong(network + ".stable", 0);
+                state.ceiling = preferences.getLong(network + ".ceiling", 0);
+                state.ceilingTime = preferences.getLong(
+                    network + ".ceilingTime", 0);
+            }
+            networks.put(network, state);
+        }
+        if (state.ceiling > 0 &&
+            System.currentTimeMillis() - state.ceilingTime > CEILING_TTL) {
+            state.ceiling = 0;
+            save(network, state);
+        }
+        return state;
+    }
+
+    /**
+     * Persist the state of a network.
+     * @param network The network name.
+     * @param state The learned state.
+     */
+    private void save(String network, Network state) {
+        if (preferences == null) {
+            return;
+        }
+        preferences.edit()
+            .putLong(network + ".interval", state.interval)
+            .putLong(network + ".stable", state.stable)
+            .putLong(network + ".ceiling", state.ceiling)
+            .putLong(network + ".ceilingTime", state.ceilingTime)
+            .commit();
+    }
+
+}
@@ -0,0 +1,228 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import android.util.Log;
+
+import com.googlecode.asmack.XmppException;
+
+/**
+ * A cancellable login attempt, queued by the {@link ReconnectScheduler}
+ * and running on the {@link ConnectionExecutor}.
+ */
+public class LoginTask implements Runnable {
+
+    /**
+     * Log tag for this class (class.getSimpleName()).
+     */
+    private static final String TAG = LoginTask.class.getSimpleName();
+
+    /**
+     * The account connection state tracking instance.
+     */
+    private final AccountConnection accountConnection;
+
+    /**
+     * The connection of this attempt, once created.
+     */
+    private Connection connection;
+
+    /**
+     * The thread running this attempt, null unless running.
+     */
+    private Thread worker;
+
+    /**
+     * True after {@link #cancel()}.
+     */
+    private boolean cancelled = false;
+
+    /**
+     * The duration of the login in milliseconds, or -1 while running.
+     */
+    private long duration = -1;
+
+    /**
+     * True if this attempt logs in a warm standby connection.
+     */
+    private final boolean standby;
+
+    /**
+     * Create a new login task for the given account and connection pair.
+     * @param accountConnection The account connection pair to use for login.
+     */
+    public LoginTask(AccountConnection accountConnection) {
+        this(accountConnection, false);
+    }
+
+    /**
+     * Create a new login task for the given account and connection pair.
+     * @param accountConnection The account connection pair to use for login.
+     * @param standby True to login a warm standby connection, see
+     *                {@link AccountConnection#startStandby()}.
+     */
+    public LoginTask(AccountConnection accountConnection, boolean standby) {
+        this.accountConnection = accountConnection;
+        this.standby = standby;
+    }
+
+    /**
+     * Queue this login attempt on the {@link ReconnectScheduler}, it is
+     * submitted once a login slot is free.
+     */
+    public void start() {
+        ReconnectScheduler.getInstance().submit(this);
+    }
+
+    /**
+     * Submit this login attempt to the connection executor, called by the
+     * {@link ReconnectScheduler} after assigning a login slot. Logins block
+     * for up to the connect budget and run as long running tasks.
+     */
+    void submit() {
+        ConnectionExecutor.getInstance().submitLongRunning(
+            (standby ? "standby-" : "login-") +
+                accountConnection.getAccount().getJid(),
+            this
+        );
+    }
+
+    /**
+     * Cancel this login attempt. A waiting attempt is dropped from the
+     * login queue, a running attempt closes its connection, which aborts
+     * blocking socket operations, and the worker is interrupted.
+     */
+    public void cancel() {
+        Connection connection;
+        synchronized (this) {
+            cancelled = true;
+            connection = this.connection;
+            if (worker != null) {
+                worker.interrupt();
+            }
+        }
+        ReconnectScheduler.getInstance().remove(this);
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (XmppException e) {
+                /* ignore */
+            }
+        }
+    }
+
+    /**
+     * Retrieve the duration of the login.
+     * @return long The login duration in milliseconds, or -1 while running.
+     */
+    public synchronized long getDuration() {
+        return duration;
+    }
+
+    /**
+     * Run a login attempt in the login slot assigned by the
+     * {@link ReconnectScheduler}, reporting results to AccountConnection.
+     * The slot is released when the attempt ends, even if it was cancelled
+     * before it started.
+     */
+    @Override
+    public void run() {
+        try {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                worker = Thread.currentThread();
+            }
+            login();
+        } finally {
+            synchronized (this) {
+                worker = null;
+            }
+            // don't leak a late cancel into the next task of this thread
+            Thread.interrupted();
+            ReconnectScheduler.getInstance().finished();
+        }
+    }
+
+    /**
+     * Connect and login, holding a login slot.
+     */
+    private void login() {
+        long start = System.currentTimeMillis();
+        Connection connection = standby ?
+            ConnectionFactory.createStandbyConnection(
+                accountConnection.getAccount(),
+                accountConnection.getConnection()
+            ) :
+            ConnectionFactory.createConnection(
+                accountConnection.getAccount()
+            );
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            this.connection = connection;
+        }
+        try {
+            connection.connect(accountConnection.getStanzaSink());
+            synchronized (this) {
+                duration = System.currentTimeMillis() - start;
+            }
+            if (standby) {
+                accountConnection.standbySuccess(this, connection);
+            } else {
+                accountConnection.connectionSuccess(this, connection);
+            }
+        } catch (XmppException e) {
+            Log.d(TAG, "Login failed", e);
+            /* error */
+            try {
+                connection.close();
+            } catch (XmppException e1) {
+                /* ignore */
+            }
+            if (standby) {
+                accountConnection.standbyFail(this);
+            } else {
+                accountConnection.connectionFail(this);
+            }
+        }
+    }
+
+}
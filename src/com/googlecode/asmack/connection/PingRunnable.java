@@ -38,10 +38,12 @@
 package com.googlecode.asmack.connection;
 
 import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XmppAccount.Keepalive;
 import com.googlecode.asmack.XmppException;
 
 /**
- * Runnable to execute ping request in the background.
+ * Runnable to execute ping request or whitespace keepalives in the
+ * background.
  */
 public class PingRunnable implements Runnable {
 
@@ -50,12 +52,26 @@ public class PingRunnable implements Runnable {
      */
     private final Connection connection;
 
+    /**
+     * The keepalive to send.
+     */
+    private final Keepalive keepalive;
+
+    /**
+     * The id of the ping iq.
+     */
+    private final String id;
+
     /**
      * Create a new ping runnable bound to a given output connection.
      * @param connection The ping output connection.
+     * @param keepalive The keepalive to send.
+     * @param id The id of the ping iq (see {@link PingTracker#start(long)}).
      */
-    public PingRunnable(Connection connection) {
+    public PingRunnable(Connection connection, Keepalive keepalive, String id) {
         this.connection = connection;
+        this.keepalive = keepalive;
+        this.id = id;
     }
 
     /**
@@ -63,15 +79,23 @@ public class PingRunnable implements Runnable {
      */
     @Override
     public void run() {
+        if (keepalive != Keepalive.Ping) {
+            try {
+                connection.sendWhitespace();
+            } catch (XmppException e) {
+                /* PING is non critical */
+            }
+            if (keepalive == Keepalive.Whitespace) {
+                return;
+            }
+        }
         Stanza stanza = new Stanza(
                 "iq",
                 "",
                 "",
                 "<iq type='get' from='" +
                 connection.getResourceJid() +
-                "' id='ping_" +
-                Long.toHexString((int)(Integer.MAX_VALUE * Math.random()))
-                + "'><ping xmlns='urn:xmpp:ping'/></iq>",
+                "' id='" + id + "'><ping xmlns='urn:xmpp:ping'/></iq>",
                 null
         );
         try {
@@ -0,0 +1,221 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.util.Random;
+
+import android.os.Bundle;
+
+/**
+ * <p>Correlates keepalive pings with their results and keeps a round trip
+ * time estimate for a single connection.</p>
+ * <p>The smoothed round trip time and its variation are computed as in
+ * RFC 6298. A ping is considered lost after three round trip times (plus
+ * four times the variation), so a dead connection is detected long before
+ * the silence timeout. Losses and round trip times are combined into a
+ * quality score between 0 (unusable) and 100.</p>
+ */
+public class PingTracker {
+
+    /**
+     * The shortest time to wait for a pong.
+     */
+    private static final long MIN_TIMEOUT = 5 * 1000;
+
+    /**
+     * The longest time to wait for a pong, also used without samples.
+     */
+    private static final long MAX_TIMEOUT = 2 * 60 * 1000;
+
+    /**
+     * Random source for ping ids.
+     */
+    private static final Random RANDOM = new Random();
+
+    /**
+     * The id of the outstanding ping, or null.
+     */
+    private String pendingId;
+
+    /**
+     * The send time of the outstanding ping.
+     */
+    private long pendingSent;
+
+    /**
+     * The smoothed round trip time, -1 without samples.
+     */
+    private long srtt = -1;
+
+    /**
+     * The round trip time variation.
+     */
+    private long rttvar = 0;
+
+    /**
+     * The smoothed loss rate (0..1).
+     */
+    private double loss = 0d;
+
+    /**
+     * Number of sent pings.
+     */
+    private long sent = 0;
+
+    /**
+     * Number of lost pings.
+     */
+    private long lost = 0;
+
+    /**
+     * Register a new ping, replacing any outstanding one.
+     * @param now The send time.
+     * @return The id of the new ping.
+     */
+    public synchronized String start(long now) {
+        pendingId = "ping_" + Integer.toHexString(RANDOM.nextInt());
+        pendingSent = now;
+        sent++;
+        return pendingId;
+    }
+
+    /**
+     * Handle an iq result or error, updating the estimate if it answers the
+     * outstanding ping.
+     * @param id The iq id.
+     * @param now The receive time.
+     * @return True if the iq answered the outstanding ping.
+     */
+    public synchronized boolean onResult(String id, long now) {
+        if (pendingId == null || !pendingId.equals(id)) {
+            return false;
+        }
+        long sample = Math.max(0, now - pendingSent);
+        pendingId = null;
+        if (srtt < 0) {
+            srtt = sample;
+            rttvar = sample / 2;
+        } else {
+            rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+            srtt = (7 * srtt + sample) / 8;
+        }
+        loss = loss * 7d / 8d;
+        return true;
+    }
+
+    /**
+     * Check if the outstanding ping should have been answered by now.
+     * @param now The current time.
+     * @return True if a ping is outstanding for longer than the timeout.
+     */
+    public synchronized boolean isOverdue(long now) {
+        return pendingId != null && now - pendingSent > getTimeout();
+    }
+
+    /**
+     * Count the outstanding ping as lost.
+     */
+    public synchronized void onTimeout() {
+        if (pendingId == null) {
+            return;
+        }
+        pendingId = null;
+        lost++;
+        loss = loss * 7d / 8d + 1d / 8d;
+    }
+
+    /**
+     * Retrieve the time to wait for a pong.
+     * @return The timeout in milliseconds.
+     */
+    public synchronized long getTimeout() {
+        if (srtt < 0) {
+            return MAX_TIMEOUT;
+        }
+        return Math.max(MIN_TIMEOUT,
+                        Math.min(MAX_TIMEOUT, 3 * srtt + 4 * rttvar));
+    }
+
+    /**
+     * Retrieve the send time of the outstanding ping.
+     * @return The send time, or 0 if no ping is outstanding.
+     */
+    public synchronized long getPendingSent() {
+        return pendingId == null ? 0 : pendingSent;
+    }
+
+    /**
+     * Compute the connection quality: 100 for an instant, lossless
+     * connection, 50 at one second round trip time (including twice the
+     * variation) or 50% loss.
+     * @return The quality between 0 and 100, -1 without samples.
+     */
+    public synchronized int getQuality() {
+        if (srtt < 0) {
+            return lost > 0 ? 0 : -1;
+        }
+        double delay = 1000d / (1000d + srtt + 2 * rttvar);
+        return (int) Math.round(100d * (1d - loss) * delay);
+    }
+
+    /**
+     * Forget all samples, e.g. after a reconnect.
+     */
+    public synchronized void reset() {
+        pendingId = null;
+        srtt = -1;
+        rttvar = 0;
+        loss = 0d;
+        sent = 0;
+        lost = 0;
+    }
+
+    /**
+     * Add the round trip statistics.
+     * @param diagnostics The bundle receiving the diagnostic values.
+     */
+    public synchronized void addDiagnostics(Bundle diagnostics) {
+        diagnostics.putLong("ping.rtt", srtt);
+        diagnostics.putLong("ping.rttvar", rttvar);
+        diagnostics.putLong("ping.timeout", getTimeout());
+        diagnostics.putLong("ping.sent", sent);
+        diagnostics.putLong("ping.lost", lost);
+        diagnostics.putInt("ping.quality", getQuality());
+    }
+
+}
@@ -0,0 +1,224 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Random;
+
+import android.os.Bundle;
+
+/**
+ * <p>Process wide reconnect policy. Failed connections wait for a capped
+ * exponential backoff with full jitter, a random delay between 0 and
+ * min({@link #MAX_BACKOFF}, {@link #BASE_BACKOFF} * 2^(fails - 1)), so
+ * accounts that failed together don't retry together.</p>
+ * <p>At most {@link #MAX_LOGINS} logins (dns, connect, tls and sasl) run
+ * at the same time, further {@link LoginTask}s wait in a queue and are
+ * submitted when a running login finishes, so waiting logins never hold an
+ * executor thread.
+ * Reconnects after a connectivity change are staggered by
+ * {@link #STAGGER_DELAY} per account.</p>
+ */
+public class ReconnectScheduler {
+
+    /**
+     * Backoff ceiling of the first failure in milliseconds (5 seconds).
+     */
+    public static final long BASE_BACKOFF = 5 * 1000;
+
+    /**
+     * Maximum backoff ceiling in milliseconds (10 minutes).
+     */
+    public static final long MAX_BACKOFF = 10 * 60 * 1000;
+
+    /**
+     * Maximum number of concurrent logins.
+     */
+    public static final int MAX_LOGINS = 2;
+
+    /**
+     * Delay between the reconnects of two accounts after a connectivity
+     * change, in milliseconds.
+     */
+    public static final long STAGGER_DELAY = 1000;
+
+    /**
+     * The shared instance.
+     */
+    private static ReconnectScheduler instance;
+
+    /**
+     * Logins waiting for a slot, in submission order.
+     */
+    private final LinkedList<LoginTask> waiting = new LinkedList<LoginTask>();
+
+    /**
+     * Number of submitted logins that hold a slot.
+     */
+    private int running = 0;
+
+    /**
+     * The jitter source.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Create a new reconnect scheduler, use {@link #getInstance()}.
+     */
+    private ReconnectScheduler() {
+    }
+
+    /**
+     * Retrieve the shared reconnect scheduler.
+     * @return ReconnectScheduler The shared instance.
+     */
+    public static synchronized ReconnectScheduler getInstance() {
+        if (instance == null) {
+            instance = new ReconnectScheduler();
+        }
+        return instance;
+    }
+
+    /**
+     * Compute the backoff ceiling after a number of failures.
+     * @param failCount int The number of failures since the last connect.
+     * @return long The backoff ceiling in milliseconds, 0 without failures.
+     */
+    public static long getBackoffCeiling(int failCount) {
+        if (failCount <= 0) {
+            return 0;
+        }
+        long ceiling = BASE_BACKOFF;
+        for (int i = 1; i < failCount && ceiling < MAX_BACKOFF; i++) {
+            ceiling *= 2;
+        }
+        return Math.min(ceiling, MAX_BACKOFF);
+    }
+
+    /**
+     * Pick a random reconnect delay after a number of failures.
+     * @param failCount int The number of failures since the last connect.
+     * @return long The reconnect delay in milliseconds.
+     */
+    public long getBackoff(int failCount) {
+        long ceiling = getBackoffCeiling(failCount);
+        if (ceiling == 0) {
+            return 0;
+        }
+        synchronized (random) {
+            return (long) (random.nextDouble() * ceiling);
+        }
+    }
+
+    /**
+     * Compute the reconnect delay of an account after a connectivity
+     * change.
+     * @param index int The position of the account in the reconnect order.
+     * @return long The delay in milliseconds.
+     */
+    public long getStagger(int index) {
+        synchronized (random) {
+            return index * STAGGER_DELAY +
+                   (long) (random.nextDouble() * STAGGER_DELAY);
+        }
+    }
+
+    /**
+     * Queue a login. It is submitted to the executor right away if a slot
+     * is free, otherwise once a running login finishes. Every submitted
+     * login has to call {@link #finished()} when it is done.
+     * @param task LoginTask The login to run.
+     */
+    public void submit(LoginTask task) {
+        synchronized (this) {
+            waiting.add(task);
+        }
+        startWaiting();
+    }
+
+    /**
+     * Drop a login that is still waiting for a slot.
+     * @param task LoginTask The login to drop.
+     * @return boolean True if the login was waiting and will never run.
+     */
+    public synchronized boolean remove(LoginTask task) {
+        return waiting.remove(task);
+    }
+
+    /**
+     * Release the slot of a finished login and submit the next waiting
+     * login.
+     */
+    public void finished() {
+        synchronized (this) {
+            running--;
+        }
+        startWaiting();
+    }
+
+    /**
+     * Submit waiting logins while slots are free. The tasks are submitted
+     * outside of the lock, so executor work never runs while holding it.
+     */
+    private void startWaiting() {
+        ArrayList<LoginTask> start = new ArrayList<LoginTask>(MAX_LOGINS);
+        synchronized (this) {
+            while (running < MAX_LOGINS && !waiting.isEmpty()) {
+                running++;
+                start.add(waiting.removeFirst());
+            }
+        }
+        for (LoginTask task : start) {
+            task.submit();
+        }
+    }
+
+    /**
+     * Add the login slot usage to a diagnostics bundle.
+     * @param diagnostics Bundle The target bundle.
+     */
+    public void addDiagnostics(Bundle diagnostics) {
+        diagnostics.putInt("reconnect.logins.max", MAX_LOGINS);
+        synchronized (this) {
+            diagnostics.putInt("reconnect.logins.running", running);
+            diagnostics.putInt("reconnect.logins.waiting", waiting.size());
+        }
+    }
+
+}
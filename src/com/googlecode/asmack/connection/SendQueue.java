@@ -0,0 +1,276 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.googlecode.asmack.Stanza;
+
+/**
+ * <p>Asynchronous outbound queue of a single account.</p>
+ * <p>Stanzas are queued by the (oneway) binder call and written in order
+ * by a drain task on the {@link ConnectionExecutor}. At most one drain task
+ * runs per queue, so a slow socket only blocks the drain task, never a
+ * binder thread.</p>
+ */
+public class SendQueue {
+
+    /**
+     * Logging tag of this class ("SendQueue").
+     */
+    private static final String TAG = SendQueue.class.getSimpleName();
+
+    /**
+     * Failure reason for unsendable stanzas ("failed").
+     */
+    public static final String FAILED = "failed";
+
+    /**
+     * Failure reason for stanzas rejected by a full queue ("overflow").
+     */
+    public static final String OVERFLOW = "overflow";
+
+    /**
+     * Maximum number of queued stanzas.
+     */
+    private static final int MAX_SIZE = 1000;
+
+    /**
+     * A queued stanza.
+     */
+    private static class Entry {
+
+        /**
+         * The stanza to send.
+         */
+        private final Stanza stanza;
+
+        /**
+         * The outcome receiver, or null.
+         */
+        private final ISendCallback callback;
+
+        /**
+         * Create a new queue entry.
+         * @param stanza The stanza to send.
+         * @param callback The outcome receiver, or null.
+         */
+        private Entry(Stanza stanza, ISendCallback callback) {
+            this.stanza = stanza;
+            this.callback = callback;
+        }
+
+    }
+
+    /**
+     * The queued stanzas.
+     */
+    private final ConcurrentLinkedQueue<Entry> queue =
+        new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * The number of queued stanzas.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * True while a drain task is scheduled or running.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean();
+
+    /**
+     * Number of written stanzas.
+     */
+    private final AtomicLong sent = new AtomicLong();
+
+    /**
+     * Number of failed or rejected stanzas.
+     */
+    private final AtomicLong failed = new AtomicLong();
+
+    /**
+     * The account jid, used as task name.
+     */
+    private final String jid;
+
+    /**
+     * The sending service.
+     */
+    private final XmppTransportService service;
+
+    /**
+     * The drain task.
+     */
+    private final Runnable drain = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    /**
+     * Create a new queue for an account.
+     * @param jid The bare account jid.
+     * @param service The sending service.
+     */
+    public SendQueue(String jid, XmppTransportService service) {
+        this.jid = jid;
+        this.service = service;
+    }
+
+    /**
+     * Queue a stanza, starting a drain task if needed.
+     * @param stanza The stanza to send.
+     * @param callback The outcome receiver, or null.
+     */
+    public void enqueue(Stanza stanza, ISendCallback callback) {
+        if (size.incrementAndGet() > MAX_SIZE) {
+            size.decrementAndGet();
+            failed.incrementAndGet();
+            notifyFailed(stanza, callback, OVERFLOW);
+            return;
+        }
+        queue.offer(new Entry(stanza, callback));
+        if (draining.compareAndSet(false, true)) {
+            try {
+                ConnectionExecutor.getInstance().submit("send-" + jid, drain);
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Send queue of " + jid + " rejected", e);
+                reject();
+            }
+        }
+    }
+
+    /**
+     * Fail all queued stanzas with {@link #OVERFLOW}, used if no drain task
+     * could be started.
+     */
+    private void reject() {
+        do {
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                size.decrementAndGet();
+                failed.incrementAndGet();
+                notifyFailed(entry.stanza, entry.callback, OVERFLOW);
+            }
+            draining.set(false);
+        } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Write all queued stanzas.
+     */
+    private void drain() {
+        do {
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                size.decrementAndGet();
+                boolean written;
+                try {
+                    written = service.send(entry.stanza);
+                } catch (RuntimeException e) {
+                    // must not end the drain task with draining still set
+                    Log.w(TAG, "Send failed", e);
+                    written = false;
+                }
+                if (!written) {
+                    failed.incrementAndGet();
+                    notifyFailed(entry.stanza, entry.callback, FAILED);
+                    continue;
+                }
+                sent.incrementAndGet();
+                if (entry.callback == null) {
+                    continue;
+                }
+                try {
+                    entry.callback.onSent(
+                        entry.stanza.getAttributeValue("id")
+                    );
+                } catch (RemoteException e) {
+                    Log.d(TAG, "Send callback died", e);
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Send callback failed", e);
+                }
+            }
+            draining.set(false);
+            // a stanza may have been queued after the last poll
+        } while (!queue.isEmpty() && draining.compareAndSet(false, true));
+    }
+
+    /**
+     * Report a failed stanza.
+     * @param stanza The stanza.
+     * @param callback The outcome receiver, or null.
+     * @param reason The failure reason.
+     */
+    private static void notifyFailed(
+        Stanza stanza,
+        ISendCallback callback,
+        String reason
+    ) {
+        if (callback == null) {
+            return;
+        }
+        try {
+            callback.onFailed(stanza.getAttributeValue("id"), reason);
+        } catch (RemoteException e) {
+            Log.d(TAG, "Send callback died", e);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Send callback failed", e);
+        }
+    }
+
+    /**
+     * Add the queue statistics.
+     * @param diagnostics The diagnostics bundle to fill.
+     */
+    public void addDiagnostics(Bundle diagnostics) {
+        diagnostics.putInt("send.queued", size.get());
+        diagnostics.putLong("send.async.sent", sent.get());
+        diagnostics.putLong("send.async.failed", failed.get());
+    }
+
+}
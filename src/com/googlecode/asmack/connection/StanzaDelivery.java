@@ -0,0 +1,246 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.util.ArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.googlecode.asmack.Stanza;
+
+/**
+ * <p>Delivery of subscribed stanzas through a {@link PendingIntent}.</p>
+ * <p>Unbatched deliveries send one intent per stanza ("stanza" extra).
+ * Batched deliveries collect stanzas until the batch window of the first
+ * stanza is over or the batch is full and send them as one intent
+ * ("stanzas" extra, in receive order). Batches are sent while holding the
+ * delivery lock, so a size triggered batch can't overtake a timer
+ * triggered one.</p>
+ */
+public class StanzaDelivery {
+
+    /**
+     * Log tag for this class (class.getSimpleName()).
+     */
+    private static final String TAG = StanzaDelivery.class.getSimpleName();
+
+    /**
+     * Maximum batch window in milliseconds.
+     */
+    public static final long MAX_DELAY = 1000;
+
+    /**
+     * Maximum number of stanzas per batch.
+     */
+    public static final int MAX_SIZE = 100;
+
+    /**
+     * Maximum estimated batch size in bytes, well below the binder
+     * transaction limit.
+     */
+    private static final int MAX_BYTES = 256 * 1024;
+
+    /**
+     * The subscription id.
+     */
+    private final String id;
+
+    /**
+     * The delivery target.
+     */
+    private final PendingIntent target;
+
+    /**
+     * The context used to send the pending intent.
+     */
+    private final Context context;
+
+    /**
+     * The scheduler of the batch timer.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * The batch window in milliseconds, 0 for unbatched delivery.
+     */
+    private final long delay;
+
+    /**
+     * The maximum number of stanzas per batch.
+     */
+    private final int size;
+
+    /**
+     * The stanzas of the current batch.
+     */
+    private final ArrayList<Stanza> batch = new ArrayList<Stanza>();
+
+    /**
+     * The estimated size of the current batch in bytes.
+     */
+    private int batchBytes;
+
+    /**
+     * The pending batch timer, or null.
+     */
+    private ScheduledFuture<?> timer;
+
+    /**
+     * True after the target was cancelled.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Create a new unbatched delivery.
+     * @param id The subscription id.
+     * @param target The delivery target.
+     * @param context The context used to send the pending intent.
+     */
+    public StanzaDelivery(String id, PendingIntent target, Context context) {
+        this(id, target, context, null, 0, 1);
+    }
+
+    /**
+     * Create a new batched delivery. Window and size are capped to
+     * {@link #MAX_DELAY} and {@link #MAX_SIZE}.
+     * @param id The subscription id.
+     * @param target The delivery target.
+     * @param context The context used to send the pending intent.
+     * @param scheduler The scheduler of the batch timer.
+     * @param delay The batch window in milliseconds.
+     * @param size The maximum number of stanzas per batch.
+     */
+    public StanzaDelivery(
+        String id,
+        PendingIntent target,
+        Context context,
+        ScheduledExecutorService scheduler,
+        long delay,
+        int size
+    ) {
+        this.id = id;
+        this.target = target;
+        this.context = context;
+        this.scheduler = scheduler;
+        this.delay = Math.max(0, Math.min(delay, MAX_DELAY));
+        this.size = Math.max(1, Math.min(size, MAX_SIZE));
+    }
+
+    /**
+     * Deliver a stanza, either right away or as part of the current batch.
+     * @param stanza The stanza.
+     */
+    public synchronized void deliver(Stanza stanza) {
+        if (cancelled) {
+            return;
+        }
+        if (delay == 0 || size == 1) {
+            Intent intent = new Intent();
+            intent.putExtra("stanza", stanza);
+            send(intent);
+            return;
+        }
+        batch.add(stanza);
+        batchBytes += 2 * stanza.getXml().length();
+        if (batch.size() >= size || batchBytes >= MAX_BYTES) {
+            flush();
+            return;
+        }
+        if (timer == null) {
+            timer = scheduler.schedule(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                },
+                delay,
+                TimeUnit.MILLISECONDS
+            );
+        }
+    }
+
+    /**
+     * Send the current batch.
+     */
+    public synchronized void flush() {
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        if (batch.size() == 0 || cancelled) {
+            return;
+        }
+        Intent intent = new Intent();
+        intent.putExtra("stanzas", batch.toArray(new Stanza[batch.size()]));
+        batch.clear();
+        batchBytes = 0;
+        send(intent);
+    }
+
+    /**
+     * Send an intent to the target, marking the delivery as cancelled if
+     * the target is gone.
+     * @param intent The intent carrying the stanza(s).
+     */
+    private void send(Intent intent) {
+        intent.putExtra("subscription", id);
+        try {
+            target.send(context, 0, intent);
+        } catch (PendingIntent.CanceledException e) {
+            Log.d(TAG, "Subscription " + id + " cancelled");
+            cancelled = true;
+            batch.clear();
+        }
+    }
+
+    /**
+     * Check if the target of this delivery was cancelled.
+     * @return True if the delivery ended.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+}
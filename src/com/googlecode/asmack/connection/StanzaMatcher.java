@@ -0,0 +1,322 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.googlecode.asmack.Attribute;
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.StanzaFilter;
+import com.googlecode.asmack.XMLUtils;
+import com.googlecode.asmack.XMPPUtils;
+
+/**
+ * <p>Index of stanza subscriptions. Every subscription pairs a
+ * {@link StanzaFilter} with a delivery target.</p>
+ * <p>Filters are compiled into an immutable index keyed by stanza name,
+ * rebuilt on every change, so matching needs no locks. Only subscriptions
+ * of the stanza name (plus name wildcards) are checked, the child element
+ * namespaces are parsed at most once per stanza and only if a candidate
+ * asks for them.</p>
+ * @param <T> The delivery target type.
+ */
+public class StanzaMatcher<T> {
+
+    /**
+     * A compiled subscription.
+     * @param <T> The delivery target type.
+     */
+    public static class Subscription<T> {
+
+        /**
+         * The subscription id.
+         */
+        private final String id;
+
+        /**
+         * The delivery target.
+         */
+        private final T target;
+
+        /**
+         * The root element name, or null.
+         */
+        private final String name;
+
+        /**
+         * The root element namespace, or null.
+         */
+        private final String namespace;
+
+        /**
+         * The child element namespace, or null.
+         */
+        private final String childNamespace;
+
+        /**
+         * The bare account jid, or null.
+         */
+        private final String account;
+
+        /**
+         * The required attribute names.
+         */
+        private final String[] attributeNames;
+
+        /**
+         * The required attribute values.
+         */
+        private final String[] attributeValues;
+
+        /**
+         * Compile a filter.
+         * @param id The subscription id.
+         * @param filter The filter.
+         * @param target The delivery target.
+         */
+        private Subscription(String id, StanzaFilter filter, T target) {
+            this.id = id;
+            this.target = target;
+            name = filter.getName();
+            namespace = filter.getNamespace();
+            childNamespace = filter.getChildNamespace();
+            account = filter.getAccount() == null ?
+                            null : XMPPUtils.getBareJid(filter.getAccount());
+            List<Attribute> attributes = filter.getAttributes();
+            attributeNames = new String[attributes.size()];
+            attributeValues = new String[attributes.size()];
+            for (int i = 0; i < attributeNames.length; i++) {
+                attributeNames[i] = attributes.get(i).getName();
+                attributeValues[i] = attributes.get(i).getValue();
+            }
+        }
+
+        /**
+         * Retrieve the subscription id.
+         * @return The subscription id.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Retrieve the delivery target.
+         * @return The delivery target.
+         */
+        public T getTarget() {
+            return target;
+        }
+
+    }
+
+    /**
+     * The subscriptions by id, guarded by this.
+     */
+    private final LinkedHashMap<String, Subscription<T>> subscriptions =
+        new LinkedHashMap<String, Subscription<T>>();
+
+    /**
+     * The compiled index: {{name} => {subscriptions}} pairs, the null key
+     * holds subscriptions for any name.
+     */
+    private volatile Map<String, List<Subscription<T>>> index =
+        Collections.emptyMap();
+
+    /**
+     * Add or replace a subscription.
+     * @param id The subscription id.
+     * @param filter The stanza filter.
+     * @param target The delivery target.
+     */
+    public synchronized void add(String id, StanzaFilter filter, T target) {
+        subscriptions.put(id, new Subscription<T>(id, filter, target));
+        compile();
+    }
+
+    /**
+     * Remove a subscription.
+     * @param id The subscription id.
+     * @return The delivery target of the subscription, or null.
+     */
+    public synchronized T remove(String id) {
+        Subscription<T> subscription = subscriptions.remove(id);
+        if (subscription == null) {
+            return null;
+        }
+        compile();
+        return subscription.getTarget();
+    }
+
+    /**
+     * Retrieve the number of subscriptions.
+     * @return The subscription count.
+     */
+    public synchronized int size() {
+        return subscriptions.size();
+    }
+
+    /**
+     * Rebuild the index.
+     */
+    private void compile() {
+        HashMap<String, List<Subscription<T>>> index =
+            new HashMap<String, List<Subscription<T>>>();
+        for (Subscription<T> subscription: subscriptions.values()) {
+            List<Subscription<T>> list = index.get(subscription.name);
+            if (list == null) {
+                list = new ArrayList<Subscription<T>>(2);
+                index.put(subscription.name, list);
+            }
+            list.add(subscription);
+        }
+        this.index = index;
+    }
+
+    /**
+     * Find all subscriptions matching a stanza.
+     * @param stanza The received stanza.
+     * @return The matching subscriptions, in subscription order per name.
+     */
+    public List<Subscription<T>> match(Stanza stanza) {
+        Map<String, List<Subscription<T>>> index = this.index;
+        if (index.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Subscription<T>> result = new ArrayList<Subscription<T>>(2);
+        Set<String> childNamespaces = null;
+        String account = stanza.getVia() == null ?
+                            null : XMPPUtils.getBareJid(stanza.getVia());
+        for (int pass = 0; pass < 2; pass++) {
+            List<Subscription<T>> candidates =
+                index.get(pass == 0 ? stanza.getName() : null);
+            if (candidates == null) {
+                continue;
+            }
+            for (Subscription<T> candidate: candidates) {
+                if (!matchesAttributes(candidate, stanza, account)) {
+                    continue;
+                }
+                if (candidate.childNamespace != null) {
+                    if (childNamespaces == null) {
+                        childNamespaces = getChildNamespaces(stanza);
+                    }
+                    if (!childNamespaces.contains(candidate.childNamespace)) {
+                        continue;
+                    }
+                }
+                result.add(candidate);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Check the namespace, account and attribute criteria of a
+     * subscription.
+     * @param subscription The subscription.
+     * @param stanza The stanza.
+     * @param account The bare account jid of the stanza.
+     * @return True if all criteria match.
+     */
+    private static boolean matchesAttributes(
+        Subscription<?> subscription,
+        Stanza stanza,
+        String account
+    ) {
+        if (subscription.namespace != null &&
+            !subscription.namespace.equals(stanza.getNamespace())) {
+            return false;
+        }
+        if (subscription.account != null &&
+            !subscription.account.equals(account)) {
+            return false;
+        }
+        for (int i = 0; i < subscription.attributeNames.length; i++) {
+            String value =
+                stanza.getAttributeValue(subscription.attributeNames[i]);
+            if (!subscription.attributeValues[i].equals(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parse the namespaces of all direct child elements of a stanza.
+     * @param stanza The stanza.
+     * @return The set of child element namespaces, empty on parse errors.
+     */
+    private static Set<String> getChildNamespaces(Stanza stanza) {
+        HashSet<String> result = new HashSet<String>();
+        try {
+            XmlPullParser parser = XMLUtils.getXMLPullParser();
+            parser.setInput(new StringReader(stanza.getXml()));
+            parser.nextTag();
+            int event = parser.next();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG &&
+                    parser.getDepth() == 2) {
+                    result.add(parser.getNamespace());
+                }
+                if (event == XmlPullParser.END_TAG &&
+                    parser.getDepth() == 1) {
+                    break;
+                }
+                event = parser.next();
+            }
+        } catch (XmlPullParserException e) {
+            /* malformed, use what we have */
+        } catch (IOException e) {
+            /* can't happen on strings */
+        }
+        return result;
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.nio.ByteBuffer;
+
+/**
+ * <p>Layout of the shared memory stanza ring, see {@link StanzaRingWriter}
+ * and {@link StanzaRingReader}.</p>
+ * <p>The ring starts with a {@link #HEADER_SIZE} byte header (magic,
+ * version, capacity and the head, reserve and oldest positions) followed by
+ * the data area. Positions are absolute byte offsets that only grow, a
+ * position maps to the data area modulo the capacity. Every record is an
+ * int payload length, a long sequence number and the encoded stanza, and
+ * may wrap around the end of the data area.</p>
+ * <p>The writer announces the end of the next record in the reserve field
+ * before writing it, and publishes it by advancing the head. A reader
+ * copied a record intact if reserve - position &lt;= capacity after the
+ * copy.</p>
+ */
+public abstract class StanzaRing {
+
+    /**
+     * Magic number of a stanza ring ("XRNG").
+     */
+    public static final int MAGIC = 0x58524e47;
+
+    /**
+     * The layout version.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Size of the ring header in bytes.
+     */
+    public static final int HEADER_SIZE = 64;
+
+    /**
+     * Offset of the magic number.
+     */
+    protected static final int MAGIC_OFFSET = 0;
+
+    /**
+     * Offset of the layout version.
+     */
+    protected static final int VERSION_OFFSET = 4;
+
+    /**
+     * Offset of the data area capacity.
+     */
+    protected static final int CAPACITY_OFFSET = 8;
+
+    /**
+     * Offset of the head position (end of the last published record).
+     */
+    protected static final int HEAD_OFFSET = 16;
+
+    /**
+     * Offset of the reserve position (end of the record being written).
+     */
+    protected static final int RESERVE_OFFSET = 24;
+
+    /**
+     * Offset of the position of the oldest intact record.
+     */
+    protected static final int OLDEST_OFFSET = 32;
+
+    /**
+     * Size of a record header (payload length and sequence number).
+     */
+    protected static final int RECORD_HEADER = 12;
+
+    /**
+     * Volatile field used as a memory barrier around accesses to the shared
+     * buffer.
+     */
+    private static volatile int barrier;
+
+    /**
+     * The shared buffer (header and data area).
+     */
+    protected final ByteBuffer buffer;
+
+    /**
+     * A private view of the buffer for bulk copies.
+     */
+    private final ByteBuffer view;
+
+    /**
+     * The capacity of the data area in bytes.
+     */
+    protected final int capacity;
+
+    /**
+     * Create a ring on top of a shared buffer.
+     * @param buffer The shared buffer.
+     * @param capacity The capacity of the data area in bytes.
+     */
+    protected StanzaRing(ByteBuffer buffer, int capacity) {
+        this.buffer = buffer;
+        this.view = buffer.duplicate();
+        this.capacity = capacity;
+    }
+
+    /**
+     * Retrieve the capacity of the data area.
+     * @return The capacity in bytes.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Order all previous writes to the shared buffer before all following
+     * writes.
+     */
+    protected static void storeBarrier() {
+        barrier = 0;
+    }
+
+    /**
+     * Order all previous reads of the shared buffer before all following
+     * reads.
+     * @return Ignored.
+     */
+    protected static int loadBarrier() {
+        return barrier;
+    }
+
+    /**
+     * Copy bytes into the data area, wrapping around at the end.
+     * @param position The absolute ring position.
+     * @param data The source bytes.
+     */
+    protected void put(long position, byte[] data) {
+        int offset = (int) (position % capacity);
+        int first = Math.min(data.length, capacity - offset);
+        view.position(HEADER_SIZE + offset);
+        view.put(data, 0, first);
+        if (first < data.length) {
+            view.position(HEADER_SIZE);
+            view.put(data, first, data.length - first);
+        }
+    }
+
+    /**
+     * Copy bytes out of the data area, wrapping around at the end.
+     * @param position The absolute ring position.
+     * @param data The target array.
+     */
+    protected void get(long position, byte[] data) {
+        int offset = (int) (position % capacity);
+        int first = Math.min(data.length, capacity - offset);
+        view.position(HEADER_SIZE + offset);
+        view.get(data, 0, first);
+        if (first < data.length) {
+            view.position(HEADER_SIZE);
+            view.get(data, first, data.length - first);
+        }
+    }
+
+}
@@ -37,38 +37,40 @@
 
 package com.googlecode.asmack.connection;
 
-import android.content.BroadcastReceiver;
-import android.content.Context;
-import android.content.Intent;
+import com.googlecode.asmack.XmppException;
 
 /**
- * A broadcast event for the action intent, used to trigger ping/presence
- * notifications from the transport service.
+ * Signals stanzas that a {@link StanzaRingReader} lost because the writer
+ * overwrote them (slow reader) or because they didn't fit into the ring.
+ * The reader continues with the oldest available stanza.
  */
-public class KeepaliveActionIntentReceiver extends BroadcastReceiver {
+public class StanzaRingOverrunException extends XmppException {
 
     /**
-     * The used transport service.
+     * SerialVersionUID as required by serializable.
      */
-    private XmppTransportService service;
+    private static final long serialVersionUID = 1L;
 
     /**
-     * Create a new reveicer that triggers ping on the given service.
-     * @param service The transport service to ping.
+     * The number of lost stanzas.
      */
-    public KeepaliveActionIntentReceiver(XmppTransportService service) {
-        super();
-        this.service = service;
+    private final long lost;
+
+    /**
+     * Create a new overrun signal.
+     * @param lost The number of lost stanzas.
+     */
+    public StanzaRingOverrunException(long lost) {
+        super("Stanza ring overrun, " + lost + " stanzas lost");
+        this.lost = lost;
     }
 
     /**
-     * Call ping on every time tick.
-     * @param context Ignored, the context of the Intent.
-     * @param intent Ignored, the initial intent.
+     * Retrieve the number of lost stanzas.
+     * @return The number of lost stanzas.
      */
-    @Override
-    public void onReceive(Context context, Intent intent) {
-        service.ping();
+    public long getLost() {
+        return lost;
     }
 
 }
@@ -0,0 +1,260 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+
+import com.googlecode.asmack.Attribute;
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XmppException;
+import com.googlecode.asmack.XmppMalformedException;
+
+/**
+ * <p>Client side of a shared memory stanza ring (see {@link StanzaRing}).
+ * The reader maps the ring read only and never takes a lock, the writer
+ * is never slowed down by it.</p>
+ * <p>Typical use: call {@link #next()} until it returns null, then arm the
+ * doorbell with {@link #getPosition()} (IXmppTransportService.armStanzaRing)
+ * and wait for the ring. A reader is meant for a single thread.</p>
+ */
+public class StanzaRingReader extends StanzaRing {
+
+    /**
+     * The position of the next record.
+     */
+    private long position;
+
+    /**
+     * The expected sequence number of the next record.
+     */
+    private long sequence;
+
+    /**
+     * A valid stanza that followed a sequence gap, returned by the next
+     * call to {@link #next()}.
+     */
+    private Stanza pending;
+
+    /**
+     * Create a new reader on a mapped ring.
+     * @param buffer The mapped ring.
+     * @throws XmppException If the buffer isn't a stanza ring.
+     */
+    public StanzaRingReader(ByteBuffer buffer) throws XmppException {
+        super(buffer, buffer.getInt(CAPACITY_OFFSET));
+        if (buffer.getInt(MAGIC_OFFSET) != MAGIC ||
+            buffer.getInt(VERSION_OFFSET) != VERSION ||
+            capacity <= 0 ||
+            buffer.capacity() < HEADER_SIZE + capacity) {
+            throw new XmppMalformedException("Not a stanza ring");
+        }
+    }
+
+    /**
+     * Map a ring through a descriptor, e.g. the descriptor returned by
+     * IXmppTransportService.openStanzaRing.
+     * @param descriptor The ring descriptor.
+     * @return A new reader.
+     * @throws IOException If the descriptor can't be mapped.
+     * @throws XmppException If the descriptor isn't a stanza ring.
+     */
+    public static StanzaRingReader open(FileDescriptor descriptor)
+        throws IOException, XmppException
+    {
+        // the mapping stays valid, the descriptor is closed by its owner
+        FileChannel channel = new FileInputStream(descriptor).getChannel();
+        return new StanzaRingReader(channel.map(
+            FileChannel.MapMode.READ_ONLY,
+            0,
+            channel.size()
+        ));
+    }
+
+    /**
+     * Map a ring file.
+     * @param file The ring file.
+     * @return A new reader.
+     * @throws IOException If the file can't be mapped.
+     * @throws XmppException If the file isn't a stanza ring.
+     */
+    public static StanzaRingReader open(File file)
+        throws IOException, XmppException
+    {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            return open(in.getFD());
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Retrieve the position of the reader, used to arm the doorbell.
+     * @return The position of the next record.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Read the next stanza.
+     * @return The next stanza, or null if the reader caught up.
+     * @throws StanzaRingOverrunException If stanzas were lost. The reader
+     *                                    continues with the oldest
+     *                                    available stanza.
+     */
+    public Stanza next() throws StanzaRingOverrunException {
+        if (pending != null) {
+            Stanza stanza = pending;
+            pending = null;
+            return stanza;
+        }
+        long head = buffer.getLong(HEAD_OFFSET);
+        loadBarrier();
+        if (position >= head) {
+            return null;
+        }
+        if (buffer.getLong(RESERVE_OFFSET) - position > capacity) {
+            throw resync();
+        }
+        byte[] header = new byte[RECORD_HEADER];
+        get(position, header);
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        int length = headerBuffer.getInt();
+        long recordSequence = headerBuffer.getLong();
+        if (length < 0 || length > capacity - RECORD_HEADER) {
+            throw resync();
+        }
+        byte[] payload = new byte[length];
+        get(position + RECORD_HEADER, payload);
+        loadBarrier();
+        if (buffer.getLong(RESERVE_OFFSET) - position > capacity) {
+            throw resync();
+        }
+        position += RECORD_HEADER + length;
+        long lost = recordSequence - sequence;
+        sequence = recordSequence + 1;
+        Stanza stanza = length == 0 ? null : decode(payload);
+        if (stanza == null) {
+            // oversized or undecodable stanza
+            lost++;
+        }
+        if (lost > 0) {
+            pending = stanza;
+            throw new StanzaRingOverrunException(lost);
+        }
+        return stanza;
+    }
+
+    /**
+     * Move the reader to the oldest intact record after it was overrun.
+     * @return The overrun signal.
+     */
+    private StanzaRingOverrunException resync() {
+        byte[] header = new byte[RECORD_HEADER];
+        while (true) {
+            long oldest = buffer.getLong(OLDEST_OFFSET);
+            loadBarrier();
+            get(oldest, header);
+            loadBarrier();
+            if (buffer.getLong(RESERVE_OFFSET) - oldest > capacity) {
+                // overwritten while reading, try again
+                continue;
+            }
+            long oldestSequence = ByteBuffer.wrap(header).getLong(4);
+            long lost = Math.max(0, oldestSequence - sequence);
+            position = oldest;
+            sequence = oldestSequence;
+            return new StanzaRingOverrunException(lost);
+        }
+    }
+
+    /**
+     * Decode a stanza encoded by the writer.
+     * @param payload The encoded stanza.
+     * @return The stanza, or null if the payload is malformed.
+     */
+    private static Stanza decode(byte[] payload) {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(payload);
+            String via = readString(in);
+            String name = readString(in);
+            String namespace = readString(in);
+            int count = in.getInt();
+            ArrayList<Attribute> attributes = new ArrayList<Attribute>(count);
+            for (int i = 0; i < count; i++) {
+                attributes.add(new Attribute(
+                    readString(in),
+                    readString(in),
+                    readString(in)
+                ));
+            }
+            String xml = readString(in);
+            return new Stanza(name, namespace, via, xml, attributes);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read a length prefixed utf-8 string.
+     * @param in The source buffer.
+     * @return The string, or null.
+     */
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+
+}
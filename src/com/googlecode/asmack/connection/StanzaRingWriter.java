@@ -0,0 +1,335 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+import java.util.List;
+
+import android.os.RemoteException;
+import android.util.Log;
+
+import com.googlecode.asmack.Attribute;
+import com.googlecode.asmack.Stanza;
+
+/**
+ * <p>Service side of a shared memory stanza ring (see {@link StanzaRing}).
+ * The writer never waits for the reader: old records are overwritten and
+ * a slow reader gets a {@link StanzaRingOverrunException}.</p>
+ * <p>The ring is an mmap'd file. The service unlinks the file once the
+ * client descriptor is opened, the mapping is shared through the
+ * descriptor only.</p>
+ * <p>A reader that caught up arms the doorbell (see {@link #arm(long)}),
+ * the next write rings it once.</p>
+ */
+public class StanzaRingWriter extends StanzaRing {
+
+    /**
+     * Log tag for this class (class.getSimpleName()).
+     */
+    private static final String TAG = StanzaRingWriter.class.getSimpleName();
+
+    /**
+     * Minimum data area capacity in bytes.
+     */
+    public static final int MIN_CAPACITY = 64 * 1024;
+
+    /**
+     * Maximum data area capacity in bytes.
+     */
+    public static final int MAX_CAPACITY = 16 * 1024 * 1024;
+
+    /**
+     * The subscription id of the ring.
+     */
+    private final String id;
+
+    /**
+     * The backing file.
+     */
+    private final RandomAccessFile file;
+
+    /**
+     * The doorbell of the reader, or null.
+     */
+    private final IStanzaDoorbell doorbell;
+
+    /**
+     * The start positions of all intact records, oldest first.
+     */
+    private final LinkedList<Long> records = new LinkedList<Long>();
+
+    /**
+     * The head position.
+     */
+    private long head;
+
+    /**
+     * The sequence number of the next record.
+     */
+    private long sequence;
+
+    /**
+     * True if the reader waits for the doorbell.
+     */
+    private boolean armed;
+
+    /**
+     * True after {@link #close()}.
+     */
+    private boolean closed;
+
+    /**
+     * Create a new writer on a mapped file.
+     * @param id The subscription id.
+     * @param file The backing file.
+     * @param buffer The mapped buffer.
+     * @param capacity The data area capacity.
+     * @param doorbell The reader doorbell, or null.
+     */
+    private StanzaRingWriter(
+        String id,
+        RandomAccessFile file,
+        ByteBuffer buffer,
+        int capacity,
+        IStanzaDoorbell doorbell
+    ) {
+        super(buffer, capacity);
+        this.id = id;
+        this.file = file;
+        this.doorbell = doorbell;
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putLong(HEAD_OFFSET, 0);
+        buffer.putLong(RESERVE_OFFSET, 0);
+        buffer.putLong(OLDEST_OFFSET, 0);
+    }
+
+    /**
+     * Create a new ring in a file. The capacity is clamped to
+     * [{@link #MIN_CAPACITY}, {@link #MAX_CAPACITY}].
+     * @param id The subscription id.
+     * @param path The file to create.
+     * @param capacity The requested data area capacity in bytes.
+     * @param doorbell The reader doorbell, or null.
+     * @return The new writer.
+     * @throws IOException If the file can't be mapped.
+     */
+    public static StanzaRingWriter create(
+        String id,
+        File path,
+        int capacity,
+        IStanzaDoorbell doorbell
+    ) throws IOException {
+        capacity = Math.max(MIN_CAPACITY, Math.min(capacity, MAX_CAPACITY));
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(HEADER_SIZE + capacity);
+            ByteBuffer buffer = file.getChannel().map(
+                FileChannel.MapMode.READ_WRITE,
+                0,
+                HEADER_SIZE + capacity
+            );
+            return new StanzaRingWriter(id, file, buffer, capacity, doorbell);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Retrieve the subscription id of this ring.
+     * @return The subscription id.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Append a stanza. Stanzas larger than the ring are replaced by an
+     * empty record, which the reader reports as lost.
+     * @param stanza The stanza.
+     */
+    public synchronized void write(Stanza stanza) {
+        if (closed) {
+            return;
+        }
+        byte[] payload = encode(stanza);
+        if (RECORD_HEADER + payload.length > capacity) {
+            payload = new byte[0];
+        }
+        int size = RECORD_HEADER + payload.length;
+        long end = head + size;
+        while (records.size() > 0 &&
+               records.getFirst().longValue() < end - capacity) {
+            records.removeFirst();
+        }
+        buffer.putLong(RESERVE_OFFSET, end);
+        storeBarrier();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        header.putInt(payload.length);
+        header.putLong(sequence++);
+        put(head, header.array());
+        put(head + RECORD_HEADER, payload);
+        records.addLast(head);
+        storeBarrier();
+        buffer.putLong(OLDEST_OFFSET, records.getFirst().longValue());
+        head = end;
+        buffer.putLong(HEAD_OFFSET, head);
+        if (armed) {
+            armed = false;
+            ring();
+        }
+    }
+
+    /**
+     * Arm the doorbell. It rings right away if records after the reader
+     * position are available.
+     * @param position The position of the reader.
+     */
+    public synchronized void arm(long position) {
+        if (closed) {
+            return;
+        }
+        if (head > position) {
+            ring();
+            return;
+        }
+        armed = true;
+    }
+
+    /**
+     * Ring the doorbell, closing the ring if the reader is gone.
+     */
+    private void ring() {
+        if (doorbell == null) {
+            return;
+        }
+        try {
+            doorbell.ring(head);
+        } catch (RemoteException e) {
+            Log.d(TAG, "Doorbell of " + id + " is gone");
+            close();
+        }
+    }
+
+    /**
+     * Check if the ring was closed.
+     * @return True after {@link #close()}.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the ring. The reader keeps its mapping.
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            file.close();
+        } catch (IOException e) {
+            /* IGNORE */
+        }
+    }
+
+    /**
+     * Encode a stanza: via, name, namespace, the attributes (count and
+     * name/namespace/value triples) and the xml, each string as int length
+     * (-1 for null) and utf-8 bytes.
+     * @param stanza The stanza.
+     * @return The encoded stanza.
+     */
+    static byte[] encode(Stanza stanza) {
+        List<Attribute> attributes = stanza.getAttributes();
+        byte[][] strings = new byte[4 + 3 * attributes.size()][];
+        strings[0] = utf8(stanza.getVia());
+        strings[1] = utf8(stanza.getName());
+        strings[2] = utf8(stanza.getNamespace());
+        int index = 3;
+        for (Attribute attribute: attributes) {
+            strings[index++] = utf8(attribute.getName());
+            strings[index++] = utf8(attribute.getNamespace());
+            strings[index++] = utf8(attribute.getValue());
+        }
+        strings[index] = utf8(stanza.getXml());
+        int size = 4;
+        for (byte[] string: strings) {
+            size += 4 + (string == null ? 0 : string.length);
+        }
+        ByteBuffer result = ByteBuffer.allocate(size);
+        for (int i = 0; i < strings.length; i++) {
+            if (i == 3) {
+                result.putInt(attributes.size());
+            }
+            if (strings[i] == null) {
+                result.putInt(-1);
+            } else {
+                result.putInt(strings[i].length);
+                result.put(strings[i]);
+            }
+        }
+        return result.array();
+    }
+
+    /**
+     * Encode a string as utf-8.
+     * @param string The string, or null.
+     * @return The utf-8 bytes, or null.
+     */
+    private static byte[] utf8(String string) {
+        if (string == null) {
+            return null;
+        }
+        try {
+            return string.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 not supported", e);
+        }
+    }
+
+}
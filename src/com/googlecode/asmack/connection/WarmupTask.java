@@ -0,0 +1,114 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.util.Log;
+
+import com.googlecode.asmack.connection.impl.SSLContextCache;
+import com.googlecode.asmack.connection.impl.UnTrustManager;
+import com.googlecode.asmack.dns.Client;
+
+/**
+ * A task to initialize the shared crypto and tls singletons at service
+ * start, running on the {@link ConnectionExecutor}. This runs in parallel
+ * to the first DNS lookups and logins, moving the SSLContext creation,
+ * random seeding and class loading out of the first connection attempt.
+ */
+public class WarmupTask implements Runnable {
+
+    /**
+     * Log tag for this class (class.getSimpleName()).
+     */
+    private static final String TAG = WarmupTask.class.getSimpleName();
+
+    /**
+     * Classes to be loaded and initialized during warmup.
+     */
+    private static final String CLASSES[] = new String[]{
+        "com.googlecode.asmack.XMLUtils",
+        "com.googlecode.asmack.connection.impl.SASLEngine",
+        "com.novell.sasl.client.DigestMD5SaslClient",
+        "org.apache.qpid.management.common.sasl.PlainSaslClient",
+        "org.apache.harmony.javax.security.sasl.Sasl"
+    };
+
+    /**
+     * Submit the warmup to the {@link ConnectionExecutor}. The warmup is
+     * skipped if the executor is saturated.
+     */
+    public static void start() {
+        try {
+            ConnectionExecutor.getInstance().submit(
+                "warmup",
+                new WarmupTask()
+            );
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Warmup skipped", e);
+        }
+    }
+
+    /**
+     * Initialize the shared singletons. Failures are logged and ignored, the
+     * first connection will simply pay the initialization costs.
+     */
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        Client.getSharedRandom();
+        try {
+            SSLContextCache.getContext(new UnTrustManager());
+        } catch (NoSuchAlgorithmException e) {
+            Log.w(TAG, "Can't initialize tls", e);
+        } catch (KeyManagementException e) {
+            Log.w(TAG, "Can't initialize tls", e);
+        }
+        for (String clazz: CLASSES) {
+            try {
+                Class.forName(clazz);
+            } catch (ClassNotFoundException e) {
+                Log.w(TAG, "Can't load " + clazz, e);
+            }
+        }
+        Log.d(TAG, "Warmup took " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+}
@@ -37,14 +37,24 @@
 
 package com.googlecode.asmack.connection;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.concurrent.Executor;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.OnAccountsUpdateListener;
+import android.app.PendingIntent;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.ContentProviderClient;
@@ -52,16 +62,20 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
+import android.os.Bundle;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.provider.ContactsContract;
 import android.util.Log;
 
 import com.googlecode.asmack.Attribute;
 import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.StanzaFilter;
 import com.googlecode.asmack.StanzaSink;
 import com.googlecode.asmack.XMPPUtils;
 import com.googlecode.asmack.XmppAccount;
+import com.googlecode.asmack.XmppAccount.Keepalive;
 import com.googlecode.asmack.XmppException;
 import com.googlecode.asmack.XmppIdentity;
 import com.googlecode.asmack.connection.AccountConnection.State;
@@ -82,24 +96,6 @@ public class XmppTransportService
                ConnectionStateChangeListener
 {
 
-    /**
-     * Reconnect timing.
-     */
-    private static final long RECONNECT_TIMES[] = new long[]{
-         0*60*1000, //    0 fails
-         0*60*1000, //    1 fail
-         1*60*1000, //    2 fails
-         2*60*1000, //    3 fails
-         3*60*1000, //    4 fails
-         4*60*1000, //    5 fails
-         5*60*1000, //    6 fails
-         6*60*1000, //    7 fails
-         7*60*1000, //    8 fails
-         8*60*1000, //    9 fails
-         9*60*1000, //   10 fails
-        10*60*1000  // > 10 fails
-    };
-
     /**
      * Cache of verification strings for presence.
      */
@@ -129,9 +125,54 @@ public class XmppTransportService
     private static final String ID = Integer.toHexString((int)(255.999 * Math.random())).toLowerCase();
 
     /**
-     * Executor for background presence and keepalive.
+     * Counter for subscription ids.
+     */
+    private static final AtomicInteger SUBSCRIPTION_COUNT =
+        new AtomicInteger();
+
+    /**
+     * Time a replaced connection stays open after a migration, in
+     * milliseconds.
+     */
+    private static final long DRAIN_TIME = 10 * 1000;
+
+    /**
+     * Scheduler for the per account keepalive, failure and reconnect
+     * deadlines.
+     */
+    private static final ScheduledExecutorService SCHEDULER =
+        Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "asmack-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * Number of keepalive and presence sender threads.
+     */
+    private static final int SENDER_THREADS = 4;
+
+    /**
+     * Small pool for keepalive pings, probes and presence sends. These are
+     * short sends with deadlines, they must not wait behind other
+     * connection work.
      */
-    private static final Executor pingExecutor;
+    private static final ExecutorService SENDER =
+        Executors.newFixedThreadPool(SENDER_THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(
+                    runnable,
+                    "asmack-sender-" + count.incrementAndGet()
+                );
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
 
     /**
      * Intent name for xmpp connection state changes.
@@ -140,20 +181,15 @@ public class XmppTransportService
                                     "com.googlecode.asmack.intent.XMPP.STATE";
 
     /**
-     * Pingcount for background ping ids.
+     * Time to wait for any data after the keepalive interval before the
+     * connection is considered dead.
      */
-    private static int pingCount;
-
-    static {
-        // Note: I hate static blocks
-        int threads = Runtime.getRuntime().availableProcessors() * 3;
-        pingExecutor = Executors.newFixedThreadPool(threads);
-    }
+    private static final long KEEPALIVE_TIMEOUT = 2 * 60 * 1000;
 
     /**
-     * Map of {{bare jid} => {AccountConnection}} pairs.
+     * All account connections, indexed by bare and full jid.
      */
-    private HashMap<String, AccountConnection> connections = new HashMap<String, AccountConnection>();
+    private final ConnectionRegistry connections = new ConnectionRegistry();
 
     /**
      * Binder for remote connection access.
@@ -203,6 +239,18 @@ public class XmppTransportService
                 return XmppTransportService.this.send(stanza);
             }
 
+            /**
+             * Queue a stanza for sending.
+             * @param stanza The stanza to send.
+             * @param callback The outcome receiver, or null.
+             */
+            @Override
+            public void sendAsync(Stanza stanza, ISendCallback callback)
+                throws RemoteException
+            {
+                XmppTransportService.this.sendAsync(stanza, callback);
+            }
+
             /**
              * Send a single stanza through all connections, altering from
              * to be the resource address.
@@ -227,6 +275,43 @@ public class XmppTransportService
                 XmppTransportService.this.sendFromAllAccounts(stanza);
             }
 
+            /**
+             * Send an iq request and track the reply.
+             * @param stanza The iq request.
+             * @param timeout The timeout in milliseconds, 0 for the default.
+             * @param callback The outcome receiver.
+             * @return The request id, or null if the request wasn't sent.
+             */
+            @Override
+            public String sendIq(
+                Stanza stanza,
+                long timeout,
+                final IIqCallback callback
+            ) throws RemoteException {
+                return XmppTransportService.this.sendIq(
+                    stanza,
+                    timeout,
+                    new IqTracker.Callback() {
+                        @Override
+                        public void onResponse(Stanza response) {
+                            try {
+                                callback.onResponse(response);
+                            } catch (RemoteException e) {
+                                Log.d(TAG, "Iq callback died", e);
+                            }
+                        }
+                        @Override
+                        public void onFailure(String id, String reason) {
+                            try {
+                                callback.onFailure(id, reason);
+                            } catch (RemoteException e) {
+                                Log.d(TAG, "Iq callback died", e);
+                            }
+                        }
+                    }
+                );
+            }
+
             /**
              * Retrieve the full resource jid by bare jid.
              * @param bare The bare user jid.
@@ -238,8 +323,8 @@ public class XmppTransportService
             }
 
             /**
-             * Enable a new feature for a given jid. A new presence will be
-             * send with the next tick (max. 60s).
+             * Enable a new feature for a given jid. A new presence is sent
+             * right away.
              * @param jid The jid to enhance
              * @param feature The new feature.
              */
@@ -253,11 +338,12 @@ public class XmppTransportService
                     null
                 );
                 JID_VERIFICATION_CACHE.remove(jid);
+                announcePresence();
             }
 
             /**
-             * Enable a feature for all xmpp connections. New features will
-             * be announced with the next time tick.
+             * Enable a feature for all xmpp connections. New features are
+             * announced right away.
              * @param feature The feature to be announced.
              */
             @Override
@@ -268,11 +354,12 @@ public class XmppTransportService
                     null
                 );
                 JID_VERIFICATION_CACHE.clear();
+                announcePresence();
             }
 
             /**
-             * Add an identity to a given xmpp connection. The identity will
-             * be announced with the next time tick.
+             * Add an identity to a given xmpp connection. The identity is
+             * announced right away.
              * @param jid The user jid.
              * @param identity The new xmpp identity.
              */
@@ -286,11 +373,12 @@ public class XmppTransportService
                     null
                 );
                 JID_VERIFICATION_CACHE.remove(jid);
+                announcePresence();
             }
 
             /**
-             * Add a new identity to all xmpp accounts. The identity will be
-             * announced during the next time tick.
+             * Add a new identity to all xmpp accounts. The identity is
+             * announced right away.
              * @param identity The new identity.
              */
             @Override
@@ -302,6 +390,7 @@ public class XmppTransportService
                     null
                 );
                 JID_VERIFICATION_CACHE.clear();
+                announcePresence();
             }
 
             /**
@@ -315,7 +404,7 @@ public class XmppTransportService
                 boolean connected
             ) throws RemoteException {
                 ArrayList<String> jids = new ArrayList<String>();
-                for (AccountConnection state: connections.values()) {
+                for (AccountConnection state: connections.getAll()) {
                     if (connected && state.getCurrentState() !=
                         AccountConnection.State.Connected) {
                         continue;
@@ -336,7 +425,7 @@ public class XmppTransportService
                 boolean connected
             ) throws RemoteException {
                 ArrayList<String> resources = new ArrayList<String>();
-                for (AccountConnection state: connections.values()) {
+                for (AccountConnection state: connections.getAll()) {
                     if (state.getCurrentState() !=
                         AccountConnection.State.Connected) {
                         continue;
@@ -349,6 +438,154 @@ public class XmppTransportService
                 return resources.toArray(new String[resources.size()]);
             }
 
+            /**
+             * Retrieve diagnostic values for a given account.
+             * @param jid The bare or full account jid.
+             * @return A bundle of diagnostic values.
+             */
+            @Override
+            public Bundle getDiagnostics(String jid) throws RemoteException {
+                return XmppTransportService.this.getDiagnostics(jid);
+            }
+
+            /**
+             * Retrieve the quality score of an account connection.
+             * @param jid The bare or full account jid.
+             * @return The quality between 0 and 100, -1 if unknown.
+             */
+            @Override
+            public int getConnectionQuality(String jid)
+                throws RemoteException
+            {
+                return XmppTransportService.this.getConnectionQuality(jid);
+            }
+
+            /**
+             * Subscribe to inbound stanzas matching a filter.
+             * @param filter The stanza filter.
+             * @param target The delivery target.
+             * @return The subscription id.
+             */
+            @Override
+            public String subscribe(StanzaFilter filter, PendingIntent target)
+                throws RemoteException
+            {
+                return XmppTransportService.this.subscribe(filter, target);
+            }
+
+            /**
+             * Subscribe to batches of inbound stanzas matching a filter.
+             * @param filter The stanza filter.
+             * @param target The delivery target.
+             * @param delay The maximum delay of a stanza in milliseconds.
+             * @param size The maximum number of stanzas per batch.
+             * @return The subscription id.
+             */
+            @Override
+            public String subscribeBatched(
+                StanzaFilter filter,
+                PendingIntent target,
+                long delay,
+                int size
+            ) throws RemoteException {
+                return XmppTransportService.this.subscribeBatched(
+                    filter,
+                    target,
+                    delay,
+                    size
+                );
+            }
+
+            /**
+             * Cancel a stanza subscription.
+             * @param id The subscription id.
+             */
+            @Override
+            public void unsubscribe(String id) throws RemoteException {
+                XmppTransportService.this.unsubscribe(id);
+            }
+
+            /**
+             * Register a listener for all received stanzas.
+             * @param listener The stanza listener.
+             */
+            @Override
+            public void registerListener(IStanzaListener listener)
+                throws RemoteException
+            {
+                XmppTransportService.this.registerListener(
+                    listener,
+                    new StanzaFilter()
+                );
+            }
+
+            /**
+             * Register a listener for stanzas matching a filter.
+             * @param listener The stanza listener.
+             * @param filter The stanza filter.
+             */
+            @Override
+            public void registerFilteredListener(
+                IStanzaListener listener,
+                StanzaFilter filter
+            ) throws RemoteException {
+                XmppTransportService.this.registerListener(listener, filter);
+            }
+
+            /**
+             * Remove a stanza listener.
+             * @param listener The stanza listener.
+             */
+            @Override
+            public void unregisterListener(IStanzaListener listener)
+                throws RemoteException
+            {
+                XmppTransportService.this.unregisterListener(listener);
+            }
+
+            /**
+             * Open a shared memory stanza ring.
+             * @param capacity The ring capacity in bytes.
+             * @param filter The stanza filter.
+             * @param doorbell The ring doorbell.
+             * @return The read only ring descriptor, or null.
+             */
+            @Override
+            public ParcelFileDescriptor openStanzaRing(
+                int capacity,
+                StanzaFilter filter,
+                IStanzaDoorbell doorbell
+            ) throws RemoteException {
+                return XmppTransportService.this.openStanzaRing(
+                    capacity,
+                    filter,
+                    doorbell
+                );
+            }
+
+            /**
+             * Arm the doorbell of a stanza ring.
+             * @param doorbell The ring doorbell.
+             * @param position The reader position.
+             */
+            @Override
+            public void armStanzaRing(IStanzaDoorbell doorbell, long position)
+                throws RemoteException
+            {
+                XmppTransportService.this.armStanzaRing(doorbell, position);
+            }
+
+            /**
+             * Close a stanza ring.
+             * @param doorbell The ring doorbell.
+             */
+            @Override
+            public void closeStanzaRing(IStanzaDoorbell doorbell)
+                throws RemoteException
+            {
+                XmppTransportService.this.closeStanzaRing(doorbell);
+            }
+
         };
 
     /**
@@ -366,13 +603,96 @@ public class XmppTransportService
      */
     private AccountManager accountManager;
 
+    /**
+     * The stanza subscriptions of bound clients.
+     */
+    private final StanzaMatcher<StanzaDelivery> subscriptions =
+        new StanzaMatcher<StanzaDelivery>();
+
+    /**
+     * The binder stanza listeners of bound clients.
+     */
+    private final StanzaMatcher<IStanzaListener> listeners =
+        new StanzaMatcher<IStanzaListener>();
+
+    /**
+     * Map of {{listener binder} => {listener id}} pairs.
+     */
+    private final HashMap<IBinder, String> listenerIds =
+        new HashMap<IBinder, String>();
+
+    /**
+     * Map of {{listener binder} => {death recipient}} pairs, guarded by
+     * listenerIds.
+     */
+    private final HashMap<IBinder, IBinder.DeathRecipient> listenerDeaths =
+        new HashMap<IBinder, IBinder.DeathRecipient>();
+
+    /**
+     * The shared memory stanza rings of bound clients.
+     */
+    private final StanzaMatcher<StanzaRingWriter> rings =
+        new StanzaMatcher<StanzaRingWriter>();
+
+    /**
+     * Map of {{doorbell binder} => {ring writer}} pairs.
+     */
+    private final HashMap<IBinder, StanzaRingWriter> ringWriters =
+        new HashMap<IBinder, StanzaRingWriter>();
+
+    /**
+     * Map of {{doorbell binder} => {death recipient}} pairs, guarded by
+     * ringWriters.
+     */
+    private final HashMap<IBinder, IBinder.DeathRecipient> ringDeaths =
+        new HashMap<IBinder, IBinder.DeathRecipient>();
+
+    /**
+     * Map of {{bare jid} => {SendQueue}} pairs of asynchronous sends.
+     */
+    private final ConcurrentHashMap<String, SendQueue> sendQueues =
+        new ConcurrentHashMap<String, SendQueue>();
+
+    /**
+     * Tracker of outgoing iq requests.
+     */
+    private final IqTracker iqTracker = new IqTracker(SCHEDULER);
+
+    /**
+     * Number of stanza broadcasts.
+     */
+    private final AtomicLong broadcastCount = new AtomicLong();
+
+    /**
+     * Total time spent sending stanza broadcasts, in nanoseconds.
+     */
+    private final AtomicLong broadcastNanos = new AtomicLong();
+
+    /**
+     * Number of stanzas pushed to binder listeners.
+     */
+    private final AtomicLong listenerCount = new AtomicLong();
+
+    /**
+     * Total time spent in binder listener calls, in nanoseconds.
+     */
+    private final AtomicLong listenerNanos = new AtomicLong();
+
+    /**
+     * The adaptive keepalive interval controller.
+     */
+    private KeepaliveController keepalive;
+
     /**
      * Initialize the xmpp service, binding all required receivers.
      */
     @Override
     public void onCreate() {
         super.onCreate();
+        // initialize tls and crypto in parallel to the first logins
+        WarmupTask.start();
         accountManager = AccountManager.get(this);
+        keepalive = new KeepaliveController(this);
 
         ContentProviderClient provider = getContentResolver()
                 .acquireContentProviderClient(ContactsContract.AUTHORITY_URI);
@@ -384,9 +704,6 @@ public class XmppTransportService
         receiver = new DiscoReceiver();
         registerReceiver(receiver, new IntentFilter(XmppTransportService.XMPP_STANZA_INTENT));
 
-        receiver = new KeepaliveActionIntentReceiver(this);;
-        registerReceiver(receiver, new IntentFilter(Intent.ACTION_TIME_TICK));
-
         receiver = new SendStanzaReceiver(this);
         registerReceiver(receiver, new IntentFilter(XMPP_STANZA_SEND_INTENT));
 
@@ -418,12 +735,38 @@ public class XmppTransportService
             XmppAccount xmppAccount = new XmppAccount();
             xmppAccount.setJid(username);
             xmppAccount.setPassword(password);
-            xmppAccount.setConnection("xmpp:" + XMPPUtils.getDomain(xmppAccount.getJid()));
+            String connection = accountManager.getUserData(account, "connection");
+            if (connection == null) {
+                connection = "xmpp:" + XMPPUtils.getDomain(xmppAccount.getJid());
+            }
+            xmppAccount.setConnection(connection);
+            xmppAccount.setPipeliningEnabled(Boolean.parseBoolean(
+                accountManager.getUserData(account, "pipelining")
+            ));
+            xmppAccount.setTargetRacingEnabled(Boolean.parseBoolean(
+                accountManager.getUserData(account, "racing")
+            ));
+            xmppAccount.setStandbyEnabled(Boolean.parseBoolean(
+                accountManager.getUserData(account, "standby")
+            ));
+            String keepaliveMode =
+                accountManager.getUserData(account, "keepalive");
+            if ("whitespace".equals(keepaliveMode)) {
+                xmppAccount.setKeepalive(Keepalive.Whitespace);
+            } else
+            if ("both".equals(keepaliveMode)) {
+                xmppAccount.setKeepalive(Keepalive.Both);
+            }
             xmppAccount.setResource("asmack" + ID);
             state.setAccount(xmppAccount);
             connectionStates.put(username, state);
         }
-        connections = connectionStates;
+        connections.setAccounts(connectionStates);
+        sendQueues.keySet().retainAll(connectionStates.keySet());
+        // pick up transitions that happened before the accounts were known
+        for (AccountConnection state: connectionStates.values()) {
+            connections.update(state);
+        }
     }
 
     /**
@@ -465,13 +808,107 @@ public class XmppTransportService
         return false;
     }
 
+    /**
+     * Queue a stanza for sending through the send queue of its via
+     * account, see {@link SendQueue}.
+     * @param stanza The stanza to send.
+     * @param callback The outcome receiver, or null.
+     */
+    public void sendAsync(Stanza stanza, ISendCallback callback) {
+        String via = stanza.getVia();
+        if (via == null) {
+            Log.w(TAG, "Sending stanza without via");
+            failSend(stanza, callback);
+            return;
+        }
+        SendQueue queue = getSendQueue(XMPPUtils.getBareJid(via));
+        if (queue == null) {
+            Log.w(TAG, "No account for " + via);
+            failSend(stanza, callback);
+            return;
+        }
+        queue.enqueue(stanza, callback);
+    }
+
+    /**
+     * Report a stanza that can't be queued as {@link SendQueue#FAILED}.
+     * @param stanza The stanza.
+     * @param callback The outcome receiver, or null.
+     */
+    private static void failSend(Stanza stanza, ISendCallback callback) {
+        if (callback == null) {
+            return;
+        }
+        try {
+            callback.onFailed(
+                stanza.getAttributeValue("id"),
+                SendQueue.FAILED
+            );
+        } catch (RemoteException e) {
+            Log.d(TAG, "Send callback died", e);
+        }
+    }
+
+    /**
+     * Retrieve the send queue of a known account, creating it if needed.
+     * Unknown jids get no queue, so a caller can't grow the queue map with
+     * arbitrary via values.
+     * @param jid The bare account jid.
+     * @return The send queue, or null if the account is unknown.
+     */
+    private SendQueue getSendQueue(String jid) {
+        SendQueue queue = sendQueues.get(jid);
+        if (queue == null) {
+            if (connections.get(jid) == null) {
+                return null;
+            }
+            SendQueue created = new SendQueue(jid, this);
+            queue = sendQueues.putIfAbsent(jid, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        return queue;
+    }
+
+    /**
+     * Send an iq get or set request and track the reply, see
+     * {@link IqTracker}.
+     * @param stanza The iq request.
+     * @param timeout The timeout in milliseconds, 0 for the default.
+     * @param callback The outcome receiver.
+     * @return The request id, or null if the request could not be sent.
+     */
+    public String sendIq(
+        Stanza stanza,
+        long timeout,
+        IqTracker.Callback callback
+    ) {
+        String type = stanza.getAttributeValue("type");
+        if (!"iq".equals(stanza.getName()) ||
+            !("get".equals(type) || "set".equals(type))) {
+            Log.w(TAG, "Tracking requires an iq get or set");
+            return null;
+        }
+        if (stanza.getVia() == null) {
+            Log.w(TAG, "Sending iq without via");
+            return null;
+        }
+        String id = iqTracker.track(stanza, timeout, callback);
+        if (!send(stanza)) {
+            iqTracker.cancel(id);
+            return null;
+        }
+        return id;
+    }
+
     /**
      * Send a stanza via this service, through all account jids.
      * @param stanza The stanza to send.
      */
     public void sendFromAllAccounts(Stanza stanza) {
         Log.d(TAG, "Sending stanza " + stanza.getName() + " via *");
-        for (AccountConnection state: connections.values()) {
+        for (AccountConnection state: connections.getAll()) {
             if (state.getCurrentState() != State.Connected) {
                 continue;
             }
@@ -492,7 +929,7 @@ public class XmppTransportService
      */
     public void sendFromAllResources(Stanza stanza) {
         Log.d(TAG, "Sending stanza " + stanza.getName() + " via *");
-        for (AccountConnection state: connections.values()) {
+        for (AccountConnection state: connections.getAll()) {
             if (state.getCurrentState() != State.Connected) {
                 continue;
             }
@@ -521,26 +958,88 @@ public class XmppTransportService
         return connection.getResourceJid();
     }
 
+    /**
+     * Collect the diagnostic values of the account connection for a jid.
+     * @param jid The bare or full account jid.
+     * @return A bundle of diagnostic values, empty for unknown accounts.
+     */
+    public Bundle getDiagnostics(String jid) {
+        Bundle diagnostics = new Bundle();
+        AccountConnection state = connections.get(jid);
+        if (state == null) {
+            return diagnostics;
+        }
+        diagnostics.putString("state", state.getCurrentState().name());
+        diagnostics.putInt("failCount", state.getFailCount());
+        diagnostics.putBoolean("probing", state.isProbing());
+        diagnostics.putBoolean("migrating", state.isMigrating());
+        diagnostics.putBoolean("standby", state.getStandby() != null);
+        diagnostics.putInt("standby.promotions", state.getPromotionCount());
+        diagnostics.putLong("login.millis", state.getLastLoginDuration());
+        diagnostics.putLong(
+            "reconnect.ceiling",
+            ReconnectScheduler.getBackoffCeiling(state.getFailCount())
+        );
+        diagnostics.putLong("reconnect.delay", state.getReconnectDelay());
+        if (state.getCurrentState() == State.Failed) {
+            diagnostics.putLong(
+                "reconnect.due",
+                Math.max(0, state.getLastFailTime() +
+                            state.getReconnectDelay() -
+                            System.currentTimeMillis())
+            );
+        }
+        ReconnectScheduler.getInstance().addDiagnostics(diagnostics);
+        long broadcasts = broadcastCount.get();
+        diagnostics.putLong("delivery.broadcast.count", broadcasts);
+        diagnostics.putLong(
+            "delivery.broadcast.micros",
+            broadcasts == 0 ? 0 : broadcastNanos.get() / broadcasts / 1000
+        );
+        long calls = listenerCount.get();
+        diagnostics.putLong("delivery.listener.count", calls);
+        diagnostics.putLong(
+            "delivery.listener.micros",
+            calls == 0 ? 0 : listenerNanos.get() / calls / 1000
+        );
+        diagnostics.putInt("delivery.listeners", listeners.size());
+        diagnostics.putInt("delivery.rings", rings.size());
+        diagnostics.putInt("iq.pending", iqTracker.getPendingCount());
+        diagnostics.putLong("iq.timeouts", iqTracker.getTimeoutCount());
+        SendQueue sendQueue = sendQueues.get(state.getAccount().getJid());
+        if (sendQueue != null) {
+            sendQueue.addDiagnostics(diagnostics);
+        }
+        ConnectionExecutor.getInstance().addDiagnostics(diagnostics);
+        keepalive.addDiagnostics(keepalive.getNetwork(), diagnostics);
+        state.getPingTracker().addDiagnostics(diagnostics);
+        Connection connection = state.getConnection();
+        if (connection != null) {
+            connection.addDiagnostics(diagnostics);
+        }
+        return diagnostics;
+    }
+
+    /**
+     * Retrieve the quality score of the account connection for a jid.
+     * @param jid The bare or full account jid.
+     * @return The quality between 0 and 100, -1 if unknown.
+     */
+    public int getConnectionQuality(String jid) {
+        AccountConnection state = connections.get(jid);
+        if (state == null || state.getCurrentState() != State.Connected) {
+            return -1;
+        }
+        return state.getPingTracker().getQuality();
+    }
+
     /**
      * Retrieve the active (connected) connection matching the given jid.
      * @param jid The jid to find.
      * @return The connection object matching the jid-
      */
     private Connection getConnectionForJid(String jid) {
-        for (AccountConnection state: connections.values()) {
-            if (state.getCurrentState() != State.Connected) {
-                continue;
-            }
-            Connection connection = state.getConnection();
-            String resourceJid = connection.getResourceJid();
-            String bareJid = XMPPUtils.getBareJid(resourceJid);
-            if (jid.equals(resourceJid) ||
-                jid.equals(bareJid)
-            ) {
-                return connection;
-            }
-        }
-        return null;
+        return connections.getConnection(jid);
     }
 
     /**
@@ -549,11 +1048,291 @@ public class XmppTransportService
      */
     @Override
     public void receive(Stanza stanza) {
+        if (iqTracker.onReceive(stanza)) {
+            // answer to a tracked request
+            return;
+        }
+        if ("iq".equals(stanza.getName()) && stanza.getVia() != null) {
+            String type = stanza.getAttributeValue("type");
+            AccountConnection state =
+                connections.get(stanza.getVia());
+            if (state != null &&
+                ("result".equals(type) || "error".equals(type)) &&
+                state.getPingTracker().onResult(
+                    stanza.getAttributeValue("id"),
+                    System.currentTimeMillis()
+                )) {
+                // answer to our own keepalive
+                return;
+            }
+        }
+        deliver(stanza);
+        notifyListeners(stanza);
+        writeRings(stanza);
+        long start = System.nanoTime();
         Intent intent = new Intent();
         intent.setAction(XMPP_STANZA_INTENT);
         intent.addFlags(Intent.FLAG_FROM_BACKGROUND);
         intent.putExtra("stanza", stanza);
         sendBroadcast(intent, XMPP_STANZA_INTENT);
+        broadcastCount.incrementAndGet();
+        broadcastNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /**
+     * Push a stanza to all matching binder listeners. The oneway calls are
+     * issued by the reading thread of the connection, so the stanzas of an
+     * account reach a listener in receive order.
+     * @param stanza The received stanza.
+     */
+    private void notifyListeners(Stanza stanza) {
+        List<StanzaMatcher.Subscription<IStanzaListener>> matches =
+            listeners.match(stanza);
+        for (StanzaMatcher.Subscription<IStanzaListener> listener: matches) {
+            long start = System.nanoTime();
+            try {
+                listener.getTarget().onStanza(stanza);
+            } catch (RemoteException e) {
+                Log.d(TAG, "Listener " + listener.getId() + " died");
+                unregisterListener(listener.getTarget());
+                continue;
+            }
+            listenerCount.incrementAndGet();
+            listenerNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Append a stanza to all matching stanza rings.
+     * @param stanza The received stanza.
+     */
+    private void writeRings(Stanza stanza) {
+        List<StanzaMatcher.Subscription<StanzaRingWriter>> matches =
+            rings.match(stanza);
+        for (StanzaMatcher.Subscription<StanzaRingWriter> ring: matches) {
+            StanzaRingWriter writer = ring.getTarget();
+            writer.write(stanza);
+            if (writer.isClosed()) {
+                rings.remove(ring.getId());
+            }
+        }
+    }
+
+    /**
+     * Open a shared memory stanza ring. The ring is an mmap'd file in the
+     * cache directory that is unlinked once the client descriptor is
+     * open. The ring is closed when the doorbell dies.
+     * @param capacity The ring capacity in bytes.
+     * @param filter The stanza filter.
+     * @param doorbell The ring doorbell.
+     * @return The read only ring descriptor, or null on errors.
+     */
+    public ParcelFileDescriptor openStanzaRing(
+        int capacity,
+        StanzaFilter filter,
+        final IStanzaDoorbell doorbell
+    ) {
+        IBinder binder = doorbell.asBinder();
+        closeStanzaRing(doorbell);
+        String id = "ring-" + SUBSCRIPTION_COUNT.incrementAndGet();
+        StanzaRingWriter writer;
+        ParcelFileDescriptor descriptor;
+        File file = null;
+        try {
+            file = File.createTempFile("stanzas", ".ring", getCacheDir());
+            writer = StanzaRingWriter.create(id, file, capacity, doorbell);
+            try {
+                descriptor = ParcelFileDescriptor.open(
+                    file,
+                    ParcelFileDescriptor.MODE_READ_ONLY
+                );
+            } catch (IOException e) {
+                writer.close();
+                throw e;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Can't create stanza ring", e);
+            return null;
+        } finally {
+            if (file != null) {
+                file.delete();
+            }
+        }
+        IBinder.DeathRecipient death = new IBinder.DeathRecipient() {
+            @Override
+            public void binderDied() {
+                closeStanzaRing(doorbell);
+            }
+        };
+        try {
+            binder.linkToDeath(death, 0);
+        } catch (RemoteException e) {
+            // already dead
+            writer.close();
+            return null;
+        }
+        synchronized (ringWriters) {
+            ringWriters.put(binder, writer);
+            ringDeaths.put(binder, death);
+        }
+        rings.add(id, filter, writer);
+        return descriptor;
+    }
+
+    /**
+     * Arm the doorbell of a stanza ring.
+     * @param doorbell The ring doorbell.
+     * @param position The reader position.
+     */
+    public void armStanzaRing(IStanzaDoorbell doorbell, long position) {
+        StanzaRingWriter writer;
+        synchronized (ringWriters) {
+            writer = ringWriters.get(doorbell.asBinder());
+        }
+        if (writer != null) {
+            writer.arm(position);
+        }
+    }
+
+    /**
+     * Close a stanza ring.
+     * @param doorbell The ring doorbell.
+     */
+    public void closeStanzaRing(IStanzaDoorbell doorbell) {
+        IBinder binder = doorbell.asBinder();
+        StanzaRingWriter writer;
+        synchronized (ringWriters) {
+            writer = ringWriters.remove(binder);
+            IBinder.DeathRecipient death = ringDeaths.remove(binder);
+            if (death != null) {
+                binder.unlinkToDeath(death, 0);
+            }
+        }
+        if (writer != null) {
+            rings.remove(writer.getId());
+            writer.close();
+        }
+    }
+
+    /**
+     * Register or update a binder stanza listener. The listener is removed
+     * when its process dies.
+     * @param listener The stanza listener.
+     * @param filter The stanza filter.
+     */
+    public void registerListener(
+        final IStanzaListener listener,
+        StanzaFilter filter
+    ) {
+        final IBinder binder = listener.asBinder();
+        String id;
+        synchronized (listenerIds) {
+            id = listenerIds.get(binder);
+            if (id == null) {
+                id = "listener-" + SUBSCRIPTION_COUNT.incrementAndGet();
+                IBinder.DeathRecipient death = new IBinder.DeathRecipient() {
+                    @Override
+                    public void binderDied() {
+                        unregisterListener(listener);
+                    }
+                };
+                try {
+                    binder.linkToDeath(death, 0);
+                } catch (RemoteException e) {
+                    // already dead
+                    return;
+                }
+                listenerIds.put(binder, id);
+                listenerDeaths.put(binder, death);
+            }
+        }
+        listeners.add(id, filter, listener);
+    }
+
+    /**
+     * Remove a binder stanza listener.
+     * @param listener The stanza listener.
+     */
+    public void unregisterListener(IStanzaListener listener) {
+        IBinder binder = listener.asBinder();
+        String id;
+        synchronized (listenerIds) {
+            id = listenerIds.remove(binder);
+            IBinder.DeathRecipient death = listenerDeaths.remove(binder);
+            if (death != null) {
+                binder.unlinkToDeath(death, 0);
+            }
+        }
+        if (id != null) {
+            listeners.remove(id);
+        }
+    }
+
+    /**
+     * Send a stanza to all matching subscriptions, dropping subscriptions
+     * whose pending intent was cancelled.
+     * @param stanza The received stanza.
+     */
+    private void deliver(Stanza stanza) {
+        List<StanzaMatcher.Subscription<StanzaDelivery>> matches =
+            subscriptions.match(stanza);
+        for (StanzaMatcher.Subscription<StanzaDelivery> subscription: matches) {
+            StanzaDelivery delivery = subscription.getTarget();
+            delivery.deliver(stanza);
+            if (delivery.isCancelled()) {
+                subscriptions.remove(subscription.getId());
+            }
+        }
+    }
+
+    /**
+     * Subscribe to inbound stanzas matching a filter.
+     * @param filter The stanza filter.
+     * @param target The pending intent receiving the stanzas.
+     * @return The subscription id.
+     */
+    public String subscribe(StanzaFilter filter, PendingIntent target) {
+        String id = "subscription-" + SUBSCRIPTION_COUNT.incrementAndGet();
+        subscriptions.add(id, filter, new StanzaDelivery(id, target, this));
+        return id;
+    }
+
+    /**
+     * Subscribe to batches of inbound stanzas matching a filter (see
+     * {@link StanzaDelivery}).
+     * @param filter The stanza filter.
+     * @param target The pending intent receiving the batches.
+     * @param delay The maximum delay of a stanza in milliseconds.
+     * @param size The maximum number of stanzas per batch.
+     * @return The subscription id.
+     */
+    public String subscribeBatched(
+        StanzaFilter filter,
+        PendingIntent target,
+        long delay,
+        int size
+    ) {
+        String id = "subscription-" + SUBSCRIPTION_COUNT.incrementAndGet();
+        subscriptions.add(id, filter, new StanzaDelivery(
+            id,
+            target,
+            this,
+            SCHEDULER,
+            delay,
+            size
+        ));
+        return id;
+    }
+
+    /**
+     * Cancel a stanza subscription, delivering a pending batch.
+     * @param id The subscription id.
+     */
+    public void unsubscribe(String id) {
+        StanzaDelivery delivery = subscriptions.remove(id);
+        if (delivery != null) {
+            delivery.flush();
+        }
     }
 
     /**
@@ -576,64 +1355,222 @@ public class XmppTransportService
     }
 
     /**
-     * Run a background ping on all idle connections.
+     * Run the deadline check of an account connection and schedule the
+     * next one.
+     * @param state The account connection.
      */
-    public void ping() {
-        pingCount++;
-        long now = System.currentTimeMillis();
-        for (AccountConnection state: connections.values()) {
-            Connection connection = state.getConnection();
-            if (connection == null) {
-                continue;
+    private void check(AccountConnection state) {
+        long delay;
+        try {
+            delay = checkConnection(state, System.currentTimeMillis());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Deadline check failed on " +
+                       state.getAccount().getJid(), e);
+            delay = KeepaliveController.MIN_INTERVAL;
+        }
+        if (delay >= 0) {
+            schedule(state, delay);
+        }
+    }
+
+    /**
+     * Check the deadlines of an account connection: reconnect failed
+     * connections after their backoff, send a keepalive once a connection
+     * was idle for the keepalive interval of the current network (see
+     * {@link KeepaliveController}) and fail it if the keepalive isn't
+     * answered in time (see {@link PingTracker}).
+     * @param state The account connection.
+     * @param now The current time.
+     * @return The delay until the next deadline, -1 if no check is needed
+     *         until the next state change.
+     */
+    private long checkConnection(AccountConnection state, long now) {
+        if (state.getCurrentState() == State.Failed) {
+            long due = state.getLastFailTime() + state.getReconnectDelay();
+            if (now < due) {
+                return due - now;
             }
-            if (state.getCurrentState() == State.Failed) {
-                long reconnectTime = RECONNECT_TIMES[
-                         Math.min(state.getFailCount(), RECONNECT_TIMES.length)
-                ];
-                if (now - connection.lastReceive() > reconnectTime) {
-                    Log.d(TAG, "Reconnect on " + connection.getResourceJid());
-                    if (state.getFailCount() > 0) {
-                        // try to change the resource
-                        state.getAccount().setResource(
-                            "asmack" +
-                            Integer.toHexString((int)(255.999 * Math.random()))
-                                   .toLowerCase()
-                        );
-                    }
-                    state.transition(State.Connecting);
-                }
-                continue;
+            Log.d(TAG, "Reconnect on " + state.getAccount().getJid());
+            if (state.getFailCount() > 0) {
+                // try to change the resource
+                state.getAccount().setResource(
+                    "asmack" +
+                    Integer.toHexString((int)(255.999 * Math.random()))
+                           .toLowerCase()
+                );
             }
-            if (state.getCurrentState() != State.Connected) {
-                continue;
+            state.transition(State.Connecting);
+            return -1;
+        }
+        Connection connection = state.getConnection();
+        if (connection == null || state.getCurrentState() != State.Connected ||
+            state.isMigrating()) {
+            return -1;
+        }
+        PingTracker pingTracker = state.getPingTracker();
+        if (state.isProbing()) {
+            if (pingTracker.getPendingSent() == 0) {
+                Log.d(TAG, "Probe answered on " + connection.getResourceJid());
+                state.setProbing(false);
+            } else
+            if (pingTracker.isOverdue(now)) {
+                pingTracker.onTimeout();
+                state.migrate();
+                return -1;
+            } else {
+                return pingTracker.getPendingSent() +
+                       pingTracker.getTimeout() - now + 1;
             }
-            if (now - connection.lastReceive() > 180000) {
-                Log.d(TAG, "Fail on " + connection.getResourceJid());
+        }
+        String network = keepalive.getNetwork();
+        long interval = keepalive.getInterval(network);
+        long keepaliveSent = state.getKeepaliveSent();
+        if (keepaliveSent != 0) {
+            if (connection.lastReceive() >= keepaliveSent) {
+                keepalive.onKeepaliveSuccess(
+                    state.getKeepaliveNetwork(),
+                    state.getKeepaliveIdle()
+                );
+                state.clearKeepalive();
+                keepaliveSent = 0;
+            } else
+            if (pingTracker.isOverdue(now)) {
+                Log.d(TAG, "Keepalive timeout on " +
+                           connection.getResourceJid());
+                pingTracker.onTimeout();
+                keepaliveFailed(state);
                 state.transition(State.Failed);
-                continue;
+                return -1;
+            } else
+            if (pingTracker.getPendingSent() != 0) {
+                return pingTracker.getPendingSent() +
+                       pingTracker.getTimeout() - now + 1;
             }
-            String jid = connection.getAccount().getJid();
-            String verificationHash = JID_VERIFICATION_CACHE.get(jid);
-            if (verificationHash == null) {
-                verificationHash = Database.computeVerificationHash(
-                    getApplicationContext(),
-                    jid,
-                    null
-                );
-                JID_VERIFICATION_CACHE.put(jid, verificationHash);
-                pingExecutor.execute(new PresenceRunnable(connection,
-                                     verificationHash));
-            } else {
-                pingExecutor.execute(new PresenceRunnable(connection,
-                                     verificationHash));
+        }
+        sendPresence(connection);
+        if (state.getAccount().isStandbyEnabled()) {
+            state.startStandby();
+        }
+        Keepalive mode = state.getAccount().getKeepalive();
+        if (mode == Keepalive.Whitespace) {
+            // nothing is answered, dead connections are detected by
+            // the transport
+            long lastActivity = Math.max(
+                connection.lastReceive(),
+                state.getLastWhitespaceTime()
+            );
+            if (now - lastActivity >= interval) {
+                state.setLastWhitespaceTime(now);
+                lastActivity = now;
+                execute(new PingRunnable(connection, mode, null));
             }
-            if (now - connection.lastReceive() > 60000) {
-                Log.d(TAG, "Keepalive on " + connection.getResourceJid());
-                pingExecutor.execute(new PingRunnable(connection));
+            return lastActivity + interval - now;
+        }
+        long idle = now - connection.lastReceive();
+        if (idle > interval + KEEPALIVE_TIMEOUT) {
+            Log.d(TAG, "Fail on " + connection.getResourceJid());
+            state.transition(State.Failed);
+            return -1;
+        }
+        if (idle < interval) {
+            return interval - idle;
+        }
+        Log.d(TAG, "Keepalive on " + connection.getResourceJid() +
+                   " after " + idle + "ms");
+        Connection standby = state.getStandby();
+        if (standby != null) {
+            // keep the nat binding of the standby alive, failures are
+            // reported by the transport
+            execute(new PingRunnable(
+                standby,
+                Keepalive.Whitespace,
+                null
+            ));
+        }
+        state.startKeepalive(network, now, idle);
+        execute(new PingRunnable(
+            connection,
+            mode,
+            pingTracker.start(now)
+        ));
+        return pingTracker.getTimeout() + 1;
+    }
+
+    /**
+     * Schedule the next deadline check of an account connection, replacing
+     * the pending one.
+     * @param state The account connection.
+     * @param delay The delay in milliseconds.
+     */
+    private void schedule(final AccountConnection state, long delay) {
+        state.setDeadline(SCHEDULER.schedule(
+            new Runnable() {
+                @Override
+                public void run() {
+                    check(state);
+                }
+            },
+            delay,
+            TimeUnit.MILLISECONDS
+        ));
+    }
+
+    /**
+     * Run a keepalive or presence send on the sender pool, so a stalled
+     * connection can't delay the deadlines of other accounts and the sends
+     * never queue behind other connection tasks. A send blocked on a
+     * stalled connection ends when its deadline closes the connection.
+     * @param runnable The send task.
+     */
+    private static void execute(Runnable runnable) {
+        SENDER.execute(runnable);
+    }
+
+    /**
+     * Send a presence if the capabilities of the connection changed.
+     * @param connection The connected connection.
+     */
+    private void sendPresence(Connection connection) {
+        String jid = connection.getAccount().getJid();
+        String verificationHash = JID_VERIFICATION_CACHE.get(jid);
+        if (verificationHash != null) {
+            return;
+        }
+        verificationHash = Database.computeVerificationHash(
+            getApplicationContext(),
+            jid,
+            null
+        );
+        JID_VERIFICATION_CACHE.put(jid, verificationHash);
+        execute(new PresenceRunnable(connection,
+                verificationHash));
+    }
+
+    /**
+     * Announce changed capabilities on all connected accounts.
+     */
+    private void announcePresence() {
+        for (AccountConnection state: connections.getAll()) {
+            if (state.getCurrentState() == State.Connected) {
+                sendPresence(state.getConnection());
             }
         }
     }
 
+    /**
+     * Report a connection that died with a pending keepalive to the
+     * keepalive controller, unless the network changed in between.
+     * @param state The failed account connection.
+     */
+    private void keepaliveFailed(AccountConnection state) {
+        String network = state.getKeepaliveNetwork();
+        if (state.getKeepaliveSent() == 0 ||
+            !network.equals(keepalive.getNetwork())) {
+            return;
+        }
+        keepalive.onKeepaliveFailure(network, state.getKeepaliveIdle());
+    }
+
     /**
      * Callback for failed connections. Triggers a state change to failed.
      * @param connection The failed connection.
@@ -648,9 +1585,22 @@ public class XmppTransportService
         if (state == null) {
             return;
         }
-        if (state.getCurrentState() != State.Connected) {
+        if (state.standbyFailed(connection)) {
+            Log.d(TAG, "Standby lost on " + connection.getResourceJid());
             return;
         }
+        if (state.getCurrentState() != State.Connected ||
+            state.getConnection() != connection) {
+            // not connected or a replaced (draining) connection
+            return;
+        }
+        if (state.isMigrating()) {
+            // the parallel login decides
+            Log.d(TAG, "Connection lost during migration on " +
+                       connection.getResourceJid());
+            return;
+        }
+        keepaliveFailed(state);
         state.transition(State.Failed);
     }
 
@@ -665,6 +1615,7 @@ public class XmppTransportService
         intent.putExtra("account", accountConnection.getAccount().getJid());
         intent.putExtra("state", "start");
         intent.addFlags(Intent.FLAG_FROM_BACKGROUND);
+        connections.update(accountConnection);
         sendBroadcast(intent, XMPP_STANZA_INTENT);
     }
 
@@ -676,6 +1627,9 @@ public class XmppTransportService
      */
     @Override
     public void onConnectionConnecting(AccountConnection accountConnection) {
+        // the login task owns the connection until it succeeds or fails
+        accountConnection.setDeadline(null);
+        connections.update(accountConnection);
         Intent intent = new Intent();
         intent.setAction(XMPP_STATE_INTENT);
         intent.putExtra("account", accountConnection.getAccount().getJid());
@@ -692,6 +1646,7 @@ public class XmppTransportService
      */
     @Override
     public void onConnectionConnected(AccountConnection accountConnection) {
+        connections.update(accountConnection);
         Intent intent = new Intent();
         intent.setAction(XMPP_STATE_INTENT);
         intent.putExtra("account", accountConnection.getAccount().getJid());
@@ -699,6 +1654,7 @@ public class XmppTransportService
         intent.addFlags(Intent.FLAG_FROM_BACKGROUND);
         sendBroadcast(intent, XMPP_STANZA_INTENT);
         JID_VERIFICATION_CACHE.remove(accountConnection.getAccount().getJid());
+        schedule(accountConnection, 0);
     }
 
     /**
@@ -713,18 +1669,120 @@ public class XmppTransportService
         intent.putExtra("account", accountConnection.getAccount().getJid());
         intent.putExtra("state", "failed");
         intent.addFlags(Intent.FLAG_FROM_BACKGROUND);
+        connections.update(accountConnection);
         sendBroadcast(intent, XMPP_STANZA_INTENT);
+        // no reply can arrive on a new stream
+        iqTracker.fail(accountConnection.getAccount().getJid());
+        schedule(accountConnection, 0);
+    }
+
+    /**
+     * Called whenever a failed connection was replaced by its standby.
+     * Fails the iq requests of the old stream and fires a connected
+     * broadcast intent.
+     * @param accountConnection The connection status with the promoted
+     *                          standby.
+     */
+    @Override
+    public void onConnectionPromoted(AccountConnection accountConnection) {
+        // no reply can arrive on a new stream
+        iqTracker.fail(accountConnection.getAccount().getJid());
+        onConnectionConnected(accountConnection);
     }
 
     /**
-     * Called when the connectivity state changes to online. Enforces a reset
-     * and reconnect of all connections.
+     * Called whenever a connected account switched to a new connection
+     * after a network change. The old connection is closed after
+     * {@link #DRAIN_TIME}. Fires a connected broadcast intent.
+     * @param accountConnection The migrated connection state.
+     * @param oldConnection The replaced connection.
+     */
+    @Override
+    public void onConnectionMigrated(
+        AccountConnection accountConnection,
+        final Connection oldConnection
+    ) {
+        Log.d(TAG, "Migrated " + oldConnection.getResourceJid() + " to " +
+                   accountConnection.getConnection().getResourceJid());
+        connections.update(accountConnection);
+        SCHEDULER.schedule(
+            new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        oldConnection.close();
+                    } catch (XmppException e) {
+                        /* IGNORE */
+                    }
+                }
+            },
+            DRAIN_TIME,
+            TimeUnit.MILLISECONDS
+        );
+        onConnectionConnected(accountConnection);
+    }
+
+    /**
+     * Retrieve the name of the current network (see
+     * {@link KeepaliveController#getNetwork()}).
+     * @return The network name, "none" without connectivity.
+     */
+    public String getNetwork() {
+        return keepalive.getNetwork();
+    }
+
+    /**
+     * Probe a connected account with a ping after a network change. The
+     * connection is migrated if the ping isn't answered in time (see
+     * {@link AccountConnection#migrate()}).
+     * @param state The connected account.
+     */
+    private void probe(AccountConnection state) {
+        Connection connection = state.getConnection();
+        long now = System.currentTimeMillis();
+        PingTracker pingTracker = state.getPingTracker();
+        Log.d(TAG, "Probe on " + connection.getResourceJid());
+        state.clearKeepalive();
+        state.setProbing(true);
+        execute(new PingRunnable(
+            connection,
+            Keepalive.Ping,
+            pingTracker.start(now)
+        ));
+        schedule(state, pingTracker.getTimeout() + 1);
+    }
+
+    /**
+     * Called when the connectivity state changes to online or the network
+     * changed. Connected accounts are probed and migrated if needed (make
+     * before break), all other connections are reset and reconnected,
+     * staggered to avoid a login storm (see
+     * {@link ReconnectScheduler#getStagger(int)}).
      */
     public void onConnectivityAvailable() {
-        for (AccountConnection state: connections.values()) {
+        ReconnectScheduler scheduler = ReconnectScheduler.getInstance();
+        int index = 0;
+        for (final AccountConnection state: connections.getAll()) {
+            Connection connection = state.getConnection();
+            if (state.getCurrentState() == State.Connected &&
+                connection != null && !connection.isClosed()) {
+                if (!state.isMigrating()) {
+                    probe(state);
+                }
+                continue;
+            }
             state.resetStats();
             state.transition(State.Start);
-            state.transition(State.Connecting);
+            state.setDeadline(SCHEDULER.schedule(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        state.transition(State.Connecting);
+                    }
+                },
+                scheduler.getStagger(index++),
+                TimeUnit.MILLISECONDS
+            ));
         }
     }
 
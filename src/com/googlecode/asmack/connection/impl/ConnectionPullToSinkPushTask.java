@@ -43,18 +43,19 @@ import com.googlecode.asmack.Stanza;
 import com.googlecode.asmack.StanzaSink;
 import com.googlecode.asmack.XmppException;
 import com.googlecode.asmack.connection.Connection;
+import com.googlecode.asmack.connection.ConnectionExecutor;
 
 /**
- * Transform {@link XmppInputStream#nextStanza()} pull events into
+ * Transform {@link StanzaReader#nextStanza()} pull events into
  * {@link StanzaSink#receive(Stanza)} events.
  */
-public class ConncetionPullToSinkPushThread extends Thread {
+public class ConnectionPullToSinkPushTask implements Runnable {
 
     /**
-     * Class debugging tag (ConnectionPullToSinkPushThread).
+     * Class debugging tag (ConnectionPullToSinkPushTask).
      * Value: {@value TAG}
      */
-    private static final String TAG = ConncetionPullToSinkPushThread.class
+    private static final String TAG = ConnectionPullToSinkPushTask.class
                                         .getSimpleName();
 
     /**
@@ -65,7 +66,7 @@ public class ConncetionPullToSinkPushThread extends Thread {
     /**
      * The xmpp input stream used for reading. 
      */
-    private final XmppInputStream xmppInput;
+    private final StanzaReader xmppInput;
 
     /**
      * The lowleve connection uswed by the xmpp input stream.
@@ -73,19 +74,19 @@ public class ConncetionPullToSinkPushThread extends Thread {
     private final Connection connection;
 
     /**
-     * <p>Create a new Thread to pull stanzas from a {@link XmppInputStream}
+     * <p>Create a new task to pull stanzas from a {@link StanzaReader}
      * and push it to a {@link StanzaSink}.</p>
      *
-     * <p> This Thread must be explicitly explicitly started (as required for
-     * polymorphism).</p>
+     * <p>The task must be explicitly submitted, usually to the
+     * {@link ConnectionExecutor}. It ends when the connection is closed.</p>
      *
      * @param connection The symbolic {@link Connection}.
-     * @param xmppInput The {@link XmppInputStream} for the connection.
+     * @param xmppInput The {@link StanzaReader} of the connection.
      * @param sink The receiving {@link StanzaSink}.
      */
-    public ConncetionPullToSinkPushThread(
+    public ConnectionPullToSinkPushTask(
         Connection connection,
-        XmppInputStream xmppInput,
+        StanzaReader xmppInput,
         StanzaSink sink
     ) {
         this.connection = connection;
@@ -95,7 +96,7 @@ public class ConncetionPullToSinkPushThread extends Thread {
 
     /**
      * <p>Run the main pull/push loop.</p>
-     * <p>The {@link XmppInputStream#nextStanza()} to
+     * <p>The {@link StanzaReader#nextStanza()} to
      * {@link StanzaSink#receive(Stanza)} will run until a
      * {@link XmppException} is received.</p>
      */
@@ -40,13 +40,15 @@ package com.googlecode.asmack.connection.impl;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashSet;
+import java.util.ArrayList;
 
-import javax.net.ssl.KeyManager;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
 
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -54,6 +56,7 @@ import org.xml.sax.SAXException;
 import org.xmlpull.v1.XmlPullParserException;
 
 import android.text.TextUtils;
+import android.util.Log;
 
 import com.googlecode.asmack.Stanza;
 import com.googlecode.asmack.XMLUtils;
@@ -62,6 +65,7 @@ import com.googlecode.asmack.XmppAccount;
 import com.googlecode.asmack.XmppException;
 import com.googlecode.asmack.XmppMalformedException;
 import com.googlecode.asmack.connection.XmppTransportException;
+import com.googlecode.asmack.util.LRUCache;
 
 /**
  * <p>Manages the setup of an xml input/output stream based on core input/output
@@ -89,6 +93,44 @@ public class FeatureNegotiationEngine {
     private final static String session = "asmack_" +
         Integer.toHexString((int)(Math.random() * Integer.MAX_VALUE));
 
+    /**
+     * Logging tag of this class ("FeatureNegotiationEngine").
+     */
+    private static final String TAG =
+                                FeatureNegotiationEngine.class.getSimpleName();
+
+    /**
+     * Negotiation step: STARTTLS.
+     */
+    private static final String STEP_TLS = "tls";
+
+    /**
+     * Negotiation step: zlib compression.
+     */
+    private static final String STEP_ZLIB = "zlib";
+
+    /**
+     * Negotiation step: sasl authentication.
+     */
+    private static final String STEP_SASL = "sasl";
+
+    /**
+     * Negotiation step: resource bind.
+     */
+    private static final String STEP_BIND = "bind";
+
+    /**
+     * Negotiation step: resource bind followed by a session request.
+     */
+    private static final String STEP_BIND_SESSION = "bind+session";
+
+    /**
+     * Cache of {{host:port} => {negotiation steps}} of previous successful
+     * negotiations, used to pipeline requests.
+     */
+    private static final LRUCache<String, String[]> STEP_CACHE =
+                                        new LRUCache<String, String[]>(20);
+
     /**
      * Lowlevel {@link OutputStream} used by the {@link #xmppOutput}.
      */
@@ -99,6 +141,12 @@ public class FeatureNegotiationEngine {
      */
     private InputStream inputStream;
 
+    /**
+     * Reader of the {@link #inputStream} that doesn't read ahead, for
+     * channels, or null.
+     */
+    private Reader reader;
+
     /**
      * The {@link XmppInputStream} used for reading feature stanzas.
      */
@@ -149,11 +197,62 @@ public class FeatureNegotiationEngine {
      */
     private boolean sessionsSupported = false;
 
+    /**
+     * Indicate if the tls handshake resumed a cached session.
+     */
+    private boolean sessionResumed = false;
+
+    /**
+     * Indicate if the negotiation was pipelined based on cached features.
+     */
+    private boolean pipelined = false;
+
+    /**
+     * Indicate that the bind request was already sent.
+     */
+    private boolean bindRequested = false;
+
+    /**
+     * The resource of the already sent bind request.
+     */
+    private String bindResource;
+
+    /**
+     * Indicate that the session request was already sent.
+     */
+    private boolean sessionRequested = false;
+
+    /**
+     * Counter for the network round trips until bind.
+     */
+    private final RoundTripCounter roundTrips = new RoundTripCounter();
+
+    /**
+     * The compressing output stream, if compression is enabled.
+     */
+    private ZLibOutputStream zlibOutput;
+
+    /**
+     * The decompressing input stream, if compression is enabled.
+     */
+    private ZLibInputStream zlibInput;
+
     /**
      * The basic socket for this connection.
      */
     private Socket socket;
 
+    /**
+     * The non-blocking channel of this connection, or null for blocking
+     * sockets.
+     */
+    private final NioChannel channel;
+
+    /**
+     * The host name used for the connect, the tls session cache key.
+     */
+    private final String host;
+
     /**
      * Create a new FeatureNegotiationEngine for a given tcp socket.
      * @param socket Socket The basic socket.
@@ -163,12 +262,104 @@ public class FeatureNegotiationEngine {
      */
     public FeatureNegotiationEngine(Socket socket)
         throws XmlPullParserException, IOException, XmppTransportException
+    {
+        this(socket, socket.getInetAddress().getHostName());
+    }
+
+    /**
+     * Create a new FeatureNegotiationEngine for a given tcp socket that was
+     * opened for the given host name.
+     * @param socket Socket The basic socket.
+     * @param host String The host name used to open the socket.
+     * @throws XmlPullParserException If the pull parser can't be created.
+     * @throws IOException When there is an IOException during intialization.
+     * @throws XmppTransportException When this connection failes.
+     */
+    public FeatureNegotiationEngine(Socket socket, String host)
+        throws XmlPullParserException, IOException, XmppTransportException
+    {
+        this(socket, host, false);
+    }
+
+    /**
+     * Create a new FeatureNegotiationEngine for a given tcp socket that was
+     * opened for the given host name, optionally starting tls right away
+     * (direct tls, XEP-0368) instead of negotiating STARTTLS.
+     * @param socket Socket The basic socket.
+     * @param host String The host name used to open the socket.
+     * @param directTLS boolean True to run the tls handshake before the
+     *                          xmpp stream is opened.
+     * @throws XmlPullParserException If the pull parser can't be created.
+     * @throws IOException When there is an IOException during intialization.
+     * @throws XmppTransportException When this connection failes.
+     */
+    public FeatureNegotiationEngine(
+        Socket socket,
+        String host,
+        boolean directTLS
+    ) throws XmlPullParserException, IOException, XmppTransportException
+    {
+        this(socket, null, host, directTLS);
+    }
+
+    /**
+     * Create a new FeatureNegotiationEngine for a non-blocking channel. Tls
+     * is handled by an {@link SSLEngine} inside the channel and compression
+     * is not negotiated, as the channel pushes the raw stream data to a
+     * {@link StanzaFramer} after bind.
+     * @param channel NioChannel The connected channel.
+     * @param host String The host name used to open the channel.
+     * @param directTLS boolean True to run the tls handshake before the
+     *                          xmpp stream is opened.
+     * @throws XmlPullParserException If the pull parser can't be created.
+     * @throws IOException When there is an IOException during intialization.
+     * @throws XmppTransportException When this connection failes.
+     */
+    public FeatureNegotiationEngine(
+        NioChannel channel,
+        String host,
+        boolean directTLS
+    ) throws XmlPullParserException, IOException, XmppTransportException
+    {
+        this(channel.getSocket(), channel, host, directTLS);
+    }
+
+    /**
+     * Create a new FeatureNegotiationEngine for a socket or channel.
+     * @param socket Socket The basic socket.
+     * @param channel NioChannel The channel of the socket, or null.
+     * @param host String The host name used to open the socket.
+     * @param directTLS boolean True to run the tls handshake before the
+     *                          xmpp stream is opened.
+     * @throws XmlPullParserException If the pull parser can't be created.
+     * @throws IOException When there is an IOException during intialization.
+     * @throws XmppTransportException When this connection failes.
+     */
+    private FeatureNegotiationEngine(
+        Socket socket,
+        NioChannel channel,
+        String host,
+        boolean directTLS
+    ) throws XmlPullParserException, IOException, XmppTransportException
     {
         this.socket = socket;
-        this.inputStream = socket.getInputStream();
-        this.outputStream = socket.getOutputStream();
+        this.channel = channel;
+        this.host = host;
+        if (directTLS) {
+            try {
+                this.socket = handshakeTLS();
+            } catch (NoSuchAlgorithmException e) {
+                throw new XmppTransportException("Can't enable tls", e);
+            } catch (KeyManagementException e) {
+                throw new XmppTransportException("Can't trust server", e);
+            }
+            secure = true;
+        }
+        attachStreams();
         xmppOutput = new XmppOutputStream(outputStream);
-        xmppInput = new XmppInputStream(inputStream);
+        xmppInput = new XmppInputStream(inputStream, reader);
+        xmppOutput.setRoundTripCounter(roundTrips);
+        xmppInput.setRoundTripCounter(roundTrips);
     }
 
     /*
@@ -257,6 +448,14 @@ public class FeatureNegotiationEngine {
      *
      * <p>This method requires a call to bind (if you wish to bind) afterwards.
      * </p>
+     *
+     * <p>If pipelining is enabled for the account and a previous negotiation
+     * with the same host succeeded, the expected request of each step
+     * (starttls, compress, bind plus session) is sent together with the
+     * stream header, saving one round trip per step. A server that
+     * announces different features invalidates the cached steps. The
+     * connection either recovers (compression) or fails, and the next
+     * attempt negotiates step by step.</p>
      * 
      * @param account XmppAccount The account used for negotiation.
      * @throws XmppException In case of an error.
@@ -264,10 +463,40 @@ public class FeatureNegotiationEngine {
     public void open(XmppAccount account) throws XmppException {
         boolean rerun = true;
         boolean canBind = false;
+        String cacheKey = host + ":" + socket.getPort() + (secure ? "/tls" : "");
+        String[] cachedSteps = null;
+        if (account.isPipeliningEnabled()) {
+            synchronized (STEP_CACHE) {
+                cachedSteps = STEP_CACHE.get(cacheKey);
+            }
+        }
+        pipelined = cachedSteps != null;
+        ArrayList<String> steps = new ArrayList<String>(4);
         while (rerun) {
             try {
                 rerun = false;
+                String expected = null;
+                if (pipelined && steps.size() < cachedSteps.length) {
+                    expected = cachedSteps[steps.size()];
+                }
                 xmppOutput.open(XMPPUtils.getDomain(account.getJid()), null);
+                if (STEP_TLS.equals(expected) && !secure) {
+                    requestTLS();
+                } else
+                if (STEP_ZLIB.equals(expected) && !compressed &&
+                    canCompress()) {
+                    requestCompress();
+                } else
+                if (STEP_BIND.equals(expected) ||
+                    STEP_BIND_SESSION.equals(expected)) {
+                    requestBind(
+                        account.getResource(),
+                        STEP_BIND_SESSION.equals(expected)
+                    );
+                } else {
+                    // nothing to pipeline for this step
+                    expected = null;
+                }
                 xmppInput.readOpening();
 
                 Node features = null;
@@ -334,11 +563,17 @@ public class FeatureNegotiationEngine {
                      );
                 SASLSupported |= saslMechanisms != null;
 
+                if (expected != null &&
+                    !expected.equals(nextStep(canBind))) {
+                    recoverPipelining(cacheKey, expected);
+                    expected = null;
+                }
+
                 if (hasTLS && !secure) {
                     // enable tls
-                    xmppOutput.sendUnchecked(
-                        "<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>"
-                    );
+                    if (!STEP_TLS.equals(expected)) {
+                        requestTLS();
+                    }
                     boolean startTLS = XMLUtils.isInstance(
                         xmppInput.nextStanza().getDocumentNode(),
                         "urn:ietf:params:xml:ns:xmpp-tls",
@@ -347,13 +582,18 @@ public class FeatureNegotiationEngine {
                     if (startTLS) {
                         startTLS();
                         secure = true;
+                        steps.add(STEP_TLS);
                         rerun = true;
                         continue;
                     }
                 }
 
-                if (compressionSupported && !compressed && ZLibOutputStream.SUPPORTED) {
-                    startCompress();
+                if (compressionSupported && !compressed && canCompress()) {
+                    if (!STEP_ZLIB.equals(expected)) {
+                        requestCompress();
+                    }
+                    finishCompress();
+                    steps.add(STEP_ZLIB);
                     rerun = true;
                     continue;
                 }
@@ -361,11 +601,14 @@ public class FeatureNegotiationEngine {
                 if (SASLSupported && !authenticated) {
                     if (saslLogin(saslMechanisms, account)) {
                         authenticated = true;
+                        steps.add(STEP_SASL);
                         rerun = true;
                         continue;
                     }
                 }
 
+                steps.add(sessionsSupported ? STEP_BIND_SESSION : STEP_BIND);
+
             } catch (IllegalArgumentException e) {
                 throw new XmppMalformedException("Can't negotiate features", e);
             } catch (IllegalStateException e) {
@@ -384,6 +627,67 @@ public class FeatureNegotiationEngine {
         if (!canBind) {
             throw new XmppTransportException("Couldn't reach bind state.");
         }
+        synchronized (STEP_CACHE) {
+            STEP_CACHE.put(cacheKey, steps.toArray(new String[steps.size()]));
+        }
+    }
+
+    /**
+     * Compute the negotiation step the client will take next, based on the
+     * features seen so far.
+     * @param canBind boolean True if bind was announced.
+     * @return String The next step, or null if the stream can't be bound.
+     */
+    private String nextStep(boolean canBind) {
+        if (hasTLS && !secure) {
+            return STEP_TLS;
+        }
+        if (compressionSupported && !compressed && canCompress()) {
+            return STEP_ZLIB;
+        }
+        if (SASLSupported && !authenticated) {
+            return STEP_SASL;
+        }
+        if (!canBind) {
+            return null;
+        }
+        return sessionsSupported ? STEP_BIND_SESSION : STEP_BIND;
+    }
+
+    /**
+     * Handle a pipelined request that doesn't match the announced server
+     * features. The cached steps are dropped. A compression request is
+     * answered with a failure that can be skipped, everything else leaves
+     * the stream in an undefined state and fails the connection.
+     * @param cacheKey String The key of the cached steps.
+     * @param expected String The step that was sent ahead.
+     * @throws XmppException If the stream can't be recovered.
+     */
+    private void recoverPipelining(String cacheKey, String expected)
+        throws XmppException
+    {
+        Log.d(TAG, "Server features changed, dropping cached steps");
+        synchronized (STEP_CACHE) {
+            STEP_CACHE.remove(cacheKey);
+        }
+        pipelined = false;
+        if (STEP_ZLIB.equals(expected)) {
+            // skip the <failure/> reply
+            xmppInput.nextStanza();
+            return;
+        }
+        if (STEP_BIND_SESSION.equals(expected) &&
+            STEP_BIND.equals(nextStep(true))) {
+            // the session reply is a harmless iq error
+            return;
+        }
+        if (STEP_BIND.equals(expected) &&
+            STEP_BIND_SESSION.equals(nextStep(true))) {
+            // session will be requested after bind
+            return;
+        }
+        throw new XmppTransportException(
+            "Pipelined negotiation failed, server features changed");
     }
 
     /**
@@ -393,14 +697,8 @@ public class FeatureNegotiationEngine {
      */
     private void startSession() throws XmppTransportException {
         try {
-            xmppOutput.sendUnchecked(
-                    "<iq type=\"set\" id=\"" +
-                    session +
-                    "\">" +
-                    "<session xmlns=\"urn:ietf:params:xml:ns:xmpp-session\"/>" +
-                    "</iq>"
-            );
-            return;
+            xmppOutput.sendUnchecked(getSessionRequest());
+            sessionRequested = true;
         } catch (IllegalArgumentException e) {
             throw new XmppTransportException("session bind failed", e);
         } catch (IllegalStateException e) {
@@ -409,38 +707,80 @@ public class FeatureNegotiationEngine {
     }
 
     /**
-     * Bind a given resource, probably resuming an old session.
+     * Retrieve the session request iq.
+     * @return String The session request.
+     */
+    private static String getSessionRequest() {
+        return "<iq type=\"set\" id=\"" +
+               session +
+               "\">" +
+               "<session xmlns=\"urn:ietf:params:xml:ns:xmpp-session\"/>" +
+               "</iq>";
+    }
+
+    /**
+     * Send the bind request, directly followed by the session request if
+     * requested. The session token is fix for the full service runtime, thus
+     * allowing the server to detect reconnects.
+     * @param resource String The preferred resource string.
+     * @param session boolean True to send the session request.
+     * @throws XmppTransportException In case of an error.
+     */
+    private void requestBind(String resource, boolean session)
+        throws XmppTransportException
+    {
+        StringBuilder request = new StringBuilder(256);
+        request.append("<iq type=\"set\" id=\"bind_1\">");
+        request.append("<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\">");
+        if (!TextUtils.isEmpty(resource)) {
+            request.append("<resource>");
+            request.append(resource);
+            request.append("</resource>");
+        }
+        request.append("</bind>");
+        request.append("</iq>");
+        if (session) {
+            request.append(getSessionRequest());
+        }
+        try {
+            xmppOutput.sendUnchecked(request.toString());
+        } catch (IllegalArgumentException e) {
+            throw new XmppTransportException("bind failed", e);
+        } catch (IllegalStateException e) {
+            throw new XmppTransportException("bind failed", e);
+        }
+        bindRequested = true;
+        bindResource = resource;
+        sessionRequested = session;
+    }
+
+    /**
+     * Bind a given resource, probably resuming an old session. The session
+     * request (if supported) is sent back-to-back with the bind request.
      * @param resource String The preferred resource string.
      * @return String The actual resource string.
      * @throws XmppException On Error.
      */
     public String bind(String resource) throws XmppException {
         try {
-            if (!TextUtils.isEmpty(resource)) {
-                xmppOutput.sendUnchecked(
-                        "<iq type=\"set\" id=\"bind_1\">" +
-                        "<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\">" +
-                        "<resource>" +
-                        resource +
-                        "</resource>" +
-                        "</bind>" +
-                        "</iq>"
-                );
-            } else {
-                xmppOutput.sendUnchecked(
-                        "<iq type=\"set\" id=\"bind_1\">" +
-                        "<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\">" +
-                        "</bind>" +
-                        "</iq>"
-                );
+            if (!bindRequested) {
+                requestBind(resource, sessionsSupported);
+            } else
+            if (!TextUtils.equals(resource, bindResource)) {
+                throw new XmppTransportException(
+                    "Resource differs from pipelined bind request");
             }
             Stanza stanza = xmppInput.nextStanza();
             Node node = XMLUtils.getDocumentNode(stanza.getXml());
             Node bind = XMLUtils.getFirstChild(node, "urn:ietf:params:xml:ns:xmpp-bind", "bind");
             Node jid = XMLUtils.getFirstChild(bind, null, "jid");
-            if (sessionsSupported) {
+            if (sessionsSupported && !sessionRequested) {
                 startSession();
             }
+            xmppInput.setRoundTripCounter(null);
+            xmppOutput.setRoundTripCounter(null);
+            Log.d(TAG, "Bound after " + roundTrips.getCount() +
+                       " round trips" + (pipelined ? " (pipelined)" : ""));
             return jid.getTextContent();
         } catch (IllegalArgumentException e) {
             throw new XmppMalformedException("bind malformed", e);
@@ -453,7 +793,7 @@ public class FeatureNegotiationEngine {
 
     /**
      * Run a sasl based login. Most sals parts are handled by
-     * {@link SASLEngine#login(XmppInputStream, XmppOutputStream, java.util.Set, XmppAccount)}.
+     * {@link SASLEngine#login(StanzaReader, StanzaWriter, java.util.Set, XmppAccount)}.
      * @param saslMechanisms Node The DOM node of the sasl mechanisms.
      * @param account XmppAccount The xmpp account to use.
      * @return boolean True on success. False on failore.
@@ -462,25 +802,14 @@ public class FeatureNegotiationEngine {
     protected boolean saslLogin(Node saslMechanisms, XmppAccount account)
         throws XmppException
     {
-        NodeList nodes = saslMechanisms.getChildNodes();
-        HashSet<String> methods = new HashSet<String>(13);
-        for (int i = 0, l = nodes.getLength(); i < l; i++) {
-            Node node = nodes.item(i);
-            if (!XMLUtils.isInstance(node, null, "mechanism")) {
-                continue;
-            }
-            methods.add(
-                node.getFirstChild().getNodeValue()
-                    .toUpperCase().trim()
-            );
-        }
         if (SASLEngine.login(
-            xmppInput, xmppOutput, methods, account
+            xmppInput, xmppOutput, SASLEngine.getMechanisms(saslMechanisms),
+            account
         )) {
             xmppInput.detach();
             try {
                 xmppOutput.detach();
-                xmppInput.attach(inputStream);
+                xmppInput.attach(inputStream, reader);
                 xmppOutput.attach(outputStream, true, false);
             } catch (IllegalArgumentException e) {
                 throw new XmppMalformedException("Please report", e);
@@ -496,6 +825,9 @@ public class FeatureNegotiationEngine {
 
     /**
      * <p>Start TLS on the given connection.</p>
+     * <p>The SSLContext is shared between connections (see
+     * {@link SSLContextCache}), so reconnects to the same host and port can
+     * resume the last session.</p>
      * <p><b>TODO:</b> This method uses a non-validating key manager.</p>
      * @throws NoSuchAlgorithmException If the requested encryption algorithm
      *                                  is not supported.
@@ -509,38 +841,111 @@ public class FeatureNegotiationEngine {
     {
         xmppOutput.detach();
         xmppInput.detach();
-        SSLContext context = SSLContext.getInstance("TLS");
-        context.init(new KeyManager[]{},
-            new javax.net.ssl.TrustManager[]{
-                new UnTrustManager()
-            },
-            new java.security.SecureRandom()
-        );
-        socket = context.getSocketFactory().createSocket(
+        socket = handshakeTLS();
+        socket.setKeepAlive(false);
+        socket.setSoTimeout(0);
+        attachStreams();
+        xmppOutput.attach(outputStream, true, false);
+        xmppInput.attach(inputStream, reader);
+    }
+
+    /**
+     * Use the streams of the current socket, or the stream views of the
+     * channel. Channels are parsed through a reader that doesn't read
+     * ahead, so no data is lost when the stream is handed to the
+     * {@link StanzaFramer}.
+     * @throws IOException If the socket streams are not available.
+     */
+    private void attachStreams() throws IOException {
+        if (channel != null) {
+            inputStream = channel.getInputStream();
+            outputStream = channel.getOutputStream();
+            reader = channel.getReader();
+        } else {
+            inputStream = socket.getInputStream();
+            outputStream = socket.getOutputStream();
+        }
+    }
+
+    /**
+     * Check if compression may be negotiated on this connection.
+     * @return boolean True if zlib is available and the connection is not
+     *                 a non-blocking channel.
+     */
+    private boolean canCompress() {
+        return ZLibOutputStream.SUPPORTED && channel == null;
+    }
+
+    /**
+     * Wrap the current socket into a tls socket and run the handshake.
+     * Channels run the handshake on their own tls engine.
+     * @return Socket The tls socket, or the unchanged channel socket.
+     * @throws NoSuchAlgorithmException If the requested encryption algorithm
+     *                                  is not supported.
+     * @throws KeyManagementException In case of a key managment error.
+     * @throws IOException If the handshake fails.
+     */
+    private Socket handshakeTLS()
+        throws NoSuchAlgorithmException, KeyManagementException, IOException
+    {
+        SSLContext context = SSLContextCache.getContext(new UnTrustManager());
+        if (channel != null) {
+            SSLEngine sslEngine =
+                context.createSSLEngine(host, socket.getPort());
+            sslEngine.setUseClientMode(true);
+            long handshakeStart = System.currentTimeMillis();
+            channel.startTLS(sslEngine);
+            sessionResumed =
+                sslEngine.getSession().getCreationTime() < handshakeStart;
+            SSLContextCache.recordHandshake(sessionResumed);
+            return socket;
+        }
+        SSLSocket sslSocket = (SSLSocket) context.getSocketFactory().createSocket(
             socket,
-            socket.getInetAddress().getHostName(),
+            host,
             socket.getPort(),
             true
         );
-        socket.setKeepAlive(false);
-        socket.setSoTimeout(0);
-        inputStream = socket.getInputStream();
-        outputStream = socket.getOutputStream();
-        xmppOutput.attach(outputStream, true, false);
-        xmppInput.attach(inputStream);
+        long handshakeStart = System.currentTimeMillis();
+        sslSocket.startHandshake();
+        // resumed sessions keep their original creation time
+        sessionResumed =
+            sslSocket.getSession().getCreationTime() < handshakeStart;
+        SSLContextCache.recordHandshake(sessionResumed);
+        return sslSocket;
     }
 
     /**
-     * Start compression on top of the current stream.
-     * @throws XmppException In case of a XMPP/XML related error.
-     * @throws IOException In case of a IOException on the underlying stream.
+     * Request tls via STARTTLS. The answer has to be read before calling
+     * {@link #startTLS()}.
+     * @throws XmppTransportException In case of a transport error.
+     */
+    private void requestTLS() throws XmppTransportException {
+        xmppOutput.sendUnchecked(
+            "<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>"
+        );
+    }
+
+    /**
+     * Request compression on top of the current stream. The answer is
+     * handled by {@link #finishCompress()}.
+     * @throws XmppTransportException In case of a transport error.
      */
-    private void startCompress() throws XmppException, IOException {
+    private void requestCompress() throws XmppTransportException {
         xmppOutput.sendUnchecked(
             "<compress xmlns='http://jabber.org/protocol/compress'>" +
             "<method>zlib</method>" +
             "</compress>"
         );
+    }
+
+    /**
+     * Read the answer to a compression request and start compression on top
+     * of the current stream.
+     * @throws XmppException In case of a XMPP/XML related error.
+     * @throws IOException In case of a IOException on the underlying stream.
+     */
+    private void finishCompress() throws XmppException, IOException {
         boolean startCompression = XMLUtils.isInstance(
                 xmppInput.nextStanza().getDocumentNode(),
                 "http://jabber.org/protocol/compress",
@@ -551,13 +956,15 @@ public class FeatureNegotiationEngine {
             xmppInput.detach();
 
             try {
-                outputStream = new ZLibOutputStream(outputStream);
+                zlibOutput = new ZLibOutputStream(outputStream);
             } catch (NoSuchAlgorithmException e) {
                 // FAIL!
                 throw new XmppTransportException("Can't create compressed stream", e);
             }
+            outputStream = zlibOutput;
             xmppOutput.attach(outputStream, true, false);
-            inputStream = new ZLibInputStream(inputStream);
+            zlibInput = new ZLibInputStream(inputStream);
+            inputStream = zlibInput;
             xmppInput.attach(inputStream);
             compressed = true;
         }
@@ -589,6 +996,32 @@ public class FeatureNegotiationEngine {
         return secure;
     }
 
+    /**
+     * Check if the tls handshake resumed a cached session.
+     * @return boolean True if an abbreviated handshake was used.
+     */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    /**
+     * Check if the negotiation was pipelined based on cached server features.
+     * @return boolean True if requests were sent ahead of the features.
+     */
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Retrieve the number of network round trips of the negotiation. This
+     * is final after {@link #bind(String)}.
+     * @return int The number of round trips, not counting tcp and tls
+     *             handshakes.
+     */
+    public int getRoundTrips() {
+        return roundTrips.getCount();
+    }
+
     /**
      * Check the current compression status.
      * @return boolean True if this connection is zlib compressen.
@@ -597,6 +1030,24 @@ public class FeatureNegotiationEngine {
         return compressed;
     }
 
+    /**
+     * Retrieve the compressing output stream, e.g. for statistics.
+     * @return ZLibOutputStream The zlib output stream, or null if the
+     *                          connection is not compressed.
+     */
+    public ZLibOutputStream getZLibOutputStream() {
+        return zlibOutput;
+    }
+
+    /**
+     * Retrieve the decompressing input stream, e.g. for statistics.
+     * @return ZLibInputStream The zlib input stream, or null if the
+     *                         connection is not compressed.
+     */
+    public ZLibInputStream getZLibInputStream() {
+        return zlibInput;
+    }
+
     /**
      * Check the sasl outcome.
      * @return boolean True on successful login.
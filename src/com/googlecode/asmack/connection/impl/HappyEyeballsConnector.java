@@ -0,0 +1,464 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection.impl;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+import com.googlecode.asmack.util.LRUCache;
+
+/**
+ * <p>Dual stack tcp connector in the spirit of RFC 6555 (happy eyeballs).</p>
+ * <p>Connection attempts to all resolved addresses are started with a
+ * staggered delay, alternating between the address families. The next
+ * attempt starts early if all running attempts failed. The first socket
+ * that connects wins, all other attempts are cancelled by closing their
+ * sockets.</p>
+ * <p>The blocking connects of all races run on a bounded pool of
+ * {@link #MAX_ATTEMPTS} threads, attempts beyond that wait for a free
+ * thread within the deadline of their race.</p>
+ * <p>The winning address family is remembered per host and tried first on
+ * the next connect. IPv4 is preferred for unknown hosts.</p>
+ */
+public class HappyEyeballsConnector {
+
+    /**
+     * Logging tag of this class ("HappyEyeballsConnector").
+     */
+    private static final String TAG =
+                                HappyEyeballsConnector.class.getSimpleName();
+
+    /**
+     * Delay between two connection attempts, in milliseconds.
+     */
+    private static final long ATTEMPT_DELAY = 250;
+
+    /**
+     * Maximum number of concurrently running connection attempts.
+     */
+    private static final int MAX_ATTEMPTS = 8;
+
+    /**
+     * Time after which idle attempt threads terminate, in seconds.
+     */
+    private static final long KEEP_ALIVE = 30;
+
+    /**
+     * The pool running the connection attempts of all races.
+     */
+    private static final ThreadPoolExecutor ATTEMPTS = createAttemptPool();
+
+    /**
+     * Map of {{host} => {true if IPv6 won the last race}} pairs.
+     */
+    private static final LRUCache<String, Boolean> IPV6_PREFERRED =
+                                        new LRUCache<String, Boolean>(50);
+
+    /**
+     * The host name, used to remember the winning address family.
+     */
+    private final String host;
+
+    /**
+     * The ordered target addresses.
+     */
+    private final InetSocketAddress[] targets;
+
+    /**
+     * The timeout of a single connection attempt in milliseconds.
+     */
+    private final int timeout;
+
+    /**
+     * True if the sockets should be backed by a {@link SocketChannel}.
+     */
+    private final boolean channel;
+
+    /**
+     * The sockets of all running attempts.
+     */
+    private final ArrayList<Socket> pending = new ArrayList<Socket>();
+
+    /**
+     * The start of the race (System.currentTimeMillis()).
+     */
+    private long start;
+
+    /**
+     * The winning socket.
+     */
+    private Socket winner;
+
+    /**
+     * Number of failed attempts.
+     */
+    private int failed = 0;
+
+    /**
+     * The last connect error.
+     */
+    private IOException lastError;
+
+    /**
+     * True after the race has been decided or aborted.
+     */
+    private boolean done = false;
+
+    /**
+     * Create a new connector for a given host.
+     * @param host String The host name.
+     * @param targets InetSocketAddress[] The ordered target addresses.
+     * @param timeout int The timeout of a single attempt in milliseconds.
+     * @param channel boolean True for {@link SocketChannel} sockets.
+     */
+    private HappyEyeballsConnector(
+        String host,
+        InetSocketAddress[] targets,
+        int timeout,
+        boolean channel
+    ) {
+        this.host = host;
+        this.targets = targets;
+        this.timeout = timeout;
+        this.channel = channel;
+    }
+
+    /**
+     * Connect to the first reachable address of a host.
+     * @param host String The host name (used as address family cache key).
+     * @param addresses InetAddress[] All resolved addresses of the host.
+     * @param port int The target port.
+     * @param timeout int The timeout of a single attempt in milliseconds.
+     * @return Socket The connected socket.
+     * @throws IOException If no address could be reached.
+     */
+    public static Socket connect(
+        String host,
+        InetAddress[] addresses,
+        int port,
+        int timeout
+    ) throws IOException {
+        InetSocketAddress[] targets = new InetSocketAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            targets[i] = new InetSocketAddress(addresses[i], port);
+        }
+        return connect(host, targets, timeout);
+    }
+
+    /**
+     * Connect to the first reachable target of an ordered target list,
+     * e.g. the addresses of several DNS/SRV targets. The order of the
+     * targets is kept within each address family.
+     * @param host String The address family cache key, usually the name of
+     *                    the first target.
+     * @param targets InetSocketAddress[] The resolved target addresses.
+     * @param timeout int The timeout of a single attempt in milliseconds.
+     * @return Socket The connected socket.
+     * @throws IOException If no target could be reached.
+     */
+    public static Socket connect(
+        String host,
+        InetSocketAddress[] targets,
+        int timeout
+    ) throws IOException {
+        return connect(host, targets, timeout, false);
+    }
+
+    /**
+     * Connect to the first reachable target of an ordered target list,
+     * optionally with sockets that are backed by a {@link SocketChannel}
+     * (see {@link Socket#getChannel()}).
+     * @param host String The address family cache key, usually the name of
+     *                    the first target.
+     * @param targets InetSocketAddress[] The resolved target addresses.
+     * @param timeout int The timeout of a single attempt in milliseconds.
+     * @param channel boolean True for {@link SocketChannel} sockets.
+     * @return Socket The connected socket.
+     * @throws IOException If no target could be reached.
+     */
+    public static Socket connect(
+        String host,
+        InetSocketAddress[] targets,
+        int timeout,
+        boolean channel
+    ) throws IOException {
+        Boolean preferIPv6;
+        synchronized (IPV6_PREFERRED) {
+            preferIPv6 = IPV6_PREFERRED.get(host);
+        }
+        InetSocketAddress[] ordered = order(
+            targets,
+            preferIPv6 != null && preferIPv6.booleanValue()
+        );
+        Socket socket =
+            new HappyEyeballsConnector(host, ordered, timeout, channel).race();
+        synchronized (IPV6_PREFERRED) {
+            IPV6_PREFERRED.put(
+                host,
+                socket.getInetAddress() instanceof Inet6Address
+            );
+        }
+        return socket;
+    }
+
+    /**
+     * Order the addresses by alternating address families, starting with
+     * the preferred family.
+     * @param addresses InetSocketAddress[] The unordered addresses.
+     * @param preferIPv6 boolean True if IPv6 should be tried first.
+     * @return InetSocketAddress[] The ordered addresses.
+     */
+    private static InetSocketAddress[] order(
+        InetSocketAddress[] addresses,
+        boolean preferIPv6
+    ) {
+        ArrayList<InetSocketAddress> preferred =
+                                        new ArrayList<InetSocketAddress>();
+        ArrayList<InetSocketAddress> other =
+                                        new ArrayList<InetSocketAddress>();
+        for (InetSocketAddress address: addresses) {
+            if ((address.getAddress() instanceof Inet6Address) == preferIPv6) {
+                preferred.add(address);
+            } else {
+                other.add(address);
+            }
+        }
+        InetSocketAddress[] result = new InetSocketAddress[addresses.length];
+        int index = 0;
+        for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+            if (i < preferred.size()) {
+                result[index++] = preferred.get(i);
+            }
+            if (i < other.size()) {
+                result[index++] = other.get(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Create the bounded pool of named daemon threads for the connection
+     * attempts.
+     * @return ThreadPoolExecutor The attempt pool.
+     */
+    private static ThreadPoolExecutor createAttemptPool() {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(
+            MAX_ATTEMPTS,
+            MAX_ATTEMPTS,
+            KEEP_ALIVE,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(
+                        runnable,
+                        "asmack-connect-" + count.incrementAndGet()
+                    );
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            }
+        );
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * Run the connection race. Attempts are submitted in order, each after
+     * its start delay or as soon as all previous attempts failed.
+     * @return Socket The winning socket.
+     * @throws IOException If all attempts failed or timed out.
+     */
+    private Socket race() throws IOException {
+        start = System.currentTimeMillis();
+        long deadline = start + timeout + ATTEMPT_DELAY * targets.length;
+        int started = 0;
+        boolean interrupted = false;
+        synchronized (this) {
+            try {
+                long now = start;
+                while (winner == null &&
+                       failed < targets.length &&
+                       now < deadline) {
+                    long next = start + ATTEMPT_DELAY * started;
+                    if (started < targets.length &&
+                        (failed == started || now >= next)) {
+                        ATTEMPTS.execute(new Attempt(started++));
+                        continue;
+                    }
+                    long wake = deadline;
+                    if (started < targets.length) {
+                        wake = Math.min(wake, next);
+                    }
+                    wait(wake - now);
+                    now = System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                // abort, keep the interrupt for the caller (task cancel)
+                interrupted = true;
+                Thread.currentThread().interrupt();
+            }
+            done = true;
+            for (Socket socket: pending) {
+                closeQuietly(socket);
+            }
+            pending.clear();
+            if (interrupted) {
+                if (winner != null) {
+                    closeQuietly(winner);
+                }
+                throw new InterruptedIOException("Connect to " + host +
+                                                 " interrupted");
+            }
+            if (winner != null) {
+                Log.d(TAG, "Connected to " + winner.getInetAddress() +
+                           " after " + (System.currentTimeMillis() - start) +
+                           "ms");
+                return winner;
+            }
+        }
+        if (lastError != null) {
+            throw lastError;
+        }
+        throw new SocketTimeoutException("Can't connect to " + host);
+    }
+
+    /**
+     * Close a socket, ignoring errors.
+     * @param socket Socket The socket to close.
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            /* not important */
+        }
+    }
+
+    /**
+     * A single connection attempt.
+     */
+    private class Attempt implements Runnable {
+
+        /**
+         * The index of the target address.
+         */
+        private final int index;
+
+        /**
+         * Create a new attempt for the address at the given index.
+         * @param index int The address index.
+         */
+        public Attempt(int index) {
+            this.index = index;
+        }
+
+        /**
+         * Try to connect, unless the race was decided while this attempt
+         * was queued.
+         */
+        @Override
+        public void run() {
+            synchronized (HappyEyeballsConnector.this) {
+                if (done) {
+                    return;
+                }
+            }
+            // create the socket only for attempts that actually start,
+            // every socket is either pending, the winner or closed
+            Socket socket;
+            try {
+                socket = channel ? SocketChannel.open().socket() : new Socket();
+            } catch (IOException e) {
+                synchronized (HappyEyeballsConnector.this) {
+                    failed++;
+                    lastError = e;
+                    HappyEyeballsConnector.this.notifyAll();
+                }
+                return;
+            }
+            synchronized (HappyEyeballsConnector.this) {
+                if (done) {
+                    closeQuietly(socket);
+                    return;
+                }
+                pending.add(socket);
+            }
+            try {
+                socket.connect(targets[index], timeout);
+            } catch (IOException e) {
+                synchronized (HappyEyeballsConnector.this) {
+                    pending.remove(socket);
+                    failed++;
+                    lastError = e;
+                    HappyEyeballsConnector.this.notifyAll();
+                }
+                closeQuietly(socket);
+                return;
+            }
+            synchronized (HappyEyeballsConnector.this) {
+                pending.remove(socket);
+                if (winner == null && !done) {
+                    winner = socket;
+                    HappyEyeballsConnector.this.notifyAll();
+                    return;
+                }
+            }
+            // lost the race
+            closeQuietly(socket);
+        }
+
+    }
+
+}
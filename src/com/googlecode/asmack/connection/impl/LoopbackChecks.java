@@ -0,0 +1,426 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection.impl;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.googlecode.asmack.Attribute;
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.StanzaSink;
+import com.googlecode.asmack.XmppAccount;
+import com.googlecode.asmack.XmppException;
+import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.Connection;
+import com.googlecode.asmack.connection.ConnectionFactory;
+import com.googlecode.asmack.connection.XmppTransportException;
+
+/**
+ * <p>Stand-in checks and benchmarks of the connection schemes against an
+ * in-process {@link LoopbackServer}. The checks run the real negotiation
+ * and send/receive path of a scheme and fail with an
+ * {@link XmppException}.</p>
+ * <p>The checks run wherever the library runs, e.g. from an instrumentation
+ * or on a plain JVM with the Android classes and an xml pull parser on the
+ * classpath:</p>
+ * <ul>
+ *   <li><code>LoopbackChecks</code> runs all checks, including a ws:
+ *       WebSocket (RFC 7395) connect, open, restart and close.</li>
+ *   <li><code>LoopbackChecks compare [accounts]</code> connects the given
+ *       number of accounts (default 64) via tcp: and via nio: and prints
+ *       connect time, echo latency and the number of extra client
+ *       threads.</li>
+ * </ul>
+ */
+public final class LoopbackChecks {
+
+    /**
+     * Time to wait for a single stanza, in milliseconds.
+     */
+    private static final long TIMEOUT = 10 * 1000;
+
+    /**
+     * Default number of accounts of the comparison.
+     */
+    private static final int DEFAULT_ACCOUNTS = 64;
+
+    /**
+     * Sink collecting the stanzas of one connection.
+     */
+    private static class QueueSink implements StanzaSink {
+
+        /**
+         * The received stanzas.
+         */
+        private final LinkedBlockingQueue<Stanza> stanzas =
+            new LinkedBlockingQueue<Stanza>();
+
+        /**
+         * The connection failure, or null.
+         */
+        private volatile XmppException failure;
+
+        /**
+         * Released by the connection failure.
+         */
+        private final CountDownLatch failed = new CountDownLatch(1);
+
+        /**
+         * Queue a received stanza.
+         * @param stanza Stanza The received stanza.
+         */
+        @Override
+        public void receive(Stanza stanza) {
+            stanzas.add(stanza);
+        }
+
+        /**
+         * Record a connection failure.
+         * @param connection Connection The failed connection.
+         * @param exception XmppException The cause.
+         */
+        @Override
+        public void connectionFailed(
+            Connection connection,
+            XmppException exception
+        ) {
+            failure = exception;
+            failed.countDown();
+        }
+
+        /**
+         * Wait for the next stanza.
+         * @param what String The expected stanza, for the error message.
+         * @return Stanza The next stanza.
+         * @throws XmppException If no stanza arrived in time.
+         */
+        public Stanza next(String what) throws XmppException {
+            Stanza stanza;
+            try {
+                stanza = stanzas.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new XmppTransportException("Interrupted", e);
+            }
+            if (stanza == null) {
+                throw new XmppTransportException(
+                    "No " + what + " received" +
+                    (failure == null ? "" : " (" + failure + ")")
+                );
+            }
+            return stanza;
+        }
+
+        /**
+         * Wait for the connection failure.
+         * @return XmppException The cause of the failure.
+         * @throws XmppException If the connection didn't fail in time.
+         */
+        public XmppException awaitFailure() throws XmppException {
+            try {
+                if (!failed.await(TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    throw new XmppTransportException("Connection not closed");
+                }
+            } catch (InterruptedException e) {
+                throw new XmppTransportException("Interrupted", e);
+            }
+            return failure;
+        }
+
+    }
+
+    /**
+     * Utility class, no instances.
+     */
+    private LoopbackChecks() {
+    }
+
+    /**
+     * Run all checks, or the tcp/nio comparison.
+     * @param args String[] Empty, or "compare" and the number of accounts.
+     * @throws Exception In case of a setup error.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "compare".equals(args[0])) {
+            int accounts = args.length > 1 ?
+                Integer.parseInt(args[1]) : DEFAULT_ACCOUNTS;
+            LoopbackServer server = new LoopbackServer(0);
+            // nio doesn't negotiate compression
+            server.setCompressionEnabled(false);
+            server.start();
+            try {
+                compare(server, "tcp", accounts);
+                compare(server, "nio", accounts);
+            } finally {
+                server.close();
+            }
+            return;
+        }
+        int failed = 0;
+        String[] checks = new String[]{
+            "tcp", "tcp+pipelining", "tcp+zlib", "tcp+zlib+pipelining", "nio",
+            "ws"
+        };
+        for (String check: checks) {
+            LoopbackServer server = new LoopbackServer(0);
+            server.start();
+            try {
+                runCheck(server, check);
+                System.out.println("ok " + check);
+            } catch (XmppException e) {
+                failed++;
+                System.out.println("FAILED " + check + ": " + e);
+            } finally {
+                server.close();
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Run a single named check, a scheme followed by "+" separated options
+     * ("pipelining", "zlib").
+     * @param server LoopbackServer The server.
+     * @param check String The check name.
+     * @throws XmppException If the check failed.
+     */
+    private static void runCheck(LoopbackServer server, String check)
+        throws XmppException
+    {
+        String[] options = check.split("\\+");
+        String scheme = options[0];
+        boolean pipelining = false;
+        server.setCompressionEnabled(false);
+        for (int i = 1; i < options.length; i++) {
+            if ("pipelining".equals(options[i])) {
+                pipelining = true;
+            }
+            if ("zlib".equals(options[i])) {
+                server.setCompressionEnabled(true);
+            }
+        }
+        for (int round = 0; round < 5; round++) {
+            checkConnect(server, scheme, pipelining);
+        }
+        checkServerClose(server, scheme);
+    }
+
+    /**
+     * Connect an account, check that the session result of the
+     * negotiation and an echoed message arrive, and disconnect.
+     * @param server LoopbackServer The server.
+     * @param scheme String The connection scheme (tcp, nio, ws).
+     * @param pipelining boolean True to pipeline the negotiation.
+     * @throws XmppException If a stanza is missing or the connect failed.
+     */
+    public static void checkConnect(
+        LoopbackServer server,
+        String scheme,
+        boolean pipelining
+    ) throws XmppException {
+        QueueSink sink = new QueueSink();
+        Connection connection = connect(server, scheme, "check", pipelining);
+        try {
+            connection.connect(sink);
+            // the session result is sent right after bind
+            Stanza session = sink.next("session result");
+            if (!"iq".equals(session.getName()) ||
+                !"result".equals(session.getAttributeValue("type"))) {
+                throw new XmppMalformedException(
+                    "Expected the session result, got " + session.getXml()
+                );
+            }
+            connection.send(echo("check"));
+            Stanza echo = sink.next("echo");
+            if (!"check".equals(echo.getAttributeValue("id"))) {
+                throw new XmppMalformedException(
+                    "Expected the echo, got " + echo.getXml()
+                );
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Connect an account and check that closing the server ends the
+     * connection. A ws: connection has to see the &lt;close/&gt; of the
+     * server, not just a dropped socket. The server can't be used
+     * afterwards.
+     * @param server LoopbackServer The server.
+     * @param scheme String The connection scheme (tcp, nio, ws).
+     * @throws XmppException If the close went unnoticed.
+     */
+    public static void checkServerClose(LoopbackServer server, String scheme)
+        throws XmppException
+    {
+        QueueSink sink = new QueueSink();
+        Connection connection = connect(server, scheme, "close", false);
+        try {
+            connection.connect(sink);
+            sink.next("session result");
+            server.close();
+            XmppException failure = sink.awaitFailure();
+            if ("ws".equals(scheme) &&
+                !"Stream closed by server".equals(failure.getMessage())) {
+                throw new XmppMalformedException(
+                    "Expected <close/>, got " + failure
+                );
+            }
+            if (!connection.isClosed()) {
+                throw new XmppTransportException("Connection still open");
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * Connect a number of accounts through a scheme and print connect
+     * time, echo latency and thread usage.
+     * @param server LoopbackServer The server.
+     * @param scheme String The connection scheme (tcp, nio).
+     * @param accounts int The number of accounts.
+     * @throws XmppException If a connect or echo failed.
+     */
+    public static void compare(
+        LoopbackServer server,
+        String scheme,
+        int accounts
+    ) throws XmppException {
+        ArrayList<Connection> connections = new ArrayList<Connection>();
+        ArrayList<QueueSink> sinks = new ArrayList<QueueSink>();
+        int threads = countClientThreads();
+        long start = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < accounts; i++) {
+                QueueSink sink = new QueueSink();
+                Connection connection =
+                    connect(server, scheme, "user" + i, false);
+                connections.add(connection);
+                connection.connect(sink);
+                sink.next("session result");
+                sinks.add(sink);
+            }
+            long connected = System.currentTimeMillis();
+            for (int i = 0; i < accounts; i++) {
+                connections.get(i).send(echo("compare" + i));
+            }
+            for (QueueSink sink: sinks) {
+                sink.next("echo");
+            }
+            long echoed = System.currentTimeMillis();
+            System.out.println(
+                scheme + ": " + accounts + " accounts, connect " +
+                (connected - start) + "ms, echo " + (echoed - connected) +
+                "ms, client threads +" + (countClientThreads() - threads)
+            );
+        } finally {
+            for (Connection connection: connections) {
+                try {
+                    connection.close();
+                } catch (XmppException e) {
+                    /* not important */
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the live threads, except for the server session threads.
+     * @return int The number of client side threads.
+     */
+    private static int countClientThreads() {
+        int count = 0;
+        for (Thread thread: Thread.getAllStackTraces().keySet()) {
+            if (!thread.getName().startsWith("asmack-loopback")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Create an unconnected connection to the server.
+     * @param server LoopbackServer The server.
+     * @param scheme String The connection scheme (tcp, nio, ws).
+     * @param user String The user name.
+     * @param pipelining boolean True to pipeline the negotiation.
+     * @return Connection The new connection.
+     */
+    private static Connection connect(
+        LoopbackServer server,
+        String scheme,
+        String user,
+        boolean pipelining
+    ) {
+        XmppAccount account = new XmppAccount();
+        account.setJid(user + "@loopback");
+        account.setPassword("loopback");
+        account.setResource("check");
+        account.setPipeliningEnabled(pipelining);
+        String address =
+            server.getAddress().getHostAddress() + ":" + server.getPort();
+        if ("ws".equals(scheme)) {
+            account.setConnection("ws://" + address + "/xmpp-websocket");
+        } else {
+            account.setConnection(scheme + ":" + address);
+        }
+        return ConnectionFactory.createConnection(account);
+    }
+
+    /**
+     * Create a message to an unknown jid, echoed by the server.
+     * @param id String The message id.
+     * @return Stanza The message.
+     */
+    private static Stanza echo(String id) {
+        ArrayList<Attribute> attributes = new ArrayList<Attribute>(2);
+        attributes.add(new Attribute("to", "", "echo@loopback"));
+        attributes.add(new Attribute("id", "", id));
+        return new Stanza(
+            "message",
+            "jabber:client",
+            null,
+            "<message xmlns='jabber:client'><body>" + id + "</body></message>",
+            attributes
+        );
+    }
+
+}
@@ -0,0 +1,1346 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection.impl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.w3c.dom.Node;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+import com.googlecode.asmack.Attribute;
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XMLUtils;
+import com.googlecode.asmack.XMPPUtils;
+import com.googlecode.asmack.XmppException;
+import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.XmppTransportException;
+
+/**
+ * <p>Minimal in-process xmpp server for load tests and benchmarks. It
+ * listens on the loopback interface and accepts any domain.</p>
+ * <p>Supported are STARTTLS (if a server {@link SSLContext} with a test
+ * certificate is set), zlib compression, PLAIN and DIGEST-MD5 (if a password
+ * is set), bind, session, an empty roster and ping. Messages, presences and
+ * iqs are routed to bound sessions by full or bare jid. Stanzas to unknown
+ * jids are echoed back to the sender.</p>
+ * <p>Clients starting with an http upgrade request get xmpp over
+ * WebSocket (RFC 7395, without tls and permessage-deflate) on the same
+ * port, e.g. via "ws://127.0.0.1:port/".</p>
+ * <p>The shared instance (see {@link #getInstance()}) is reached through
+ * "loopback:" connection strings. Benchmarks may start their own instance
+ * on a fixed port and use "tcp:127.0.0.1:port".</p>
+ */
+public class LoopbackServer {
+
+    /**
+     * Logging tag of this class ("LoopbackServer").
+     */
+    private static final String TAG = LoopbackServer.class.getSimpleName();
+
+    /**
+     * The xmpp stream namespace.
+     */
+    private static final String STREAM_NAMESPACE =
+                                        "http://etherx.jabber.org/streams";
+
+    /**
+     * The xmpp sasl namespace.
+     */
+    private static final String SASL_NAMESPACE =
+                                        "urn:ietf:params:xml:ns:xmpp-sasl";
+
+    /**
+     * The xmpp bind namespace.
+     */
+    private static final String BIND_NAMESPACE =
+                                        "urn:ietf:params:xml:ns:xmpp-bind";
+
+    /**
+     * The shared instance for "loopback:" connections.
+     */
+    private static LoopbackServer instance;
+
+    /**
+     * The listening socket.
+     */
+    private final ServerSocket serverSocket;
+
+    /**
+     * Map of {{full jid} => {session}} pairs of all bound sessions.
+     */
+    private final ConcurrentHashMap<String, Session> sessions =
+                                    new ConcurrentHashMap<String, Session>();
+
+    /**
+     * Number of accepted connections, used for stream ids and thread names.
+     */
+    private final AtomicLong connectionCount = new AtomicLong();
+
+    /**
+     * Number of handled stanzas.
+     */
+    private final AtomicLong stanzaCount = new AtomicLong();
+
+    /**
+     * The tls context offered via STARTTLS, or null.
+     */
+    private volatile SSLContext sslContext;
+
+    /**
+     * The password required for all users, or null to accept any PLAIN
+     * login.
+     */
+    private volatile String password;
+
+    /**
+     * True if zlib compression should be offered.
+     */
+    private volatile boolean compressionEnabled = ZLibOutputStream.SUPPORTED;
+
+    /**
+     * Create a new server on the loopback interface.
+     * @param port int The tcp port, 0 for any free port.
+     * @throws IOException If the port can't be bound.
+     */
+    public LoopbackServer(int port) throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(
+            new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port)
+        );
+    }
+
+    /**
+     * Retrieve the shared server, starting it on a free port on first use.
+     * @return LoopbackServer The running shared server.
+     * @throws IOException If the server can't be started.
+     */
+    public static synchronized LoopbackServer getInstance()
+        throws IOException
+    {
+        if (instance == null) {
+            instance = new LoopbackServer(0);
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Start accepting connections on a daemon thread.
+     */
+    public void start() {
+        Thread acceptor = new Thread("asmack-loopback") {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        Session session = new Session(socket);
+                        session.setDaemon(true);
+                        session.start();
+                    } catch (IOException e) {
+                        if (!serverSocket.isClosed()) {
+                            Log.e(TAG, "accept failed", e);
+                        }
+                    }
+                }
+            }
+        };
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.d(TAG, "Listening on port " + getPort());
+    }
+
+    /**
+     * Stop accepting connections and close all bound sessions.
+     */
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            /* not important */
+        }
+        for (Session session: sessions.values()) {
+            session.close();
+        }
+    }
+
+    /**
+     * Retrieve the address of the server.
+     * @return InetAddress The loopback address.
+     */
+    public InetAddress getAddress() {
+        return serverSocket.getInetAddress();
+    }
+
+    /**
+     * Retrieve the tcp port of the server.
+     * @return int The port.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Offer STARTTLS with the given server context (e.g. one initialized
+     * with a test certificate), or disable tls.
+     * @param sslContext SSLContext The server tls context, or null.
+     */
+    public void setSSLContext(SSLContext sslContext) {
+        this.sslContext = sslContext;
+    }
+
+    /**
+     * Require a password for all users. DIGEST-MD5 is only offered if a
+     * password is set.
+     * @param password String The password, or null to accept any login.
+     */
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * Change whether zlib compression is offered.
+     * @param compressionEnabled boolean True to offer zlib.
+     */
+    public void setCompressionEnabled(boolean compressionEnabled) {
+        this.compressionEnabled = compressionEnabled;
+    }
+
+    /**
+     * Retrieve the number of bound sessions.
+     * @return int The number of bound sessions.
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Retrieve the number of stanzas handled after bind.
+     * @return long The number of handled stanzas.
+     */
+    public long getStanzaCount() {
+        return stanzaCount.get();
+    }
+
+    /**
+     * Route a stanza to all bound sessions of a jid.
+     * @param to String The full or bare target jid.
+     * @param stanza String The serialized stanza.
+     * @return boolean True if at least one session received the stanza.
+     */
+    private boolean route(String to, String stanza) {
+        Session session = sessions.get(to);
+        if (session != null) {
+            return session.deliver(stanza);
+        }
+        boolean delivered = false;
+        if (to.indexOf('/') == -1) {
+            for (Session candidate: sessions.values()) {
+                if (to.equals(candidate.bareJid)) {
+                    delivered |= candidate.deliver(stanza);
+                }
+            }
+        }
+        return delivered;
+    }
+
+    /**
+     * Compute the lower case hex MD5 of a string.
+     * @param data String The input.
+     * @return String The hex digest.
+     * @throws XmppException If MD5 is not available.
+     */
+    private static String md5Hex(String data) throws XmppException {
+        try {
+            return hex(md5(data.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new XmppException("utf-8 not supported", e);
+        }
+    }
+
+    /**
+     * Compute the MD5 of some bytes.
+     * @param data byte[] The input.
+     * @return byte[] The digest.
+     * @throws XmppException If MD5 is not available.
+     */
+    private static byte[] md5(byte[] data) throws XmppException {
+        try {
+            return MessageDigest.getInstance("MD5").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new XmppException("MD5 not supported", e);
+        }
+    }
+
+    /**
+     * Convert bytes to lower case hex.
+     * @param data byte[] The input.
+     * @return String The hex string.
+     */
+    private static String hex(byte[] data) {
+        StringBuilder result = new StringBuilder(data.length * 2);
+        for (byte b: data) {
+            result.append(Character.forDigit((b >> 4) & 0xf, 16));
+            result.append(Character.forDigit(b & 0xf, 16));
+        }
+        return result.toString();
+    }
+
+    /**
+     * Parse the key/value pairs of a DIGEST-MD5 response.
+     * @param response String The decoded response.
+     * @return HashMap<String, String> The lower case keys and values.
+     */
+    private static HashMap<String, String> parseDigest(String response) {
+        HashMap<String, String> values = new HashMap<String, String>();
+        int index = 0;
+        int length = response.length();
+        while (index < length) {
+            int split = response.indexOf('=', index);
+            if (split == -1) {
+                break;
+            }
+            String key = response.substring(index, split).trim().toLowerCase();
+            index = split + 1;
+            StringBuilder value = new StringBuilder();
+            if (index < length && response.charAt(index) == '"') {
+                index++;
+                while (index < length && response.charAt(index) != '"') {
+                    if (response.charAt(index) == '\\') {
+                        index++;
+                    }
+                    if (index < length) {
+                        value.append(response.charAt(index));
+                    }
+                    index++;
+                }
+                index = response.indexOf(',', index);
+                if (index == -1) {
+                    index = length;
+                }
+            } else {
+                int end = response.indexOf(',', index);
+                if (end == -1) {
+                    end = length;
+                }
+                value.append(response.substring(index, end).trim());
+                index = end;
+            }
+            values.put(key, value.toString());
+            index++;
+        }
+        return values;
+    }
+
+    /**
+     * Server side of an xmpp over WebSocket (RFC 7395) connection. Frames
+     * are sent unmasked and without extensions, permessage-deflate offers
+     * are ignored.
+     */
+    private static class ServerWebSocket
+        implements StanzaReader, StanzaWriter
+    {
+
+        /**
+         * Maximum size of a single message in bytes.
+         */
+        private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+        /**
+         * The raw client input.
+         */
+        private final InputStream in;
+
+        /**
+         * The buffered client output.
+         */
+        private final OutputStream out;
+
+        /**
+         * True after a close frame has been sent.
+         */
+        private boolean closed = false;
+
+        /**
+         * Answer the http upgrade request of a client.
+         * @param in InputStream The raw client input.
+         * @param out OutputStream The raw client output.
+         * @throws IOException In case of a transport error.
+         * @throws XmppTransportException If the request isn't a valid xmpp
+         *                                WebSocket upgrade.
+         */
+        public ServerWebSocket(InputStream in, OutputStream out)
+            throws IOException, XmppTransportException
+        {
+            this.in = in;
+            this.out = new BufferedOutputStream(out);
+            handshake();
+        }
+
+        /**
+         * Read the upgrade request and send the 101 answer.
+         * @throws IOException In case of a transport error.
+         * @throws XmppTransportException If the request isn't a valid xmpp
+         *                                WebSocket upgrade.
+         */
+        private void handshake() throws IOException, XmppTransportException {
+            String request = readLine();
+            if (!request.startsWith("GET ")) {
+                throw new XmppTransportException("Not a WebSocket upgrade");
+            }
+            HashMap<String, String> headers = new HashMap<String, String>();
+            for (String line = readLine(); line.length() > 0;
+                 line = readLine()) {
+                int split = line.indexOf(':');
+                if (split != -1) {
+                    headers.put(
+                        line.substring(0, split).trim().toLowerCase(),
+                        line.substring(split + 1).trim()
+                    );
+                }
+            }
+            String key = headers.get("sec-websocket-key");
+            String protocol = headers.get("sec-websocket-protocol");
+            if (!"websocket".equalsIgnoreCase(headers.get("upgrade")) ||
+                key == null ||
+                protocol == null ||
+                !Arrays.asList(protocol.split("\\s*,\\s*")).contains("xmpp")) {
+                out.write(
+                    "HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\n\r\n"
+                    .getBytes("ISO-8859-1")
+                );
+                out.flush();
+                throw new XmppTransportException("Not an xmpp WebSocket");
+            }
+            out.write((
+                "HTTP/1.1 101 Switching Protocols\r\n" +
+                "Upgrade: websocket\r\n" +
+                "Connection: Upgrade\r\n" +
+                "Sec-WebSocket-Accept: " + WebSocketStream.accept(key) +
+                "\r\n" +
+                "Sec-WebSocket-Protocol: xmpp\r\n" +
+                "\r\n"
+            ).getBytes("ISO-8859-1"));
+            out.flush();
+        }
+
+        /**
+         * Read a single http header line.
+         * @return String The line without the line break.
+         * @throws IOException In case of a transport error.
+         */
+        private String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            for (int c = readByte(); c != '\n'; c = readByte()) {
+                if (c != '\r') {
+                    line.append((char) c);
+                }
+                if (line.length() > 8192) {
+                    throw new IOException("http header line too long");
+                }
+            }
+            return line.toString();
+        }
+
+        /**
+         * Read a single byte, failing at the end of the stream.
+         * @return int The byte.
+         * @throws IOException In case of a transport error or end of stream.
+         */
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("WebSocket closed");
+            }
+            return b;
+        }
+
+        /**
+         * Read a given number of bytes.
+         * @param length int The number of bytes.
+         * @return byte[] The bytes.
+         * @throws IOException In case of a transport error or end of stream.
+         */
+        private byte[] readFully(int length) throws IOException {
+            byte[] data = new byte[length];
+            int offset = 0;
+            while (offset < length) {
+                int count = in.read(data, offset, length - offset);
+                if (count == -1) {
+                    throw new EOFException("WebSocket closed");
+                }
+                offset += count;
+            }
+            return data;
+        }
+
+        /**
+         * Read the next message as a stanza. A &lt;close/&gt; of the client
+         * ends the stream.
+         * @return Stanza The next stanza.
+         * @throws XmppException In case of a transport error, a malformed
+         *                       message or a closed stream.
+         * @see StanzaReader#nextStanza()
+         */
+        @Override
+        public Stanza nextStanza() throws XmppException {
+            byte[] message;
+            try {
+                message = readMessage();
+            } catch (IOException e) {
+                throw new XmppTransportException("error during stanza read", e);
+            }
+            if (message == null) {
+                throw new XmppTransportException("WebSocket closed");
+            }
+            Stanza stanza = StanzaFramer.parse(message);
+            if ("close".equals(stanza.getName()) &&
+                WebSocketStream.FRAMING_NAMESPACE.equals(
+                    stanza.getNamespace())) {
+                throw new XmppTransportException("Stream closed by client");
+            }
+            return stanza;
+        }
+
+        /**
+         * Read the next complete data message, answering control frames.
+         * Client frames have to be masked.
+         * @return byte[] The message payload, or null if the client closed
+         *                the WebSocket.
+         * @throws IOException In case of a transport or protocol error.
+         */
+        private byte[] readMessage() throws IOException {
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            boolean started = false;
+            while (true) {
+                int head = readByte();
+                int length = readByte();
+                int opcode = head & 0x0f;
+                if ((head & 0x70) != 0) {
+                    throw new IOException("No WebSocket extension agreed");
+                }
+                if ((length & 0x80) == 0) {
+                    throw new IOException("Unmasked client frame");
+                }
+                long size = length & 0x7f;
+                if (size == 126) {
+                    size = (readByte() << 8) | readByte();
+                } else if (size == 127) {
+                    size = 0;
+                    for (int i = 0; i < 8; i++) {
+                        size = (size << 8) | readByte();
+                    }
+                }
+                if (size < 0 || size > MAX_MESSAGE_SIZE) {
+                    throw new IOException("WebSocket frame too large");
+                }
+                byte[] mask = readFully(4);
+                byte[] payload = readFully((int) size);
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+                if (opcode == 0x8) {
+                    sendClose();
+                    return null;
+                }
+                if (opcode == 0x9) {
+                    sendFrame(0xA, payload);
+                    continue;
+                }
+                if (opcode == 0xA) {
+                    continue;
+                }
+                if (opcode == 0x0) {
+                    if (!started) {
+                        throw new IOException("Unexpected continuation frame");
+                    }
+                } else if (opcode == 0x1 || opcode == 0x2) {
+                    if (started) {
+                        throw new IOException("Unexpected data frame");
+                    }
+                    started = true;
+                } else {
+                    throw new IOException("Unknown WebSocket opcode " + opcode);
+                }
+                message.write(payload);
+                if (message.size() > MAX_MESSAGE_SIZE) {
+                    throw new IOException("WebSocket message too large");
+                }
+                if ((head & 0x80) != 0) {
+                    return message.toByteArray();
+                }
+            }
+        }
+
+        /**
+         * Send a xml fragment as a single text message.
+         * @param stanza String The xml fragment, including its namespace.
+         * @throws XmppTransportException In case of a transport error.
+         * @see StanzaWriter#sendUnchecked(String)
+         */
+        @Override
+        public void sendUnchecked(String stanza)
+            throws XmppTransportException
+        {
+            try {
+                sendFrame(0x1, stanza.getBytes("UTF-8"));
+            } catch (IOException e) {
+                throw new XmppTransportException("Stanza sending failed", e);
+            }
+        }
+
+        /**
+         * Write a single unmasked frame.
+         * @param opcode int The frame opcode.
+         * @param payload byte[] The payload.
+         * @throws IOException In case of a transport error.
+         */
+        private synchronized void sendFrame(int opcode, byte[] payload)
+            throws IOException
+        {
+            if (closed) {
+                throw new IOException("WebSocket closed");
+            }
+            out.write(0x80 | opcode);
+            if (payload.length < 126) {
+                out.write(payload.length);
+            } else if (payload.length < 65536) {
+                out.write(126);
+                out.write(payload.length >> 8);
+                out.write(payload.length);
+            } else {
+                out.write(127);
+                for (int i = 7; i >= 0; i--) {
+                    out.write(i >= 4 ? 0 : (payload.length >> (8 * i)));
+                }
+            }
+            out.write(payload);
+            out.flush();
+        }
+
+        /**
+         * Send a close frame, once.
+         * @throws IOException In case of a transport error.
+         */
+        private synchronized void sendClose() throws IOException {
+            if (!closed) {
+                sendFrame(0x8, new byte[0]);
+                closed = true;
+            }
+        }
+
+        /**
+         * Close the xmpp stream with &lt;close/&gt; followed by a close
+         * frame. Errors are ignored, the socket is closed afterwards anyway.
+         */
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            try {
+                sendUnchecked(
+                    "<close xmlns='" + WebSocketStream.FRAMING_NAMESPACE + "'/>"
+                );
+                sendClose();
+            } catch (XmppTransportException e) {
+                /* not important */
+            } catch (IOException e) {
+                /* not important */
+            }
+        }
+
+    }
+
+    /**
+     * A single client connection, served by its own thread.
+     */
+    private class Session extends Thread {
+
+        /**
+         * The client socket (tls wrapped after STARTTLS).
+         */
+        private Socket socket;
+
+        /**
+         * The current raw input stream.
+         */
+        private InputStream inputStream;
+
+        /**
+         * The current raw output stream.
+         */
+        private OutputStream outputStream;
+
+        /**
+         * The stanza reader of the client stream.
+         */
+        private XmppInputStream xmppInput;
+
+        /**
+         * The stanza writer of the server stream.
+         */
+        private XmppOutputStream xmppOutput;
+
+        /**
+         * The WebSocket of a "ws:" client, or null for plain xmpp streams.
+         */
+        private ServerWebSocket webSocket;
+
+        /**
+         * The stanza reader of the session, the WebSocket or xmppInput.
+         */
+        private StanzaReader reader;
+
+        /**
+         * The stanza writer of the session, the WebSocket or xmppOutput.
+         */
+        private StanzaWriter writer;
+
+        /**
+         * The domain requested by the client.
+         */
+        private String domain;
+
+        /**
+         * The authenticated user name.
+         */
+        private String user;
+
+        /**
+         * The bare jid after authentication.
+         */
+        private volatile String bareJid;
+
+        /**
+         * The full jid after bind.
+         */
+        private volatile String fullJid;
+
+        /**
+         * True after STARTTLS.
+         */
+        private boolean secure = false;
+
+        /**
+         * True after compression was started.
+         */
+        private boolean compressed = false;
+
+        /**
+         * True if the next stream header needs a <code>&lt;?xml?&gt;</code>
+         * declaration. Set by a restart, as the declaration must not be
+         * written before the client opened the new stream.
+         */
+        private boolean declare = false;
+
+        /**
+         * Create a session for an accepted socket.
+         * @param socket Socket The client socket.
+         */
+        public Session(Socket socket) {
+            super("asmack-loopback-" + connectionCount.incrementAndGet());
+            this.socket = socket;
+        }
+
+        /**
+         * Negotiate the stream and handle stanzas until the client leaves.
+         */
+        @Override
+        public void run() {
+            try {
+                PushbackInputStream pushback =
+                    new PushbackInputStream(socket.getInputStream(), 1);
+                inputStream = pushback;
+                outputStream = socket.getOutputStream();
+                int first = pushback.read();
+                if (first == -1) {
+                    return;
+                }
+                pushback.unread(first);
+                if (first == 'G') {
+                    // http upgrade request of a ws: client
+                    webSocket = new ServerWebSocket(inputStream, outputStream);
+                    reader = webSocket;
+                    writer = webSocket;
+                } else {
+                    xmppInput = new XmppInputStream(inputStream);
+                    xmppInput.setDebugEnabled(false);
+                    xmppOutput = new XmppOutputStream(outputStream);
+                    reader = xmppInput;
+                    writer = xmppOutput;
+                }
+                negotiate();
+                while (true) {
+                    handle(reader.nextStanza());
+                    stanzaCount.incrementAndGet();
+                }
+            } catch (XmppException e) {
+                Log.d(TAG, getName() + " closed: " + e.getMessage());
+            } catch (IOException e) {
+                Log.d(TAG, getName() + " closed: " + e.getMessage());
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Run stream restarts until the client bound a resource.
+         * @throws XmppException In case of a protocol error.
+         * @throws IOException In case of a transport error.
+         */
+        private void negotiate() throws XmppException, IOException {
+            while (fullJid == null) {
+                if (webSocket != null) {
+                    openFraming();
+                } else {
+                    openStream();
+                }
+                boolean restart = false;
+                while (!restart && fullJid == null) {
+                    restart = negotiate(reader.nextStanza());
+                }
+            }
+        }
+
+        /**
+         * Read the stream header of the client and answer with the server
+         * header and the stream features.
+         * @throws XmppException In case of a protocol error.
+         * @throws IOException In case of a transport error.
+         */
+        private void openStream() throws XmppException, IOException {
+            try {
+                xmppInput.readOpening();
+            } catch (XmlPullParserException e) {
+                throw new XmppMalformedException("bad stream opening", e);
+            }
+            domain = xmppInput.getTo();
+            if (domain == null) {
+                domain = "localhost";
+            }
+            String declaration = "";
+            if (declare) {
+                declaration = "<?xml version='1.0' encoding='UTF-8'?>";
+                declare = false;
+            }
+            writer.sendUnchecked(
+                declaration +
+                "<stream:stream xmlns='jabber:client' " +
+                "xmlns:stream='" + STREAM_NAMESPACE + "' " +
+                "from='" + XMLUtils.xmlEscape(domain) + "' " +
+                "id='" + getName() + "' version='1.0'>" +
+                getFeatures()
+            );
+        }
+
+        /**
+         * Read the &lt;open/&gt; of a WebSocket client and answer with the
+         * server &lt;open/&gt; and the stream features, each as a message.
+         * @throws XmppException In case of a protocol or transport error.
+         */
+        private void openFraming() throws XmppException {
+            Stanza open = webSocket.nextStanza();
+            if (!"open".equals(open.getName()) ||
+                !WebSocketStream.FRAMING_NAMESPACE.equals(
+                    open.getNamespace())) {
+                throw new XmppMalformedException(
+                    "Expected <open/>, got " + open.getXml()
+                );
+            }
+            domain = open.getAttributeValue("to");
+            if (domain == null) {
+                domain = "localhost";
+            }
+            webSocket.sendUnchecked(
+                "<open xmlns='" + WebSocketStream.FRAMING_NAMESPACE + "' " +
+                "from='" + XMLUtils.xmlEscape(domain) + "' " +
+                "id='" + getName() + "' version='1.0'/>"
+            );
+            webSocket.sendUnchecked(getFeatures());
+        }
+
+        /**
+         * Build the stream features of the current negotiation state.
+         * WebSocket streams get neither STARTTLS nor compression, and their
+         * features declare the stream prefix, as they are a message of
+         * their own.
+         * @return String The features element.
+         */
+        private String getFeatures() {
+            StringBuilder features = new StringBuilder(512);
+            if (webSocket != null) {
+                features.append(
+                    "<stream:features xmlns:stream='" + STREAM_NAMESPACE + "'>"
+                );
+            } else {
+                features.append("<stream:features>");
+            }
+            if (webSocket == null && !secure && sslContext != null) {
+                features.append(
+                    "<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>"
+                );
+            }
+            if (webSocket == null && !compressed && compressionEnabled) {
+                features.append(
+                    "<compression xmlns='http://jabber.org/features/compress'>" +
+                    "<method>zlib</method>" +
+                    "</compression>"
+                );
+            }
+            if (bareJid == null) {
+                features.append("<mechanisms xmlns='" + SASL_NAMESPACE + "'>");
+                if (password != null) {
+                    features.append("<mechanism>DIGEST-MD5</mechanism>");
+                }
+                features.append("<mechanism>PLAIN</mechanism>");
+                features.append("</mechanisms>");
+            } else {
+                features.append("<bind xmlns='" + BIND_NAMESPACE + "'/>");
+                features.append(
+                    "<session xmlns='urn:ietf:params:xml:ns:xmpp-session'/>"
+                );
+                features.append("<ver xmlns='urn:xmpp:features:rosterver'/>");
+            }
+            features.append("</stream:features>");
+            return features.toString();
+        }
+
+        /**
+         * Handle a single negotiation element.
+         * @param stanza Stanza The received element.
+         * @return boolean True if the stream has to be restarted.
+         * @throws XmppException In case of a protocol error.
+         * @throws IOException In case of a transport error.
+         */
+        private boolean negotiate(Stanza stanza)
+            throws XmppException, IOException
+        {
+            Node node = stanza.getDocumentNode();
+            if (webSocket == null && sslContext != null && !secure &&
+                XMLUtils.isInstance(
+                    node, "urn:ietf:params:xml:ns:xmpp-tls", "starttls")) {
+                writer.sendUnchecked(
+                    "<proceed xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>"
+                );
+                SSLSocket sslSocket = (SSLSocket) sslContext
+                    .getSocketFactory()
+                    .createSocket(socket, domain, socket.getPort(), true);
+                sslSocket.setUseClientMode(false);
+                sslSocket.startHandshake();
+                socket = sslSocket;
+                secure = true;
+                restart(socket.getInputStream(), socket.getOutputStream());
+                return true;
+            }
+            if (webSocket == null && compressionEnabled && !compressed &&
+                XMLUtils.isInstance(
+                    node, "http://jabber.org/protocol/compress", "compress")) {
+                writer.sendUnchecked(
+                    "<compressed xmlns='http://jabber.org/protocol/compress'/>"
+                );
+                OutputStream zlibOutput;
+                try {
+                    zlibOutput = new ZLibOutputStream(outputStream);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new XmppTransportException("zlib not supported", e);
+                }
+                compressed = true;
+                restart(new ZLibInputStream(inputStream), zlibOutput);
+                return true;
+            }
+            if (bareJid == null &&
+                XMLUtils.isInstance(node, SASL_NAMESPACE, "auth")) {
+                if (!authenticate(stanza)) {
+                    // a WebSocket stream is closed by close()
+                    writer.sendUnchecked(
+                        "<failure xmlns='" + SASL_NAMESPACE + "'>" +
+                        "<not-authorized/></failure>" +
+                        (webSocket == null ? "</stream:stream>" : "")
+                    );
+                    throw new XmppTransportException("not authorized");
+                }
+                bareJid = user + "@" + domain;
+                writer.sendUnchecked(
+                    "<success xmlns='" + SASL_NAMESPACE + "'/>"
+                );
+                restart(inputStream, outputStream);
+                return true;
+            }
+            if (bareJid != null && "iq".equals(stanza.getName()) &&
+                XMLUtils.hasChild(node, BIND_NAMESPACE, "bind")) {
+                bind(stanza, node);
+                return false;
+            }
+            throw new XmppTransportException(
+                "Unexpected negotiation element " + stanza.getName()
+            );
+        }
+
+        /**
+         * Reset the stream reader and writer on top of new streams. Nothing
+         * is written here: the new server header is sent by
+         * {@link #negotiate()} after the client opened its new stream.
+         * WebSocket streams restart with a new &lt;open/&gt; message and
+         * need no reset.
+         * @param in InputStream The new raw input.
+         * @param out OutputStream The new raw output.
+         * @throws IOException In case of a transport error.
+         * @throws XmppException In case of a parser error.
+         */
+        private void restart(InputStream in, OutputStream out)
+            throws IOException, XmppException
+        {
+            if (webSocket != null) {
+                return;
+            }
+            inputStream = in;
+            outputStream = out;
+            xmppInput.detach();
+            xmppOutput.detach();
+            xmppInput.attach(inputStream);
+            xmppOutput.attach(outputStream, false, false);
+            declare = true;
+        }
+
+        /**
+         * Run a PLAIN or DIGEST-MD5 login.
+         * @param auth Stanza The auth element.
+         * @return boolean True if the user was authenticated.
+         * @throws XmppException In case of a protocol error.
+         */
+        private boolean authenticate(Stanza auth) throws XmppException {
+            String mechanism = auth.getAttributeValue("mechanism");
+            if ("PLAIN".equals(mechanism)) {
+                String[] parts = decode(auth).split("\0", -1);
+                if (parts.length != 3) {
+                    return false;
+                }
+                user = parts[1];
+                return password == null || password.equals(parts[2]);
+            }
+            if (!"DIGEST-MD5".equals(mechanism) || password == null) {
+                return false;
+            }
+            String nonce = Long.toHexString(
+                SSLContextCache.getSecureRandom().nextLong()
+            );
+            sendChallenge(
+                "realm=\"" + domain + "\",nonce=\"" + nonce + "\"," +
+                "qop=\"auth\",charset=utf-8,algorithm=md5-sess"
+            );
+            HashMap<String, String> response =
+                parseDigest(decode(reader.nextStanza()));
+            user = response.get("username");
+            String cnonce = response.get("cnonce");
+            String nc = response.get("nc");
+            String qop = response.get("qop");
+            String uri = response.get("digest-uri");
+            if (user == null || cnonce == null || nc == null ||
+                uri == null || !nonce.equals(response.get("nonce"))) {
+                return false;
+            }
+            if (qop == null) {
+                qop = "auth";
+            }
+            String realm = response.get("realm");
+            if (realm == null) {
+                realm = "";
+            }
+            String a1;
+            try {
+                byte[] secret = md5(
+                    (user + ":" + realm + ":" + password).getBytes("UTF-8")
+                );
+                String tail = ":" + nonce + ":" + cnonce;
+                String authzid = response.get("authzid");
+                if (authzid != null) {
+                    tail += ":" + authzid;
+                }
+                byte[] tailBytes = tail.getBytes("UTF-8");
+                byte[] data = new byte[secret.length + tailBytes.length];
+                System.arraycopy(secret, 0, data, 0, secret.length);
+                System.arraycopy(tailBytes, 0, data, secret.length,
+                                 tailBytes.length);
+                a1 = hex(md5(data));
+            } catch (UnsupportedEncodingException e) {
+                throw new XmppException("utf-8 not supported", e);
+            }
+            String prefix = a1 + ":" + nonce + ":" + nc + ":" + cnonce + ":" +
+                            qop + ":";
+            String expected = md5Hex(prefix + md5Hex("AUTHENTICATE:" + uri));
+            if (!expected.equals(response.get("response"))) {
+                return false;
+            }
+            sendChallenge("rspauth=" + md5Hex(prefix + md5Hex(":" + uri)));
+            // the client acknowledges rspauth with an empty response
+            reader.nextStanza();
+            return true;
+        }
+
+        /**
+         * Send a sasl challenge.
+         * @param challenge String The plain challenge.
+         * @throws XmppException In case of a transport error.
+         */
+        private void sendChallenge(String challenge) throws XmppException {
+            try {
+                writer.sendUnchecked(
+                    "<challenge xmlns='" + SASL_NAMESPACE + "'>" +
+                    Base64.encodeToString(
+                        challenge.getBytes("UTF-8"), Base64.NO_WRAP
+                    ) +
+                    "</challenge>"
+                );
+            } catch (UnsupportedEncodingException e) {
+                throw new XmppException("utf-8 not supported", e);
+            }
+        }
+
+        /**
+         * Decode the base64 content of a sasl element.
+         * @param stanza Stanza The sasl element.
+         * @return String The decoded content.
+         * @throws XmppException In case of malformed content.
+         */
+        private String decode(Stanza stanza) throws XmppException {
+            String content = stanza.getDocumentNode().getTextContent();
+            if (content == null) {
+                return "";
+            }
+            try {
+                return new String(
+                    Base64.decode(content.trim(), Base64.DEFAULT), "UTF-8"
+                );
+            } catch (IllegalArgumentException e) {
+                throw new XmppMalformedException("invalid base64", e);
+            } catch (UnsupportedEncodingException e) {
+                throw new XmppException("utf-8 not supported", e);
+            }
+        }
+
+        /**
+         * Bind a resource and register the session.
+         * @param stanza Stanza The bind iq.
+         * @param node Node The DOM of the bind iq.
+         * @throws XmppException In case of a transport error.
+         */
+        private void bind(Stanza stanza, Node node) throws XmppException {
+            Node resourceNode = XMLUtils.getFirstChild(
+                XMLUtils.getFirstChild(node, BIND_NAMESPACE, "bind"),
+                null,
+                "resource"
+            );
+            String resource = resourceNode == null ?
+                                null : resourceNode.getTextContent().trim();
+            if (TextUtils.isEmpty(resource)) {
+                resource = getName();
+            }
+            String jid = bareJid + "/" + resource;
+            if (sessions.putIfAbsent(jid, this) != null) {
+                jid = bareJid + "/" + resource + "-" + getName();
+                sessions.put(jid, this);
+            }
+            fullJid = jid;
+            writer.sendUnchecked(
+                "<iq xmlns='jabber:client' type='result' id='" +
+                XMLUtils.xmlEscape(stanza.getAttributeValue("id")) + "'>" +
+                "<bind xmlns='" + BIND_NAMESPACE + "'><jid>" +
+                XMLUtils.xmlEscape(jid) +
+                "</jid></bind></iq>"
+            );
+            Log.d(TAG, getName() + " bound as " + jid);
+        }
+
+        /**
+         * Handle a stanza of a bound session.
+         * @param stanza Stanza The received stanza.
+         * @throws XmppException In case of a transport or stanza error.
+         */
+        private void handle(Stanza stanza) throws XmppException {
+            String to = stanza.getAttributeValue("to");
+            String type = stanza.getAttributeValue("type");
+            boolean toServer = to == null || to.equals(domain) ||
+                               to.equals(bareJid);
+            if ("iq".equals(stanza.getName()) && toServer) {
+                handleIQ(stanza, type);
+                return;
+            }
+            String copy = serialize(stanza, fullJid, to);
+            if (to == null) {
+                // presence broadcast, reflect to the sender
+                deliver(copy);
+                return;
+            }
+            if (route(to, copy)) {
+                return;
+            }
+            if ("iq".equals(stanza.getName()) &&
+                ("result".equals(type) || "error".equals(type))) {
+                return;
+            }
+            // echo service, send it back from the unknown jid
+            deliver(serialize(stanza, to, fullJid));
+        }
+
+        /**
+         * Answer an iq addressed to the server.
+         * @param stanza Stanza The iq.
+         * @param type String The iq type.
+         * @throws XmppException In case of a transport or stanza error.
+         */
+        private void handleIQ(Stanza stanza, String type)
+            throws XmppException
+        {
+            if (!"get".equals(type) && !"set".equals(type)) {
+                return;
+            }
+            String id = XMLUtils.xmlEscape(stanza.getAttributeValue("id"));
+            Node node = stanza.getDocumentNode();
+            String reply;
+            if (XMLUtils.hasChild(node, "jabber:iq:roster", "query")) {
+                reply = "<query xmlns='jabber:iq:roster'/>";
+            } else if (
+                XMLUtils.hasChild(node, "urn:xmpp:ping", "ping") ||
+                XMLUtils.hasChild(
+                    node, "urn:ietf:params:xml:ns:xmpp-session", "session")
+            ) {
+                reply = "";
+            } else {
+                deliver(
+                    "<iq xmlns='jabber:client' type='error' id='" + id +
+                    "' from='" + XMLUtils.xmlEscape(domain) + "'>" +
+                    "<error type='cancel'><service-unavailable " +
+                    "xmlns='urn:ietf:params:xml:ns:xmpp-stanzas'/>" +
+                    "</error></iq>"
+                );
+                return;
+            }
+            deliver(
+                "<iq xmlns='jabber:client' type='result' id='" + id +
+                "' from='" + XMLUtils.xmlEscape(domain) + "'>" + reply +
+                "</iq>"
+            );
+        }
+
+        /**
+         * Serialize a stanza with new from/to attributes.
+         * @param stanza Stanza The stanza.
+         * @param from String The new sender.
+         * @param to String The new receiver, or null.
+         * @return String The serialized stanza.
+         * @throws XmppException In case of a malformed stanza.
+         */
+        private String serialize(Stanza stanza, String from, String to)
+            throws XmppException
+        {
+            Stanza copy = new Stanza(
+                stanza.getName(),
+                stanza.getNamespace(),
+                null,
+                stanza.getXml(),
+                stanza.getAttributes()
+            );
+            copy.addAttribute(new Attribute("from", "", from));
+            if (to != null) {
+                copy.addAttribute(new Attribute("to", "", to));
+            }
+            return XmppOutputStream.serialize(copy, true);
+        }
+
+        /**
+         * Send a serialized stanza to this session.
+         * @param stanza String The serialized stanza.
+         * @return boolean True on success.
+         */
+        private boolean deliver(String stanza) {
+            try {
+                writer.sendUnchecked(stanza);
+                return true;
+            } catch (XmppTransportException e) {
+                close();
+                return false;
+            }
+        }
+
+        /**
+         * Unregister and close this session. WebSocket sessions are closed
+         * with &lt;close/&gt; and a close frame first.
+         */
+        public void close() {
+            if (fullJid != null) {
+                sessions.remove(fullJid, this);
+            }
+            if (webSocket != null) {
+                webSocket.close();
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                /* not important */
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,868 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection.impl;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+import com.googlecode.asmack.XmppException;
+import com.googlecode.asmack.connection.XmppTransportException;
+
+/**
+ * <p>A non-blocking socket channel serviced by the {@link NioReactor}, with
+ * optional tls through an {@link SSLEngine}.</p>
+ * <p>During feature negotiation the channel is used through blocking
+ * views ({@link #getReader()}, {@link #getOutputStream()}), reading from
+ * the buffers filled by the reactor. After
+ * {@link #startPushing(StanzaFramer)} all received data is pushed to a
+ * {@link StanzaFramer} on the reactor thread and no thread is blocked in a
+ * read.</p>
+ * <p>The reader never returns data beyond the "&gt;" that ends the current
+ * tag, so the pull parser of the negotiation phase has nothing buffered
+ * once it has read an element. Everything after the last parsed element
+ * (e.g. a session result sent right after bind) stays in the channel
+ * buffer and is handed to the framer.</p>
+ */
+public class NioChannel {
+
+    /**
+     * Initial size of the network and application buffers.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Timeout for writes that can't be flushed, in milliseconds.
+     */
+    private static final int WRITE_TIMEOUT = 60 * 1000;
+
+    /**
+     * An empty buffer for tls handshake wraps.
+     */
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * The underlying socket channel.
+     */
+    private final SocketChannel channel;
+
+    /**
+     * The reactor servicing this channel.
+     */
+    private final NioReactor reactor;
+
+    /**
+     * The selection key of this channel, set by the reactor.
+     */
+    private SelectionKey selectionKey;
+
+    /**
+     * Received network data (write mode).
+     */
+    private ByteBuffer netIn = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Received application data (write mode).
+     */
+    private ByteBuffer appIn = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * Pending network data (write mode).
+     */
+    private ByteBuffer netOut = ByteBuffer.allocate(BUFFER_SIZE);
+
+    /**
+     * The tls engine, or null for plain connections.
+     */
+    private SSLEngine engine;
+
+    /**
+     * True while a tls handshake is running.
+     */
+    private boolean handshaking = false;
+
+    /**
+     * True after the channel has been closed.
+     */
+    private boolean closed = false;
+
+    /**
+     * The error that closed the channel, or null.
+     */
+    private IOException error;
+
+    /**
+     * The framer receiving data in push mode.
+     */
+    private StanzaFramer framer;
+
+    /**
+     * Timeout of blocking reads in milliseconds, 0 for none.
+     */
+    private int readTimeout = 3 * 60 * 1000;
+
+    /**
+     * Blocking input view.
+     */
+    private final InputStream inputStream = new ChannelInputStream();
+
+    /**
+     * Blocking output view.
+     */
+    private final OutputStream outputStream = new ChannelOutputStream();
+
+    /**
+     * Wrap a connected socket channel and register it with the shared
+     * reactor.
+     * @param channel SocketChannel The connected channel.
+     * @throws IOException If the channel can't be switched to non-blocking
+     *                     mode.
+     */
+    public NioChannel(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(false);
+        reactor = NioReactor.getInstance();
+        reactor.register(this);
+    }
+
+    /**
+     * Retrieve the underlying socket channel.
+     * @return SocketChannel The socket channel.
+     */
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Retrieve the socket of the underlying channel.
+     * @return Socket The socket.
+     */
+    public Socket getSocket() {
+        return channel.socket();
+    }
+
+    /**
+     * Retrieve the selection key of this channel.
+     * @return SelectionKey The key, or null if not yet registered.
+     */
+    synchronized SelectionKey getSelectionKey() {
+        return selectionKey;
+    }
+
+    /**
+     * Set the selection key, called by the reactor after registration.
+     * @param selectionKey SelectionKey The key.
+     */
+    synchronized void setSelectionKey(SelectionKey selectionKey) {
+        this.selectionKey = selectionKey;
+    }
+
+    /**
+     * Retrieve the blocking input view of this channel.
+     * @return InputStream The input stream.
+     */
+    public InputStream getInputStream() {
+        return inputStream;
+    }
+
+    /**
+     * Create a blocking utf-8 reader on this channel for a pull parser.
+     * Every read stops after the next "&gt;", see the class description.
+     * @return Reader A new reader.
+     */
+    public Reader getReader() {
+        return new ChannelReader();
+    }
+
+    /**
+     * Retrieve the blocking output view of this channel.
+     * @return OutputStream The output stream.
+     */
+    public OutputStream getOutputStream() {
+        return outputStream;
+    }
+
+    /**
+     * Change the timeout of blocking reads.
+     * @param readTimeout int The timeout in milliseconds, 0 for none.
+     */
+    public synchronized void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Start tls on this channel and run the handshake. Blocks until the
+     * handshake is finished.
+     * @param engine SSLEngine The client mode tls engine.
+     * @throws IOException If the handshake fails.
+     */
+    public synchronized void startTLS(SSLEngine engine) throws IOException {
+        this.engine = engine;
+        handshaking = true;
+        try {
+            engine.beginHandshake();
+            long deadline = System.currentTimeMillis() + WRITE_TIMEOUT;
+            while (true) {
+                checkOpen();
+                switch (engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    flush();
+                    break;
+                case NEED_UNWRAP:
+                    netIn.flip();
+                    SSLEngineResult result;
+                    try {
+                        result = engine.unwrap(netIn, appIn);
+                    } finally {
+                        netIn.compact();
+                    }
+                    if (result.getStatus() ==
+                            SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                        appIn = grow(appIn,
+                            engine.getSession().getApplicationBufferSize());
+                    } else if (result.getStatus() ==
+                            SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        if (!netIn.hasRemaining()) {
+                            netIn = grow(netIn,
+                                engine.getSession().getPacketBufferSize());
+                        }
+                        waitForData(deadline);
+                    } else if (result.getStatus() ==
+                            SSLEngineResult.Status.CLOSED) {
+                        throw new EOFException("tls closed during handshake");
+                    }
+                    break;
+                default:
+                    return;
+                }
+            }
+        } finally {
+            handshaking = false;
+            if (!closed) {
+                unwrap();
+            }
+        }
+    }
+
+    /**
+     * Hand all further received data to a framer. The framer is driven by
+     * the reactor thread from now on.
+     * @param framer StanzaFramer The framer.
+     */
+    public void startPushing(final StanzaFramer framer) {
+        reactor.execute(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data;
+                IOException failure;
+                synchronized (NioChannel.this) {
+                    NioChannel.this.framer = framer;
+                    setReadTimeout(0);
+                    data = drain();
+                    failure = closed ? error : null;
+                }
+                dispatch(framer, data, failure);
+            }
+        });
+    }
+
+    /**
+     * Called by the reactor if the channel is readable.
+     */
+    void onReadable() {
+        StanzaFramer target;
+        byte[] data = null;
+        IOException failure = null;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                if (!netIn.hasRemaining()) {
+                    netIn = grow(netIn, netIn.capacity() * 2);
+                }
+                if (channel.read(netIn) == -1) {
+                    throw new EOFException("Connection closed by peer");
+                }
+                unwrap();
+            } catch (IOException e) {
+                fail(e);
+                failure = e;
+            }
+            notifyAll();
+            target = framer;
+            if (target != null) {
+                data = drain();
+            }
+        }
+        if (target != null) {
+            dispatch(target, data, failure);
+        }
+    }
+
+    /**
+     * Called by the reactor if the channel is writable.
+     */
+    synchronized void onWritable() {
+        try {
+            netOut.flip();
+            try {
+                channel.write(netOut);
+            } finally {
+                netOut.compact();
+            }
+            if (netOut.position() == 0) {
+                reactor.setWriteInterest(this, false);
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Push data and failures to a framer, outside of the channel lock.
+     * @param target StanzaFramer The framer.
+     * @param data byte[] The received data, or null.
+     * @param failure IOException The read failure, or null.
+     */
+    private void dispatch(
+        StanzaFramer target,
+        byte[] data,
+        IOException failure
+    ) {
+        if (data != null) {
+            try {
+                target.feed(data, 0, data.length);
+            } catch (XmppException e) {
+                close();
+                target.failed(e);
+                return;
+            }
+        }
+        if (failure != null) {
+            target.failed(new XmppTransportException(
+                "error during stanza read",
+                failure
+            ));
+        }
+    }
+
+    /**
+     * Move the received network data to the application buffer, decrypting
+     * it if tls is enabled.
+     * @throws IOException In case of a tls error.
+     */
+    private void unwrap() throws IOException {
+        if (engine == null) {
+            netIn.flip();
+            appIn = grow(appIn, appIn.position() + netIn.remaining());
+            appIn.put(netIn);
+            netIn.compact();
+            return;
+        }
+        if (handshaking) {
+            // the handshake consumes the data
+            return;
+        }
+        netIn.flip();
+        try {
+            while (netIn.hasRemaining()) {
+                SSLEngineResult result = engine.unwrap(netIn, appIn);
+                SSLEngineResult.Status status = result.getStatus();
+                if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    appIn = grow(appIn, appIn.capacity() +
+                        engine.getSession().getApplicationBufferSize());
+                    continue;
+                }
+                if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                    break;
+                }
+                if (status == SSLEngineResult.Status.CLOSED) {
+                    throw new EOFException("tls closed by peer");
+                }
+                switch (result.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runTasks();
+                    break;
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    flushAsync();
+                    break;
+                default:
+                    break;
+                }
+                if (result.bytesConsumed() == 0 &&
+                    result.bytesProduced() == 0) {
+                    break;
+                }
+            }
+        } finally {
+            netIn.compact();
+        }
+    }
+
+    /**
+     * Append application data to the network output buffer, encrypting it
+     * if tls is enabled.
+     * @param source ByteBuffer The application data.
+     * @throws IOException In case of a tls error.
+     */
+    private void wrap(ByteBuffer source) throws IOException {
+        if (engine == null) {
+            netOut = grow(netOut, netOut.position() + source.remaining());
+            netOut.put(source);
+            return;
+        }
+        do {
+            SSLEngineResult result = engine.wrap(source, netOut);
+            if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                netOut = grow(netOut, netOut.capacity() +
+                    engine.getSession().getPacketBufferSize());
+            } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                throw new SSLException("tls engine closed");
+            } else if (result.getHandshakeStatus() ==
+                    SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+            }
+        } while (source.hasRemaining());
+    }
+
+    /**
+     * Run the delegated tasks of the tls engine.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Write as much pending data as possible without blocking, leaving the
+     * rest to the reactor.
+     * @throws IOException In case of a write error.
+     */
+    private void flushAsync() throws IOException {
+        netOut.flip();
+        try {
+            channel.write(netOut);
+        } finally {
+            netOut.compact();
+        }
+        if (netOut.position() > 0) {
+            reactor.setWriteInterest(this, true);
+        }
+    }
+
+    /**
+     * Write all pending data, waiting for the reactor if the socket buffer
+     * is full.
+     * @throws IOException In case of a write error or timeout.
+     */
+    private void flush() throws IOException {
+        long deadline = System.currentTimeMillis() + WRITE_TIMEOUT;
+        flushAsync();
+        while (netOut.position() > 0) {
+            checkOpen();
+            long now = System.currentTimeMillis();
+            if (now >= deadline) {
+                throw new SocketTimeoutException("Write timed out");
+            }
+            try {
+                wait(deadline - now);
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted during write");
+            }
+        }
+        checkOpen();
+    }
+
+    /**
+     * Wait for the reactor to receive more data.
+     * @param deadline long The deadline (System.currentTimeMillis()), or 0.
+     * @throws IOException If the channel closed or the deadline passed.
+     */
+    private void waitForData(long deadline) throws IOException {
+        checkOpen();
+        long timeout = 0;
+        if (deadline > 0) {
+            timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0) {
+                throw new SocketTimeoutException("Read timed out");
+            }
+        }
+        try {
+            wait(timeout);
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted during read");
+        }
+    }
+
+    /**
+     * Remove and return all received application data.
+     * @return byte[] The received data, or null if there is none.
+     */
+    private byte[] drain() {
+        if (appIn.position() == 0) {
+            return null;
+        }
+        appIn.flip();
+        byte[] data = new byte[appIn.remaining()];
+        appIn.get(data);
+        appIn.clear();
+        return data;
+    }
+
+    /**
+     * Throw the closing error if the channel has been closed.
+     * @throws IOException If the channel is closed.
+     */
+    private void checkOpen() throws IOException {
+        if (!closed) {
+            return;
+        }
+        if (error != null) {
+            throw error;
+        }
+        throw new EOFException("Channel closed");
+    }
+
+    /**
+     * Mark the channel as failed and close the socket.
+     * @param e IOException The cause.
+     */
+    private void fail(IOException e) {
+        if (!closed) {
+            error = e;
+        }
+        closeChannel();
+    }
+
+    /**
+     * Close the socket channel and wake all waiting threads.
+     */
+    private synchronized void closeChannel() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            /* not important */
+        }
+        notifyAll();
+    }
+
+    /**
+     * Close this channel. A framer in push mode is notified about the
+     * failure, like a blocking reader would be.
+     */
+    public void close() {
+        final StanzaFramer target;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (engine != null && !handshaking) {
+                try {
+                    engine.closeOutbound();
+                    wrap(EMPTY);
+                    flushAsync();
+                } catch (IOException e) {
+                    /* not important */
+                }
+            }
+            closeChannel();
+            target = framer;
+        }
+        if (target != null) {
+            reactor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    target.failed(new XmppTransportException(
+                        "Connection closed"
+                    ));
+                }
+            });
+        }
+    }
+
+    /**
+     * Check if this channel has been closed.
+     * @return boolean True if the channel is closed.
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Ensure a minimum capacity of a buffer in write mode.
+     * @param buffer ByteBuffer The buffer.
+     * @param capacity int The minimum capacity.
+     * @return ByteBuffer The buffer or a larger copy.
+     */
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        if (buffer.capacity() >= capacity) {
+            return buffer;
+        }
+        ByteBuffer result = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        result.put(buffer);
+        return result;
+    }
+
+    /**
+     * Blocking read view on the received application data.
+     */
+    private class ChannelInputStream extends InputStream {
+
+        /**
+         * Read a single byte.
+         * @return int The byte or -1 at the end of the stream.
+         * @throws IOException In case of a read error.
+         */
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : (b[0] & 0xff);
+        }
+
+        /**
+         * Read the available data, waiting for at least one byte.
+         * @param b byte[] The target buffer.
+         * @param off int The target offset.
+         * @param len int The maximum number of bytes.
+         * @return int The number of bytes read or -1 at the end of the stream.
+         * @throws IOException In case of a read error or timeout.
+         */
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            synchronized (NioChannel.this) {
+                long deadline = readTimeout > 0 ?
+                    System.currentTimeMillis() + readTimeout : 0;
+                while (appIn.position() == 0) {
+                    if (closed && (error == null ||
+                                   error instanceof EOFException)) {
+                        return -1;
+                    }
+                    waitForData(deadline);
+                }
+                appIn.flip();
+                int n = Math.min(len, appIn.remaining());
+                appIn.get(b, off, n);
+                appIn.compact();
+                return n;
+            }
+        }
+
+        /**
+         * Retrieve the number of buffered bytes.
+         * @return int The number of bytes that can be read without blocking.
+         */
+        @Override
+        public int available() {
+            synchronized (NioChannel.this) {
+                return appIn.position();
+            }
+        }
+
+        /**
+         * Close the channel.
+         */
+        @Override
+        public void close() {
+            NioChannel.this.close();
+        }
+
+    }
+
+    /**
+     * Blocking utf-8 reader on the received application data that doesn't
+     * read ahead of the current tag.
+     */
+    private class ChannelReader extends Reader {
+
+        /**
+         * The utf-8 decoder, keeping no state between reads.
+         */
+        private final CharsetDecoder decoder = Charset.forName("UTF-8")
+            .newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        /**
+         * Bytes of an incomplete utf-8 sequence (write mode).
+         */
+        private ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+
+        /**
+         * Read the available characters up to and including the next
+         * "&gt;", waiting for at least one character.
+         * @param cbuf char[] The target buffer.
+         * @param off int The target offset.
+         * @param len int The maximum number of characters.
+         * @return int The number of characters read or -1 at the end of the
+         *             stream.
+         * @throws IOException In case of a read error or timeout.
+         */
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            CharBuffer out = CharBuffer.wrap(cbuf, off, len);
+            while (out.position() == off) {
+                synchronized (NioChannel.this) {
+                    long deadline = readTimeout > 0 ?
+                        System.currentTimeMillis() + readTimeout : 0;
+                    while (appIn.position() == 0) {
+                        if (closed && (error == null ||
+                                       error instanceof EOFException)) {
+                            return -1;
+                        }
+                        waitForData(deadline);
+                    }
+                    // utf-8 never needs more bytes than characters, and
+                    // '>' is never part of a multi byte sequence
+                    appIn.flip();
+                    int limit = Math.min(
+                        appIn.remaining(),
+                        Math.max(1, len - bytes.position())
+                    );
+                    int count = 0;
+                    while (count < limit) {
+                        if (appIn.get(appIn.position() + count++) == '>') {
+                            break;
+                        }
+                    }
+                    bytes = grow(bytes, bytes.position() + count);
+                    int end = appIn.limit();
+                    appIn.limit(appIn.position() + count);
+                    bytes.put(appIn);
+                    appIn.limit(end);
+                    appIn.compact();
+                }
+                bytes.flip();
+                decoder.decode(bytes, out, false);
+                bytes.compact();
+            }
+            return out.position() - off;
+        }
+
+        /**
+         * Close the channel.
+         */
+        @Override
+        public void close() {
+            NioChannel.this.close();
+        }
+
+    }
+
+    /**
+     * Blocking write view, encrypting and queueing data for the channel.
+     */
+    private class ChannelOutputStream extends OutputStream {
+
+        /**
+         * Write a single byte.
+         * @param b int The byte.
+         * @throws IOException In case of a write error.
+         */
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        /**
+         * Queue data for writing, the data is sent on {@link #flush()}.
+         * @param b byte[] The source buffer.
+         * @param off int The source offset.
+         * @param len int The number of bytes.
+         * @throws IOException In case of a write error.
+         */
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (NioChannel.this) {
+                checkOpen();
+                wrap(ByteBuffer.wrap(b, off, len));
+            }
+        }
+
+        /**
+         * Send all queued data.
+         * @throws IOException In case of a write error or timeout.
+         */
+        @Override
+        public void flush() throws IOException {
+            synchronized (NioChannel.this) {
+                checkOpen();
+                NioChannel.this.flush();
+            }
+        }
+
+        /**
+         * Close the channel.
+         */
+        @Override
+        public void close() {
+            NioChannel.this.close();
+        }
+
+    }
+
+}
@@ -0,0 +1,207 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection.impl;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+
+/**
+ * <p>Selector thread that services all {@link NioChannel}s of the process.
+ * Channel registrations, interest changes and other tasks are queued and
+ * executed on the selector thread.</p>
+ * <p>Reads, tls unwrapping and stanza framing of all non-blocking
+ * connections run on this single thread, so the work per event has to stay
+ * short.</p>
+ */
+public class NioReactor extends Thread {
+
+    /**
+     * Logging tag of this class ("NioReactor").
+     */
+    private static final String TAG = NioReactor.class.getSimpleName();
+
+    /**
+     * The shared reactor instance.
+     */
+    private static NioReactor instance;
+
+    /**
+     * The selector of this reactor.
+     */
+    private final Selector selector;
+
+    /**
+     * Tasks that have to run on the selector thread.
+     */
+    private final ConcurrentLinkedQueue<Runnable> tasks =
+                                        new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Create a new reactor thread.
+     * @throws IOException If the selector can't be opened.
+     */
+    private NioReactor() throws IOException {
+        super("asmack-nio");
+        selector = Selector.open();
+    }
+
+    /**
+     * Retrieve the shared reactor, starting it if needed.
+     * @return NioReactor The running reactor.
+     * @throws IOException If the selector can't be opened.
+     */
+    public static synchronized NioReactor getInstance() throws IOException {
+        if (instance == null || !instance.isAlive()) {
+            instance = new NioReactor();
+            instance.setDaemon(true);
+            instance.start();
+        }
+        return instance;
+    }
+
+    /**
+     * Retrieve the number of channels registered with the shared reactor.
+     * @return int The number of channels, 0 if the reactor is not running.
+     */
+    public static synchronized int getRegisteredChannelCount() {
+        if (instance == null || !instance.isAlive()) {
+            return 0;
+        }
+        return instance.selector.keys().size();
+    }
+
+    /**
+     * Run a task on the selector thread.
+     * @param task Runnable The task.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Register a channel for read events.
+     * @param channel NioChannel The channel to register.
+     */
+    public void register(final NioChannel channel) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    channel.setSelectionKey(channel.getChannel().register(
+                        selector,
+                        SelectionKey.OP_READ,
+                        channel
+                    ));
+                } catch (ClosedChannelException e) {
+                    channel.onReadable();
+                }
+            }
+        });
+    }
+
+    /**
+     * Enable or disable write events for a registered channel.
+     * @param channel NioChannel The channel.
+     * @param write boolean True if the channel waits for write space.
+     */
+    public void setWriteInterest(final NioChannel channel, final boolean write) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                SelectionKey key = channel.getSelectionKey();
+                if (key == null || !key.isValid()) {
+                    return;
+                }
+                key.interestOps(write ?
+                    SelectionKey.OP_READ | SelectionKey.OP_WRITE :
+                    SelectionKey.OP_READ
+                );
+            }
+        });
+    }
+
+    /**
+     * Run the select loop.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                Log.e(TAG, "Selector failed", e);
+                return;
+            }
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task failed", e);
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                NioChannel channel = (NioChannel) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable()) {
+                        channel.onWritable();
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        channel.onReadable();
+                    }
+                } catch (CancelledKeyException e) {
+                    /* closed concurrently */
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Channel handler failed", e);
+                }
+            }
+        }
+    }
+
+}
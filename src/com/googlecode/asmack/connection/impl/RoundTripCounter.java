@@ -0,0 +1,82 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection.impl;
+
+/**
+ * Count network round trips, defined as the number of reads that had to wait
+ * for a response to previously sent data. Multiple reads after a single
+ * send (e.g. stream header plus features) count as one round trip.
+ */
+public class RoundTripCounter {
+
+    /**
+     * True if data was sent since the last read.
+     */
+    private boolean awaitingResponse = false;
+
+    /**
+     * The number of round trips.
+     */
+    private int count = 0;
+
+    /**
+     * Called after data was written to the network.
+     */
+    public synchronized void sent() {
+        awaitingResponse = true;
+    }
+
+    /**
+     * Called after data was read from the network.
+     */
+    public synchronized void received() {
+        if (awaitingResponse) {
+            count++;
+            awaitingResponse = false;
+        }
+    }
+
+    /**
+     * Retrieve the number of round trips.
+     * @return int The number of round trips.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+}
@@ -37,6 +37,7 @@
 
 package com.googlecode.asmack.connection.impl;
 
+import java.util.HashSet;
 import java.util.Set;
 import java.util.TreeMap;
 
@@ -44,6 +45,7 @@ import org.apache.harmony.javax.security.sasl.SaslClient;
 import org.apache.harmony.javax.security.sasl.SaslException;
 import org.apache.qpid.management.common.sasl.PlainSaslClient;
 import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 import android.util.Base64;
 
@@ -68,17 +70,17 @@ public class SASLEngine {
 
     /**
      * Perform the sasl roundtrip on a given connection.
-     * @param xmppInputStream XmppInputStream The underlying xmpp input stream.
-     * @param xmppOutputStream XmppOutputStream The underlying xmpp output
-     *                                          stream.
+     * @param xmppInputStream StanzaReader The underlying xmpp input stream.
+     * @param xmppOutputStream StanzaWriter The underlying xmpp output
+     *                                      stream.
      * @param methods Set<String> The set of allowed authentification methods.
      * @param account XmppAccount The internal xmpp account.
      * @return boolean True on success.
      * @throws XmppException In case of a hard xml/xmpp error.
      */
     public static boolean login(
-        XmppInputStream xmppInputStream,
-        XmppOutputStream xmppOutputStream,
+        StanzaReader xmppInputStream,
+        StanzaWriter xmppOutputStream,
         Set<String> methods,
         XmppAccount account
     ) throws XmppException
@@ -154,6 +156,27 @@ public class SASLEngine {
         return true;
     }
 
+    /**
+     * Retrieve the mechanism names of a sasl mechanisms feature.
+     * @param saslMechanisms Node The DOM node of the sasl mechanisms.
+     * @return Set<String> The upper case mechanism names.
+     */
+    public static Set<String> getMechanisms(Node saslMechanisms) {
+        NodeList nodes = saslMechanisms.getChildNodes();
+        HashSet<String> methods = new HashSet<String>(13);
+        for (int i = 0, l = nodes.getLength(); i < l; i++) {
+            Node node = nodes.item(i);
+            if (!XMLUtils.isInstance(node, null, "mechanism")) {
+                continue;
+            }
+            methods.add(
+                node.getFirstChild().getNodeValue()
+                    .toUpperCase().trim()
+            );
+        }
+        return methods;
+    }
+
     /**
      * XMPP/SASL compatible base64 encoder, equal to
      * <code>Base64.encodeToString(data, Base64.NO_WRAP);</code>
@@ -0,0 +1,161 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection.impl;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+
+/**
+ * <p>Service wide cache of {@link SSLContext} instances, one per trust
+ * configuration.</p>
+ * <p>A long lived context keeps its client session cache, which is keyed by
+ * host and port. Reconnects (e.g. after a network switch) can thus resume
+ * the previous TLS session with an abbreviated handshake.</p>
+ */
+public class SSLContextCache {
+
+    /**
+     * Number of sessions kept per context.
+     */
+    private static final int SESSION_CACHE_SIZE = 32;
+
+    /**
+     * Lifetime of cached sessions in seconds (1 day).
+     */
+    private static final int SESSION_TIMEOUT = 24 * 60 * 60;
+
+    /**
+     * Map of {{trust manager class} => {SSLContext}} pairs.
+     */
+    private static final HashMap<String, SSLContext> CONTEXTS =
+                                            new HashMap<String, SSLContext>();
+
+    /**
+     * The shared random source for all contexts.
+     */
+    private static SecureRandom secureRandom;
+
+    /**
+     * Number of completed TLS handshakes.
+     */
+    private static volatile long handshakeCount = 0;
+
+    /**
+     * Number of TLS handshakes that resumed a cached session.
+     */
+    private static volatile long resumedCount = 0;
+
+    /**
+     * Retrieve the shared SSLContext for a given trust manager, creating it
+     * on first use.
+     * @param trustManager TrustManager The trust manager of the context.
+     * @return SSLContext The shared SSLContext.
+     * @throws NoSuchAlgorithmException If TLS is not supported.
+     * @throws KeyManagementException In case of a key managment error.
+     */
+    public static synchronized SSLContext getContext(
+        TrustManager trustManager
+    ) throws NoSuchAlgorithmException, KeyManagementException
+    {
+        String key = trustManager.getClass().getName();
+        SSLContext context = CONTEXTS.get(key);
+        if (context != null) {
+            return context;
+        }
+        context = SSLContext.getInstance("TLS");
+        context.init(new KeyManager[]{},
+            new TrustManager[]{trustManager},
+            getSecureRandom()
+        );
+        SSLSessionContext sessionContext = context.getClientSessionContext();
+        if (sessionContext != null) {
+            sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+        }
+        CONTEXTS.put(key, context);
+        return context;
+    }
+
+    /**
+     * Retrieve the shared, seeded secure random instance.
+     * @return SecureRandom The shared secure random source.
+     */
+    public static synchronized SecureRandom getSecureRandom() {
+        if (secureRandom == null) {
+            secureRandom = new SecureRandom();
+            // force seeding now instead of during the first handshake
+            secureRandom.nextInt();
+        }
+        return secureRandom;
+    }
+
+    /**
+     * Record the outcome of a TLS handshake.
+     * @param resumed boolean True if a cached session was resumed.
+     */
+    public static synchronized void recordHandshake(boolean resumed) {
+        handshakeCount++;
+        if (resumed) {
+            resumedCount++;
+        }
+    }
+
+    /**
+     * Retrieve the number of completed TLS handshakes.
+     * @return long The number of handshakes.
+     */
+    public static long getHandshakeCount() {
+        return handshakeCount;
+    }
+
+    /**
+     * Retrieve the number of TLS handshakes that resumed a session.
+     * @return long The number of resumed handshakes.
+     */
+    public static long getResumedCount() {
+        return resumedCount;
+    }
+
+}
@@ -0,0 +1,474 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.util.Log;
+
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.StanzaSink;
+import com.googlecode.asmack.XMLUtils;
+import com.googlecode.asmack.XmppException;
+import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.Connection;
+import com.googlecode.asmack.connection.ConnectionExecutor;
+import com.googlecode.asmack.connection.XmppTransportException;
+
+/**
+ * <p>Incremental stanza reader for non-blocking transports. Bytes of an
+ * opened xmpp stream are fed in arbitrary chunks, complete top level
+ * elements are parsed and pushed to a {@link StanzaSink}.</p>
+ * <p>The framer only tracks the element depth (tags, comments, CDATA,
+ * processing instructions and quoted attribute values), it does not
+ * validate the xml. Every complete element is parsed with a fresh pull
+ * parser inside a synthetic stream header, so the result equals
+ * {@link XmppInputStream#nextStanza()}.</p>
+ * <p>This is the push counterpart of {@link ConnectionPullToSinkPushTask}
+ * and is driven by a single thread (the {@link NioReactor}). Parsed
+ * stanzas and the final failure are handed to a delivery task of the
+ * connection on the {@link ConnectionExecutor}, so a slow sink never
+ * stalls the reactor and the other connections.</p>
+ */
+public class StanzaFramer {
+
+    /**
+     * Debugging tag of this class ("StanzaFramer").
+     */
+    private static final String TAG = StanzaFramer.class.getSimpleName();
+
+    /**
+     * Maximum size of a single stanza in bytes.
+     */
+    private static final int MAX_STANZA_SIZE = 1024 * 1024;
+
+    /**
+     * Stream header used to give every stanza the stream namespaces.
+     */
+    private static final byte[] STREAM_HEADER = (
+        "<stream:stream xmlns='jabber:client' " +
+        "xmlns:stream='http://etherx.jabber.org/streams'>"
+    ).getBytes();
+
+    /**
+     * Character data between elements.
+     */
+    private static final int TEXT = 0;
+
+    /**
+     * Seen "&lt;", waiting for the next character.
+     */
+    private static final int OPEN = 1;
+
+    /**
+     * Inside a start tag.
+     */
+    private static final int START_TAG = 2;
+
+    /**
+     * Inside an end tag.
+     */
+    private static final int END_TAG = 3;
+
+    /**
+     * Inside a processing instruction.
+     */
+    private static final int INSTRUCTION = 4;
+
+    /**
+     * Seen "&lt;!", a comment or CDATA section.
+     */
+    private static final int DECLARATION = 5;
+
+    /**
+     * Inside a comment.
+     */
+    private static final int COMMENT = 6;
+
+    /**
+     * Inside a CDATA section.
+     */
+    private static final int CDATA = 7;
+
+    /**
+     * The connection owning the stream.
+     */
+    private final Connection connection;
+
+    /**
+     * The receiving sink.
+     */
+    private final StanzaSink sink;
+
+    /**
+     * The bytes of the current top level element.
+     */
+    private final ByteArrayOutputStream element = new ByteArrayOutputStream();
+
+    /**
+     * The current scanner state.
+     */
+    private int state = TEXT;
+
+    /**
+     * The current element depth, 1 is the stream level.
+     */
+    private int depth = 1;
+
+    /**
+     * The current attribute quote character, or 0.
+     */
+    private int quote = 0;
+
+    /**
+     * The previous character.
+     */
+    private int previous = 0;
+
+    /**
+     * The character before the previous character.
+     */
+    private int beforePrevious = 0;
+
+    /**
+     * Length of the declaration seen so far (after "&lt;!").
+     */
+    private int declarationLength = 0;
+
+    /**
+     * True if the current element has to be recorded.
+     */
+    private boolean recording = false;
+
+    /**
+     * True after the first failure.
+     */
+    private boolean failed = false;
+
+    /**
+     * Parsed stanzas waiting for delivery.
+     */
+    private final ConcurrentLinkedQueue<Stanza> inbox =
+        new ConcurrentLinkedQueue<Stanza>();
+
+    /**
+     * True while a delivery task is scheduled or running.
+     */
+    private final AtomicBoolean delivering = new AtomicBoolean();
+
+    /**
+     * The failure to report after all parsed stanzas, or null.
+     */
+    private volatile XmppException failure;
+
+    /**
+     * True after the failure has been reported to the sink, only used by
+     * the delivery task.
+     */
+    private boolean reported = false;
+
+    /**
+     * The delivery task.
+     */
+    private final Runnable deliver = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * Status of stanza debugging, mainly repetition of received stanzas in the
+     * Android logcat.
+     */
+    private boolean debugEnabled = true;
+
+    /**
+     * The last time a stanza was received.
+     */
+    private volatile long lastReceiveTime = System.currentTimeMillis();
+
+    /**
+     * Create a new framer for a bound stream.
+     * @param connection Connection The connection owning the stream.
+     * @param sink StanzaSink The receiving sink.
+     */
+    public StanzaFramer(Connection connection, StanzaSink sink) {
+        this.connection = connection;
+        this.sink = sink;
+    }
+
+    /**
+     * Feed a chunk of stream data, queueing all completed stanzas for
+     * delivery.
+     * @param data byte[] The data buffer.
+     * @param offset int The offset of the first byte.
+     * @param length int The number of bytes.
+     * @throws XmppException In case of a malformed stream.
+     */
+    public void feed(byte[] data, int offset, int length)
+        throws XmppException
+    {
+        int recordStart = recording ? offset : -1;
+        for (int i = offset; i < offset + length; i++) {
+            int c = data[i] & 0xff;
+            switch (state) {
+            case TEXT:
+                if (c == '<') {
+                    state = OPEN;
+                    if (depth == 1) {
+                        recording = true;
+                        recordStart = i;
+                    }
+                }
+                break;
+            case OPEN:
+                if (c == '/') {
+                    state = END_TAG;
+                } else if (c == '?') {
+                    state = INSTRUCTION;
+                } else if (c == '!') {
+                    state = DECLARATION;
+                    declarationLength = 0;
+                } else {
+                    state = START_TAG;
+                }
+                if (state != START_TAG && depth == 1) {
+                    // not an element, nothing to record
+                    recording = false;
+                    recordStart = -1;
+                }
+                break;
+            case START_TAG:
+                if (quote != 0) {
+                    if (c == quote) {
+                        quote = 0;
+                    }
+                } else if (c == '"' || c == '\'') {
+                    quote = c;
+                } else if (c == '>') {
+                    state = TEXT;
+                    if (previous != '/') {
+                        depth++;
+                    } else if (depth == 1) {
+                        recordStart = complete(data, recordStart, i);
+                    }
+                }
+                break;
+            case END_TAG:
+                if (c == '>') {
+                    state = TEXT;
+                    depth--;
+                    if (depth == 1) {
+                        recordStart = complete(data, recordStart, i);
+                    } else if (depth == 0) {
+                        throw new XmppTransportException("Stream closed");
+                    }
+                }
+                break;
+            case INSTRUCTION:
+                if (c == '>' && previous == '?') {
+                    state = TEXT;
+                }
+                break;
+            case DECLARATION:
+                declarationLength++;
+                if (declarationLength == 2 && c == '-') {
+                    state = COMMENT;
+                } else if (declarationLength == 7 && c == '[') {
+                    state = CDATA;
+                } else if (c == '>') {
+                    throw new XmppMalformedException(
+                        "Unsupported declaration in stream"
+                    );
+                }
+                break;
+            case COMMENT:
+                if (c == '>' && previous == '-' && beforePrevious == '-') {
+                    state = TEXT;
+                }
+                break;
+            case CDATA:
+                if (c == '>' && previous == ']' && beforePrevious == ']') {
+                    state = TEXT;
+                }
+                break;
+            }
+            beforePrevious = previous;
+            previous = c;
+        }
+        if (recording && recordStart != -1) {
+            element.write(data, recordStart, offset + length - recordStart);
+            if (element.size() > MAX_STANZA_SIZE) {
+                throw new XmppMalformedException("Stanza too large");
+            }
+        }
+    }
+
+    /**
+     * Finish the current top level element and queue it for delivery.
+     * @param data byte[] The current data buffer.
+     * @param recordStart int The first unrecorded byte of the element.
+     * @param end int The index of the last byte of the element.
+     * @return int The new record start (-1, nothing to record).
+     * @throws XmppException In case of a malformed stanza.
+     */
+    private int complete(byte[] data, int recordStart, int end)
+        throws XmppException
+    {
+        element.write(data, recordStart, end + 1 - recordStart);
+        byte[] xml = element.toByteArray();
+        element.reset();
+        recording = false;
+        Stanza stanza = parse(xml);
+        if (debugEnabled) {
+            Log.d(TAG, "Stanza: " + stanza.getXml());
+        }
+        lastReceiveTime = System.currentTimeMillis();
+        stanza.setVia(connection.getResourceJid());
+        inbox.offer(stanza);
+        scheduleDelivery();
+        return -1;
+    }
+
+    /**
+     * Start the delivery task unless it is scheduled or running.
+     */
+    private void scheduleDelivery() {
+        if (delivering.compareAndSet(false, true)) {
+            ConnectionExecutor.getInstance().submitLongRunning(
+                "deliver-" + connection.getAccount().getJid(),
+                deliver
+            );
+        }
+    }
+
+    /**
+     * Push the queued stanzas to the sink, followed by the failure once
+     * the connection failed.
+     */
+    private void deliver() {
+        do {
+            Stanza stanza;
+            while ((stanza = inbox.poll()) != null) {
+                try {
+                    sink.receive(stanza);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Stanza delivery failed", e);
+                }
+            }
+            XmppException exception = failure;
+            if (exception != null && !reported) {
+                reported = true;
+                sink.connectionFailed(connection, exception);
+            }
+            delivering.set(false);
+            // a stanza or failure may have been queued after the last poll
+        } while ((!inbox.isEmpty() || (failure != null && !reported)) &&
+                 delivering.compareAndSet(false, true));
+    }
+
+    /**
+     * Parse a single complete top level element.
+     * @param xml byte[] The utf-8 encoded element.
+     * @return Stanza The parsed stanza.
+     * @throws XmppException In case of invalid xml.
+     */
+    static Stanza parse(byte[] xml) throws XmppException {
+        byte[] document = new byte[STREAM_HEADER.length + xml.length];
+        System.arraycopy(STREAM_HEADER, 0, document, 0, STREAM_HEADER.length);
+        System.arraycopy(xml, 0, document, STREAM_HEADER.length, xml.length);
+        try {
+            XmlPullParser parser = XMLUtils.getXMLPullParser();
+            parser.setInput(new ByteArrayInputStream(document), "UTF-8");
+            parser.nextTag();
+            return XMLUtils.readStanza(parser);
+        } catch (IllegalArgumentException e) {
+            throw new XmppMalformedException("can't parse stanza", e);
+        } catch (XmlPullParserException e) {
+            throw new XmppMalformedException("can't parse stanza", e);
+        } catch (IOException e) {
+            throw new XmppMalformedException("can't parse stanza", e);
+        }
+    }
+
+    /**
+     * Close the connection and report a stream failure to the sink, after
+     * all stanzas parsed so far. Only the first failure is reported.
+     * @param exception XmppException The cause of the failure.
+     */
+    public void failed(XmppException exception) {
+        if (failed) {
+            return;
+        }
+        failed = true;
+        try {
+            connection.close();
+        } catch (Exception ex) {
+            // we just try to clean up, ignore problems
+        }
+        Log.e(TAG, "Connection aborted", exception);
+        failure = exception;
+        scheduleDelivery();
+    }
+
+    /**
+     * Retrieve the unix timestamp of the last received stanza.
+     * @return long The unix timestamp of the last received stanza.
+     */
+    public long getLastReceiveTime() {
+        return lastReceiveTime;
+    }
+
+    /**
+     * Change the debugging state.
+     * @param debugEnabled boolean True if stanzas should be replayed to the
+     *                             Android log.
+     */
+    public void setDebugEnabled(boolean debugEnabled) {
+        this.debugEnabled = debugEnabled;
+    }
+
+}
@@ -38,16 +38,16 @@
 package com.googlecode.asmack.connection.impl;
 
 import java.io.IOException;
-import java.net.Inet4Address;
-import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
-
-import javax.net.SocketFactory;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.xmlpull.v1.XmlPullParserException;
 
+import android.os.Bundle;
 import android.util.Log;
 
 import com.googlecode.asmack.Stanza;
@@ -56,6 +56,7 @@ import com.googlecode.asmack.XmppAccount;
 import com.googlecode.asmack.XmppException;
 import com.googlecode.asmack.XmppMalformedException;
 import com.googlecode.asmack.connection.Connection;
+import com.googlecode.asmack.connection.ConnectionExecutor;
 import com.googlecode.asmack.connection.XmppTransportException;
 
 /**
@@ -66,11 +67,20 @@ import com.googlecode.asmack.connection.XmppTransportException;
  *   <li>tcp:hostname:1234</li>
  *   <li>tcp:1.2.3.4</li>
  *   <li>tcp:1.2.3.4:1234</li>
+ *   <li>tcp:[2a01:198:500::1]</li>
  *   <li>tcp:[2a01:198:500::1]:1234</li>
  * </ul>
+ * The tls: prefix (e.g. tls:hostname:5223) starts tls directly after the tcp
+ * connect (XEP-0368) instead of negotiating STARTTLS. The nio: prefix
+ * (e.g. nio:hostname:5222) uses a non-blocking {@link NioChannel}, so no
+ * thread is blocked reading from the bound connection. The loopback: prefix
+ * connects to the in-process {@link LoopbackServer}.
+ * </p>
+ * <p>All addresses of a host are raced (see {@link HappyEyeballsConnector}).
  * </p>
  * <p><b>Note:</b> Android usually isn't ipv6 compatible. This means that the
- * use of ipv6 addresses is discouraged and has lower priority than ipv4</p> 
+ * use of ipv6 addresses is discouraged and has lower priority than ipv4,
+ * unless ipv6 won the last connect to the same host.</p> 
  */
 public class TcpConnection implements Connection {
 
@@ -79,6 +89,11 @@ public class TcpConnection implements Connection {
      */
     private static final String TAG = TcpConnection.class.getSimpleName();
 
+    /**
+     * Timeout of a single tcp connect attempt in milliseconds.
+     */
+    protected static final int CONNECT_TIMEOUT = 30 * 1000;
+
     /**
      * The account name to use for login or realm domain.
      */
@@ -109,6 +124,66 @@ public class TcpConnection implements Connection {
      */
     private XmppOutputStream xmppOutput;
 
+    /**
+     * The host name or ip used for the connect.
+     */
+    private String host;
+
+    /**
+     * Timeout of a single tcp connect attempt in milliseconds.
+     */
+    private int connectTimeout = CONNECT_TIMEOUT;
+
+    /**
+     * True if tls should be started right after the tcp connect.
+     */
+    private boolean directTLS;
+
+    /**
+     * True if the connection should use a non-blocking channel.
+     */
+    private boolean nio;
+
+    /**
+     * The non-blocking channel, if nio is used.
+     */
+    private NioChannel channel;
+
+    /**
+     * The stanza framer of the non-blocking channel.
+     */
+    private StanzaFramer framer;
+
+    /**
+     * True if the connection is guarded by tls.
+     */
+    private boolean secure;
+
+    /**
+     * True if the tls handshake resumed a cached session.
+     */
+    private boolean sessionResumed;
+
+    /**
+     * True if the feature negotiation was pipelined.
+     */
+    private boolean pipelined;
+
+    /**
+     * Number of round trips needed to reach the bound state.
+     */
+    private int roundTrips;
+
+    /**
+     * The zlib output stream, if compression was negotiated.
+     */
+    private ZLibOutputStream zlibOutput;
+
+    /**
+     * The zlib input stream, if compression was negotiated.
+     */
+    private ZLibInputStream zlibInput;
+
     /**
      * Constructor for TcpConnection.
      * @param account XmppAccount
@@ -125,68 +200,153 @@ public class TcpConnection implements Connection {
      * @see com.googlecode.asmack.connection.Connection#connect(StanzaSink)
      */
     public void connect(StanzaSink sink) throws XmppException {
-        String connection = account.getConnection();
-        connection = connection.substring(4).trim(); // cut "tcp:"
+        connect(account.getConnection(), sink);
+    }
 
-        // Target
-        int port = 5222;
-        InetAddress addresse;
-
-        // Get Port
-        int split = connection.lastIndexOf(':');
-        if (split != -1) {
-            String portNumber = connection.substring(split + 1);
-            port = Integer.parseInt(portNumber);
-            connection = connection.substring(0, split);
+    /**
+     * Connect to the target of a "tcp:", "tls:", "nio:" or "loopback:"
+     * connection string.
+     * @param uri String The connection string.
+     * @param sink StanzaSink The final stanza sink for incoming stanzas.
+     * @throws XmppException In case of an xmpp error.
+     */
+    protected void connect(String uri, StanzaSink sink) throws XmppException {
+        if (uri.startsWith("loopback:")) {
+            connectLoopback(sink);
+            return;
         }
+        directTLS = uri.startsWith("tls:");
+        nio = uri.startsWith("nio:");
+        String connection = uri.substring(4).trim(); // cut "tcp:" / "tls:"
 
-        // Get Host IPs
-        InetAddress[] inetAddresses;
-        if (connection.charAt(0) == '[' &&
-            connection.charAt(connection.length()) == ']') {
-            // IPv6
-            if (split == -1) {
-                throw new IllegalStateException(
-                    "Not a valid tcp uri (" + account.getConnection() + ")"
+        // Target
+        int port = directTLS ? 5223 : 5222;
+        String hostName = connection;
+
+        // Get Host and Port
+        if (connection.startsWith("[")) {
+            // IPv6 literal, [address] or [address]:port
+            int end = connection.indexOf(']');
+            if (end == -1 ||
+                (end + 1 < connection.length() &&
+                 connection.charAt(end + 1) != ':')
+            ) {
+                throw new XmppTransportException(
+                    "Not a valid tcp uri (" + uri + ")"
                 );
             }
-            String ipv6 = connection.substring(1, connection.length() - 1);
-            try {
-                inetAddresses = InetAddress.getAllByName(ipv6);
-            } catch (UnknownHostException e) {
-                throw new XmppTransportException("can't resolve host", e);
+            hostName = connection.substring(1, end);
+            if (end + 1 < connection.length()) {
+                port = parsePort(connection.substring(end + 2), uri);
             }
         } else {
             // IPv4 or domain
-            // prefer IPv4, IPv6 if no IPv4 record found
-            try {
-                inetAddresses = Inet4Address.getAllByName(connection);
-                if (inetAddresses.length == 0) {
-                    inetAddresses = Inet6Address.getAllByName(connection);
-                }
-            } catch (UnknownHostException uhe) {
-                try {
-                    inetAddresses = Inet6Address.getAllByName(connection);
-                } catch (UnknownHostException e) {
-                    throw new XmppTransportException("can't resolve host", e);
-                }
+            int split = connection.lastIndexOf(':');
+            if (split != -1) {
+                String portNumber = connection.substring(split + 1);
+                port = parsePort(portNumber, uri);
+                hostName = connection.substring(0, split);
             }
         }
 
+        // Get Host IPs (all A and AAAA records)
+        InetAddress[] inetAddresses;
+        try {
+            inetAddresses = InetAddress.getAllByName(hostName);
+        } catch (UnknownHostException e) {
+            throw new XmppTransportException("can't resolve host", e);
+        }
+
+        host = hostName;
+
         if (inetAddresses == null || inetAddresses.length == 0) {
-            throw new XmppTransportException("Couldn't resolve " + connection);
+            throw new XmppTransportException("Couldn't resolve " + hostName);
         }
-        if (inetAddresses.length == 1) {
-            addresse = inetAddresses[0];
-        } else {
-            int index = (int)(Math.random() * Integer.MAX_VALUE);
-            index %= inetAddresses.length;
-            addresse = inetAddresses[index];
+
+        connect(inetAddresses, port);
+
+        startReading(sink);
+    }
+
+    /**
+     * Parse a port number.
+     * @param port String The port number.
+     * @param uri String The connection string or host, for the error message.
+     * @return int The port.
+     * @throws XmppTransportException If the port is not a valid tcp port.
+     */
+    private static int parsePort(String port, String uri)
+        throws XmppTransportException
+    {
+        int result;
+        try {
+            result = Integer.parseInt(port);
+        } catch (NumberFormatException e) {
+            throw new XmppTransportException(
+                "Not a valid port (" + uri + ")", e
+            );
         }
+        if (result < 0 || result > 0xffff) {
+            throw new XmppTransportException(
+                "Not a valid port (" + uri + ")"
+            );
+        }
+        return result;
+    }
 
-        connect(addresse, port);
+    /**
+     * Connect to the shared in-process {@link LoopbackServer}.
+     * @param sink StanzaSink The final stanza sink for incoming stanzas.
+     * @throws XmppException In case of an xmpp error.
+     */
+    private void connectLoopback(StanzaSink sink) throws XmppException {
+        LoopbackServer server;
+        try {
+            server = LoopbackServer.getInstance();
+        } catch (IOException e) {
+            throw new XmppTransportException("Can't start loopback server", e);
+        }
+        host = server.getAddress().getHostAddress();
+        connect(server.getAddress(), server.getPort());
+        startReading(sink);
+    }
 
-        new ConncetionPullToSinkPushThread(this, xmppInput, sink).start();
+    /**
+     * Start the tcp connection to the first reachable host of an ordered
+     * list of host/port pairs. All addresses of all hosts are raced, keeping
+     * the order of the list. Hosts that can't be resolved are skipped.
+     * @param targets List<String[]> The ordered host/port pairs.
+     * @throws XmppException In case of a lower level exception.
+     */
+    protected void connect(List<String[]> targets) throws XmppException {
+        // a failed resolve must not report the host of an earlier attempt
+        host = null;
+        ArrayList<InetSocketAddress> addresses =
+                                        new ArrayList<InetSocketAddress>();
+        ArrayList<String> hostNames = new ArrayList<String>();
+        UnknownHostException lastError = null;
+        for (String[] target: targets) {
+            InetAddress[] inetAddresses;
+            try {
+                inetAddresses = InetAddress.getAllByName(target[0]);
+            } catch (UnknownHostException e) {
+                Log.d(TAG, "Can't resolve " + target[0]);
+                lastError = e;
+                continue;
+            }
+            int port = parsePort(target[1], target[0]);
+            for (InetAddress address: inetAddresses) {
+                addresses.add(new InetSocketAddress(address, port));
+                hostNames.add(target[0]);
+            }
+        }
+        if (addresses.size() == 0) {
+            throw new XmppTransportException("can't resolve host", lastError);
+        }
+        connect(
+            addresses.toArray(new InetSocketAddress[addresses.size()]),
+            hostNames.toArray(new String[hostNames.size()])
+        );
     }
 
     /**
@@ -198,9 +358,49 @@ public class TcpConnection implements Connection {
     protected void connect(InetAddress addresse, int port)
         throws XmppException
     {
-        SocketFactory socketFactory = SocketFactory.getDefault();
+        connect(new InetAddress[]{addresse}, port);
+    }
+
+    /**
+     * Start the tcp connection to the first reachable address of a given
+     * set of addresses, racing the addresses as described by
+     * {@link HappyEyeballsConnector}.
+     * @param addresses InetAddress[] The target internet addresses.
+     * @param port int The target port.
+     * @throws XmppException In case of a lower level exception.
+     */
+    protected void connect(InetAddress[] addresses, int port)
+        throws XmppException
+    {
+        InetSocketAddress[] targets = new InetSocketAddress[addresses.length];
+        String[] hostNames = new String[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            targets[i] = new InetSocketAddress(addresses[i], port);
+            hostNames[i] =
+                (host == null) ? addresses[0].getHostAddress() : host;
+        }
+        connect(targets, hostNames);
+    }
+
+    /**
+     * Start the tcp connection to the first reachable target of a given
+     * ordered target list, racing the targets as described by
+     * {@link HappyEyeballsConnector}.
+     * @param targets InetSocketAddress[] The target addresses.
+     * @param hostNames String[] The host name of each target, used for tls.
+     * @throws XmppException In case of a lower level exception.
+     */
+    protected void connect(InetSocketAddress[] targets, String[] hostNames)
+        throws XmppException
+    {
+        host = null;
         try {
-            socket = socketFactory.createSocket(addresse, port);
+            socket = HappyEyeballsConnector.connect(
+                hostNames[0],
+                targets,
+                connectTimeout,
+                nio
+            );
             socket.setKeepAlive(false);
             socket.setSoTimeout(3*60*1000);
             socket.setTcpNoDelay(true);
@@ -208,9 +408,21 @@ public class TcpConnection implements Connection {
             close();
             throw new XmppTransportException("Can't connect", e);
         }
+        for (int i = 0; i < targets.length; i++) {
+            if (targets[i].getAddress().equals(socket.getInetAddress()) &&
+                targets[i].getPort() == socket.getPort()) {
+                host = hostNames[i];
+                break;
+            }
+        }
         FeatureNegotiationEngine engine;
         try {
-            engine = new FeatureNegotiationEngine(socket);
+            if (nio) {
+                channel = new NioChannel(socket.getChannel());
+                engine = new FeatureNegotiationEngine(channel, host, directTLS);
+            } else {
+                engine = new FeatureNegotiationEngine(socket, host, directTLS);
+            }
         } catch (XmlPullParserException e) {
             close();
             throw new XmppMalformedException("Can't connect", e);
@@ -227,6 +439,56 @@ public class TcpConnection implements Connection {
         Log.d(TAG, "Bound as " + resourceJid);
         xmppInput = engine.getXmppInputStream();
         xmppOutput = engine.getXmppOutputStream();
+        pipelined = engine.isPipelined();
+        roundTrips = engine.getRoundTrips();
+        secure = engine.isSecure();
+        sessionResumed = engine.isSessionResumed();
+        zlibInput = engine.getZLibInputStream();
+        zlibOutput = engine.getZLibOutputStream();
+    }
+
+    /**
+     * Start pushing the incoming stanzas of the bound stream to a sink,
+     * either through the {@link StanzaFramer} of a non-blocking channel or
+     * by a long running reader task on the {@link ConnectionExecutor}.
+     * @param sink StanzaSink The final stanza sink for incoming stanzas.
+     */
+    protected void startReading(StanzaSink sink) {
+        if (channel != null) {
+            framer = new StanzaFramer(this, sink);
+            channel.startPushing(framer);
+            return;
+        }
+        ConnectionExecutor.getInstance().submitLongRunning(
+            "read-" + bareJid,
+            new ConnectionPullToSinkPushTask(this, xmppInput, sink)
+        );
+    }
+
+    /**
+     * Choose between direct tls and STARTTLS for the next connect.
+     * @param directTLS boolean True if tls should be started right after
+     *                          the tcp connect.
+     */
+    protected void setDirectTLS(boolean directTLS) {
+        this.directTLS = directTLS;
+    }
+
+    /**
+     * Change the timeout of a single tcp connect attempt.
+     * @param connectTimeout int The timeout in milliseconds.
+     */
+    protected void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * Retrieve the host of the last tcp connect, or null if no target could
+     * be reached.
+     * @return String The host name or ip of the connected target.
+     */
+    public String getHost() {
+        return host;
     }
 
     /**
@@ -250,6 +512,16 @@ public class TcpConnection implements Connection {
         xmppOutput.send(stanza);
     }
 
+    /**
+     * Send a single whitespace byte as keepalive.
+     * @throws XmppException In case of a connection error.
+     * @see com.googlecode.asmack.connection.Connection#sendWhitespace()
+     */
+    @Override
+    public void sendWhitespace() throws XmppException {
+        xmppOutput.sendWhitespace();
+    }
+
     /**
      * Close the TCP connection.
      * @throws XmppException In case of a lowlevel connection problem.
@@ -257,12 +529,22 @@ public class TcpConnection implements Connection {
      */
     @Override
     public void close() throws XmppException {
+        if (channel != null) {
+            channel.close();
+        }
         if (xmppInput != null) {
             xmppInput.close();
         }
         if (xmppOutput != null) {
             xmppOutput.close();
         }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                /* not important */
+            }
+        }
     }
 
     /**
@@ -280,9 +562,55 @@ public class TcpConnection implements Connection {
      */
     @Override
     public long lastReceive() {
+        if (framer != null) {
+            return framer.getLastReceiveTime();
+        }
         return xmppInput.getLastReceiveTime();
     }
 
+    /**
+     * Add the negotiation, tls and compression statistics of this
+     * connection.
+     * @param diagnostics Bundle The diagnostics bundle to fill.
+     * @see com.googlecode.asmack.connection.Connection#addDiagnostics(Bundle)
+     */
+    @Override
+    public void addDiagnostics(Bundle diagnostics) {
+        if (socket != null) {
+            diagnostics.putString("tcp.address",
+                                  socket.getInetAddress().getHostAddress());
+            diagnostics.putString("tcp.host", host);
+        }
+        diagnostics.putBoolean("nio", channel != null);
+        if (channel != null) {
+            diagnostics.putInt("nio.channels",
+                               NioReactor.getRegisteredChannelCount());
+        }
+        diagnostics.putBoolean("negotiation.pipelined", pipelined);
+        diagnostics.putInt("negotiation.roundtrips", roundTrips);
+        diagnostics.putBoolean("tls", secure);
+        diagnostics.putBoolean("tls.direct", directTLS);
+        diagnostics.putBoolean("tls.resumed", sessionResumed);
+        diagnostics.putLong("tls.handshakes",
+                            SSLContextCache.getHandshakeCount());
+        diagnostics.putLong("tls.resumptions",
+                            SSLContextCache.getResumedCount());
+        diagnostics.putBoolean("compressed", zlibOutput != null);
+        if (zlibOutput != null) {
+            diagnostics.putLong("zlib.out.raw", zlibOutput.getRawBytes());
+            diagnostics.putLong("zlib.out.compressed",
+                                zlibOutput.getCompressedBytes());
+            diagnostics.putLong("zlib.out.flushes", zlibOutput.getFlushCount());
+            diagnostics.putLong("zlib.out.nanos", zlibOutput.getDeflateNanos());
+        }
+        if (zlibInput != null) {
+            diagnostics.putLong("zlib.in.raw", zlibInput.getRawBytes());
+            diagnostics.putLong("zlib.in.compressed",
+                                zlibInput.getCompressedBytes());
+            diagnostics.putLong("zlib.in.nanos", zlibInput.getInflateNanos());
+        }
+    }
+
     /**
      * Retrieve the underlying xmpp account.
      * @return XmppAccount The xmpp account used for connection/authentication.
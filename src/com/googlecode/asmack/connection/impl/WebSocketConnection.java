@@ -0,0 +1,424 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection.impl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+
+import org.w3c.dom.Node;
+
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.StanzaSink;
+import com.googlecode.asmack.XMLUtils;
+import com.googlecode.asmack.XMPPUtils;
+import com.googlecode.asmack.XmppAccount;
+import com.googlecode.asmack.XmppException;
+import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.Connection;
+import com.googlecode.asmack.connection.ConnectionExecutor;
+import com.googlecode.asmack.connection.XmppTransportException;
+
+/**
+ * <p>XMPP over WebSocket (RFC 7395) connection for "ws:" and "wss:"
+ * connection strings, e.g.
+ * <ul>
+ *   <li>ws://hostname/xmpp-websocket</li>
+ *   <li>wss://hostname:5443/ws</li>
+ * </ul>
+ * wss: runs tls before the http upgrade. The stream is negotiated with
+ * RFC 7395 framing (&lt;open/&gt;, one element per message), so stream
+ * level tls and compression are never offered. Messages are compressed with
+ * permessage-deflate if the server supports it.</p>
+ * <p>Reading is done by a long running {@link ConnectionPullToSinkPushTask}
+ * on the {@link ConnectionExecutor}, as for tcp connections.</p>
+ */
+public class WebSocketConnection implements Connection {
+
+    /**
+     * Internal logging tag (WebSocketConnection).
+     */
+    private static final String TAG =
+                                WebSocketConnection.class.getSimpleName();
+
+    /**
+     * The account used for login.
+     */
+    private final XmppAccount account;
+
+    /**
+     * The bare jid (username@domain.tld).
+     */
+    private final String bareJid;
+
+    /**
+     * The fully bound resource jid (username@domain.tld/resource).
+     */
+    private String resourceJid;
+
+    /**
+     * The low level socket of this connection.
+     */
+    private Socket socket;
+
+    /**
+     * The WebSocket message stream.
+     */
+    private WebSocketStream stream;
+
+    /**
+     * True if the connection is guarded by tls.
+     */
+    private boolean secure;
+
+    /**
+     * True if the tls handshake resumed a cached session.
+     */
+    private boolean sessionResumed;
+
+    /**
+     * Create a new WebSocket connection for an account.
+     * @param account XmppAccount The account to connect.
+     */
+    public WebSocketConnection(XmppAccount account) {
+        this.account = account;
+        bareJid = account.getJid();
+    }
+
+    /**
+     * Connect to the WebSocket endpoint, login, bind and start reading.
+     * @param sink StanzaSink The final stanza sink for incoming stanzas.
+     * @throws XmppException In case of an xmpp or transport error.
+     * @see com.googlecode.asmack.connection.Connection#connect(StanzaSink)
+     */
+    @Override
+    public void connect(StanzaSink sink) throws XmppException {
+        String uri = account.getConnection().trim();
+        URI target;
+        try {
+            target = new URI(uri);
+        } catch (URISyntaxException e) {
+            throw new XmppTransportException(
+                "Not a valid WebSocket uri (" + uri + ")", e
+            );
+        }
+        secure = "wss".equals(target.getScheme());
+        String host = target.getHost();
+        if (host == null) {
+            throw new XmppTransportException(
+                "Not a valid WebSocket uri (" + uri + ")"
+            );
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        int port = target.getPort();
+        if (port == -1) {
+            port = secure ? 443 : 80;
+        }
+        String path = target.getRawPath();
+        if (TextUtils.isEmpty(path)) {
+            path = "/";
+        }
+        if (target.getRawQuery() != null) {
+            path += "?" + target.getRawQuery();
+        }
+        String hostHeader = target.getRawAuthority();
+
+        try {
+            socket = HappyEyeballsConnector.connect(
+                host,
+                InetAddress.getAllByName(host),
+                port,
+                TcpConnection.CONNECT_TIMEOUT
+            );
+            socket.setKeepAlive(false);
+            socket.setSoTimeout(3*60*1000);
+            socket.setTcpNoDelay(true);
+            if (secure) {
+                socket = handshakeTLS(socket, host, port);
+            }
+            stream = new WebSocketStream(socket, hostHeader, path, true);
+        } catch (UnknownHostException e) {
+            close();
+            throw new XmppTransportException("can't resolve host", e);
+        } catch (NoSuchAlgorithmException e) {
+            close();
+            throw new XmppTransportException("Can't start tls", e);
+        } catch (KeyManagementException e) {
+            close();
+            throw new XmppTransportException("Can't start tls", e);
+        } catch (IOException e) {
+            close();
+            throw new XmppTransportException("Can't connect", e);
+        }
+
+        try {
+            negotiate();
+            socket.setSoTimeout(0);
+        } catch (XmppException e) {
+            close();
+            throw e;
+        } catch (IOException e) {
+            close();
+            throw new XmppTransportException("Can't connect", e);
+        }
+        Log.d(TAG, "Bound as " + resourceJid);
+
+        ConnectionExecutor.getInstance().submitLongRunning(
+            "read-" + bareJid,
+            new ConnectionPullToSinkPushTask(this, stream, sink)
+        );
+    }
+
+    /**
+     * Wrap the connected socket into a tls socket and run the handshake.
+     * @param plain Socket The connected tcp socket.
+     * @param host String The host name, used for sni and session caching.
+     * @param port int The target port.
+     * @return SSLSocket The connected tls socket.
+     * @throws NoSuchAlgorithmException If tls is not supported.
+     * @throws KeyManagementException In case of a key managment error.
+     * @throws IOException If the handshake fails.
+     */
+    private SSLSocket handshakeTLS(Socket plain, String host, int port)
+        throws NoSuchAlgorithmException, KeyManagementException, IOException
+    {
+        SSLContext context = SSLContextCache.getContext(new UnTrustManager());
+        SSLSocket sslSocket = (SSLSocket) context.getSocketFactory()
+                                        .createSocket(plain, host, port, true);
+        long handshakeStart = System.currentTimeMillis();
+        sslSocket.startHandshake();
+        // resumed sessions keep their original creation time
+        sessionResumed =
+            sslSocket.getSession().getCreationTime() < handshakeStart;
+        SSLContextCache.recordHandshake(sessionResumed);
+        return sslSocket;
+    }
+
+    /**
+     * Open the framed stream, login and bind the account resource.
+     * @throws XmppException In case of a login, bind or transport error.
+     */
+    private void negotiate() throws XmppException {
+        String domain = XMPPUtils.getDomain(bareJid);
+        Node features = stream.open(domain);
+        Node mechanisms = XMLUtils.getFirstChild(
+            features,
+            "urn:ietf:params:xml:ns:xmpp-sasl",
+            "mechanisms"
+        );
+        if (mechanisms != null) {
+            if (!SASLEngine.login(
+                stream, stream, SASLEngine.getMechanisms(mechanisms), account
+            )) {
+                throw new XmppTransportException("Login failed");
+            }
+            features = stream.open(domain);
+        }
+        if (!XMLUtils.hasChild(
+                features,
+                "urn:ietf:params:xml:ns:xmpp-bind",
+                "bind")) {
+            throw new XmppTransportException("Can't bind");
+        }
+        StringBuilder request = new StringBuilder(256);
+        request.append("<iq xmlns='jabber:client' type='set' id='bind_1'>");
+        request.append("<bind xmlns='urn:ietf:params:xml:ns:xmpp-bind'>");
+        String resource = account.getResource();
+        if (!TextUtils.isEmpty(resource)) {
+            request.append("<resource>");
+            request.append(XMLUtils.xmlEscape(resource));
+            request.append("</resource>");
+        }
+        request.append("</bind></iq>");
+        stream.sendUnchecked(request.toString());
+        Node bind = XMLUtils.getFirstChild(
+            stream.nextStanza().getDocumentNode(),
+            "urn:ietf:params:xml:ns:xmpp-bind",
+            "bind"
+        );
+        Node jid = XMLUtils.getFirstChild(bind, null, "jid");
+        if (jid == null) {
+            throw new XmppMalformedException("bind malformed");
+        }
+        resourceJid = jid.getTextContent();
+        if (XMLUtils.hasChild(
+                features,
+                "urn:ietf:params:xml:ns:xmpp-session",
+                "session")) {
+            stream.sendUnchecked(
+                "<iq xmlns='jabber:client' type='set' id='session_1'>" +
+                "<session xmlns='urn:ietf:params:xml:ns:xmpp-session'/>" +
+                "</iq>"
+            );
+        }
+    }
+
+    /**
+     * Return the full resource jid (username@domain.tld/resource).
+     * @return String The full resource jid.
+     * @see com.googlecode.asmack.connection.Connection#getResourceJid()
+     */
+    @Override
+    public String getResourceJid() {
+        return resourceJid;
+    }
+
+    /**
+     * Send a stanza as a single WebSocket message. Stanzas without a
+     * namespace are sent in the jabber:client namespace.
+     * @param stanza Stanza The stanza.
+     * @throws XmppException In case of stanza or connection errors.
+     * @see com.googlecode.asmack.connection.Connection#send(Stanza)
+     */
+    @Override
+    public void send(Stanza stanza) throws XmppException {
+        if (TextUtils.isEmpty(stanza.getNamespace())) {
+            stanza = new Stanza(
+                stanza.getName(),
+                "jabber:client",
+                stanza.getVia(),
+                stanza.getXml(),
+                stanza.getAttributes()
+            );
+        }
+        stream.sendUnchecked(XmppOutputStream.serialize(stanza, true));
+    }
+
+    /**
+     * Send a keepalive. RFC 7395 doesn't allow whitespace between messages,
+     * so an empty WebSocket ping is sent instead.
+     * @throws XmppException In case of a connection error.
+     * @see com.googlecode.asmack.connection.Connection#sendWhitespace()
+     */
+    @Override
+    public void sendWhitespace() throws XmppException {
+        stream.sendPing();
+    }
+
+    /**
+     * Close the WebSocket connection.
+     * @see com.googlecode.asmack.connection.Connection#close()
+     */
+    @Override
+    public void close() {
+        if (stream != null) {
+            stream.close();
+        }
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                /* not important */
+            }
+        }
+    }
+
+    /**
+     * Retrieve the timestamp of the last received message.
+     * @return long The unix time of the last received message.
+     * @see com.googlecode.asmack.connection.Connection#lastReceive()
+     */
+    @Override
+    public long lastReceive() {
+        return stream.getLastReceiveTime();
+    }
+
+    /**
+     * Retrieve the underlying xmpp account.
+     * @return XmppAccount The xmpp account used for connection/authentication.
+     * @see com.googlecode.asmack.connection.Connection#getAccount()
+     */
+    @Override
+    public XmppAccount getAccount() {
+        return account;
+    }
+
+    /**
+     * Check if this connection has already been closed.
+     * @return boolean True if the WebSocket has been closed.
+     * @see com.googlecode.asmack.connection.Connection#isClosed()
+     */
+    @Override
+    public boolean isClosed() {
+        return stream == null || stream.isClosed();
+    }
+
+    /**
+     * Add the tls and WebSocket message statistics of this connection.
+     * @param diagnostics Bundle The diagnostics bundle to fill.
+     * @see com.googlecode.asmack.connection.Connection#addDiagnostics(Bundle)
+     */
+    @Override
+    public void addDiagnostics(Bundle diagnostics) {
+        if (socket != null) {
+            diagnostics.putString("tcp.address",
+                                  socket.getInetAddress().getHostAddress());
+        }
+        diagnostics.putBoolean("ws", true);
+        diagnostics.putBoolean("tls", secure);
+        diagnostics.putBoolean("tls.resumed", sessionResumed);
+        diagnostics.putLong("tls.handshakes",
+                            SSLContextCache.getHandshakeCount());
+        diagnostics.putLong("tls.resumptions",
+                            SSLContextCache.getResumedCount());
+        if (stream != null) {
+            diagnostics.putBoolean("ws.deflate", stream.isDeflateEnabled());
+            diagnostics.putLong("ws.in.messages", stream.getMessagesIn());
+            diagnostics.putLong("ws.in.raw", stream.getRawBytesIn());
+            diagnostics.putLong("ws.in.wire", stream.getWireBytesIn());
+            diagnostics.putLong("ws.out.messages", stream.getMessagesOut());
+            diagnostics.putLong("ws.out.raw", stream.getRawBytesOut());
+            diagnostics.putLong("ws.out.wire", stream.getWireBytesOut());
+        }
+    }
+
+}
@@ -0,0 +1,792 @@
+/*
+ * Licensed under Apache License, Version 2.0 or LGPL 2.1, at your option.
+ * --
+ *
+ * Copyright 2010 Rene Treffer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * --
+ *
+ * Copyright (C) 2010 Rene Treffer
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin Street, Fifth Floor, Boston, MA  02110-1301 USA
+ */
+
+package com.googlecode.asmack.connection.impl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.w3c.dom.Node;
+
+import android.util.Base64;
+import android.util.Log;
+
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XMLUtils;
+import com.googlecode.asmack.XmppException;
+import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.XmppTransportException;
+
+/**
+ * <p>XMPP over WebSocket (RFC 7395) on top of a connected socket. Every
+ * WebSocket message carries exactly one complete element, so stanzas are
+ * parsed per message without a stream level parser.</p>
+ * <p>The client side of RFC 6455 is implemented directly, including the
+ * permessage-deflate extension (RFC 7692) if the server accepts it and
+ * zlib flushing is supported (see {@link ZLibOutputStream#SUPPORTED}).</p>
+ */
+public class WebSocketStream implements StanzaReader, StanzaWriter {
+
+    /**
+     * Debugging tag of this class ("WebSocketStream").
+     */
+    private static final String TAG = WebSocketStream.class.getSimpleName();
+
+    /**
+     * The xmpp framing namespace of RFC 7395.
+     */
+    public static final String FRAMING_NAMESPACE =
+                                        "urn:ietf:params:xml:ns:xmpp-framing";
+
+    /**
+     * The accept key suffix of RFC 6455.
+     */
+    private static final String ACCEPT_GUID =
+                                        "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+
+    /**
+     * Maximum size of a single message in bytes.
+     */
+    private static final int MAX_MESSAGE_SIZE = 1024 * 1024;
+
+    /**
+     * Continuation frame opcode.
+     */
+    private static final int OP_CONTINUATION = 0x0;
+
+    /**
+     * Text frame opcode.
+     */
+    private static final int OP_TEXT = 0x1;
+
+    /**
+     * Binary frame opcode.
+     */
+    private static final int OP_BINARY = 0x2;
+
+    /**
+     * Close frame opcode.
+     */
+    private static final int OP_CLOSE = 0x8;
+
+    /**
+     * Ping frame opcode.
+     */
+    private static final int OP_PING = 0x9;
+
+    /**
+     * Pong frame opcode.
+     */
+    private static final int OP_PONG = 0xA;
+
+    /**
+     * The tail removed from every compressed message (RFC 7692).
+     */
+    private static final byte[] DEFLATE_TAIL = {0, 0, (byte) 0xff, (byte) 0xff};
+
+    /**
+     * The socket of this stream.
+     */
+    private final Socket socket;
+
+    /**
+     * The buffered socket input.
+     */
+    private final InputStream in;
+
+    /**
+     * The buffered socket output.
+     */
+    private final OutputStream out;
+
+    /**
+     * Random source for frame masks.
+     */
+    private final SecureRandom random = SSLContextCache.getSecureRandom();
+
+    /**
+     * The message compressor, or null without permessage-deflate.
+     */
+    private Deflater deflater;
+
+    /**
+     * The message decompressor, or null without permessage-deflate.
+     */
+    private Inflater inflater;
+
+    /**
+     * True if the compressor has to be reset after every message.
+     */
+    private boolean deflaterReset = false;
+
+    /**
+     * True if the decompressor has to be reset after every message.
+     */
+    private boolean inflaterReset = false;
+
+    /**
+     * True after a close frame has been sent or received.
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Status of stanza debugging, mainly repetition of stanzas in the
+     * Android logcat.
+     */
+    private boolean debugEnabled = true;
+
+    /**
+     * The last time a message was received.
+     */
+    private volatile long lastReceiveTime = System.currentTimeMillis();
+
+    /**
+     * Number of received messages.
+     */
+    private volatile long messagesIn = 0;
+
+    /**
+     * Number of sent messages.
+     */
+    private volatile long messagesOut = 0;
+
+    /**
+     * Received message bytes, after decompression.
+     */
+    private volatile long rawBytesIn = 0;
+
+    /**
+     * Sent message bytes, before compression.
+     */
+    private volatile long rawBytesOut = 0;
+
+    /**
+     * Received payload bytes, as seen on the wire.
+     */
+    private volatile long wireBytesIn = 0;
+
+    /**
+     * Sent payload bytes, as seen on the wire.
+     */
+    private volatile long wireBytesOut = 0;
+
+    /**
+     * Run the WebSocket opening handshake on a connected socket.
+     * @param socket Socket The connected (and possibly tls wrapped) socket.
+     * @param host String The value of the http Host header.
+     * @param path String The request path, including the query.
+     * @param offerDeflate boolean True to offer permessage-deflate.
+     * @throws IOException In case of a transport error.
+     * @throws XmppTransportException If the server rejects the upgrade.
+     */
+    public WebSocketStream(
+        Socket socket,
+        String host,
+        String path,
+        boolean offerDeflate
+    ) throws IOException, XmppTransportException
+    {
+        this.socket = socket;
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+        handshake(host, path, offerDeflate && ZLibOutputStream.SUPPORTED);
+    }
+
+    /**
+     * Send the http upgrade request and validate the answer.
+     * @param host String The http Host header.
+     * @param path String The request path.
+     * @param offerDeflate boolean True to offer permessage-deflate.
+     * @throws IOException In case of a transport error.
+     * @throws XmppTransportException If the server rejects the upgrade.
+     */
+    private void handshake(String host, String path, boolean offerDeflate)
+        throws IOException, XmppTransportException
+    {
+        byte[] nonce = new byte[16];
+        random.nextBytes(nonce);
+        String key = Base64.encodeToString(nonce, Base64.NO_WRAP);
+        StringBuilder request = new StringBuilder(256);
+        request.append("GET ").append(path).append(" HTTP/1.1\r\n");
+        request.append("Host: ").append(host).append("\r\n");
+        request.append("Upgrade: websocket\r\n");
+        request.append("Connection: Upgrade\r\n");
+        request.append("Sec-WebSocket-Key: ").append(key).append("\r\n");
+        request.append("Sec-WebSocket-Version: 13\r\n");
+        request.append("Sec-WebSocket-Protocol: xmpp\r\n");
+        if (offerDeflate) {
+            request.append("Sec-WebSocket-Extensions: permessage-deflate\r\n");
+        }
+        request.append("\r\n");
+        out.write(request.toString().getBytes("ISO-8859-1"));
+        out.flush();
+
+        String status = readLine();
+        if (!status.startsWith("HTTP/1.1 101")) {
+            throw new XmppTransportException("WebSocket upgrade failed: " +
+                                             status);
+        }
+        HashMap<String, String> headers = new HashMap<String, String>();
+        for (String line = readLine(); line.length() > 0; line = readLine()) {
+            int split = line.indexOf(':');
+            if (split == -1) {
+                continue;
+            }
+            String name = line.substring(0, split).trim().toLowerCase();
+            String value = line.substring(split + 1).trim();
+            String previous = headers.get(name);
+            headers.put(name, previous == null ? value : previous + ", " + value);
+        }
+        if (!"websocket".equalsIgnoreCase(headers.get("upgrade"))) {
+            throw new XmppTransportException("Not a WebSocket upgrade");
+        }
+        if (!accept(key).equals(headers.get("sec-websocket-accept"))) {
+            throw new XmppTransportException("Invalid WebSocket accept key");
+        }
+        if (!"xmpp".equals(headers.get("sec-websocket-protocol"))) {
+            throw new XmppTransportException(
+                "Server doesn't speak the xmpp WebSocket protocol"
+            );
+        }
+        String extensions = headers.get("sec-websocket-extensions");
+        if (extensions != null) {
+            acceptExtensions(extensions, offerDeflate);
+        }
+        Log.d(TAG, "WebSocket open" + (deflater != null ? " (deflate)" : ""));
+    }
+
+    /**
+     * Compute the expected Sec-WebSocket-Accept value for a key.
+     * @param key String The Sec-WebSocket-Key of the request.
+     * @return String The expected accept value.
+     * @throws XmppTransportException If SHA-1 is not available.
+     */
+    static String accept(String key) throws XmppTransportException {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return Base64.encodeToString(
+                sha1.digest((key + ACCEPT_GUID).getBytes("ISO-8859-1")),
+                Base64.NO_WRAP
+            );
+        } catch (NoSuchAlgorithmException e) {
+            throw new XmppTransportException("Can't compute accept key", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new XmppTransportException("Can't compute accept key", e);
+        }
+    }
+
+    /**
+     * Apply the extensions accepted by the server.
+     * @param extensions String The Sec-WebSocket-Extensions header.
+     * @param offeredDeflate boolean True if permessage-deflate was offered.
+     * @throws XmppTransportException If the server answered with an
+     *                                extension that wasn't offered.
+     */
+    private void acceptExtensions(String extensions, boolean offeredDeflate)
+        throws XmppTransportException
+    {
+        for (String extension: extensions.split(",")) {
+            String[] parameters = extension.split(";");
+            if (!offeredDeflate ||
+                !"permessage-deflate".equals(parameters[0].trim())) {
+                throw new XmppTransportException(
+                    "Unexpected WebSocket extension " + extension
+                );
+            }
+            for (int i = 1; i < parameters.length; i++) {
+                String parameter = parameters[i].trim();
+                if (parameter.equals("client_no_context_takeover")) {
+                    deflaterReset = true;
+                } else if (parameter.equals("server_no_context_takeover")) {
+                    inflaterReset = true;
+                } else if (!parameter.startsWith("server_max_window_bits")) {
+                    // client_max_window_bits wasn't offered, the java
+                    // deflater always uses a 32kb window
+                    throw new XmppTransportException(
+                        "Unsupported permessage-deflate parameter " + parameter
+                    );
+                }
+            }
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            inflater = new Inflater(true);
+        }
+    }
+
+    /**
+     * Read a single http header line.
+     * @return String The line without the line break.
+     * @throws IOException In case of a transport error.
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int c = readByte(); c != '\n'; c = readByte()) {
+            if (c != '\r') {
+                line.append((char) c);
+            }
+            if (line.length() > 8192) {
+                throw new IOException("http header line too long");
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * Read a single byte, failing at the end of the stream.
+     * @return int The byte.
+     * @throws IOException In case of a transport error or end of stream.
+     */
+    private int readByte() throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("WebSocket closed");
+        }
+        return b;
+    }
+
+    /**
+     * Read a given number of bytes.
+     * @param length int The number of bytes.
+     * @return byte[] The bytes.
+     * @throws IOException In case of a transport error or end of stream.
+     */
+    private byte[] readFully(int length) throws IOException {
+        byte[] data = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int count = in.read(data, offset, length - offset);
+            if (count == -1) {
+                throw new EOFException("WebSocket closed");
+            }
+            offset += count;
+        }
+        return data;
+    }
+
+    /**
+     * Open (or restart) the xmpp stream and read the stream features.
+     * @param to String The target domain.
+     * @return Node The stream features.
+     * @throws XmppException In case of a xmpp or transport error.
+     */
+    public Node open(String to) throws XmppException {
+        sendUnchecked(
+            "<open xmlns='" + FRAMING_NAMESPACE + "' to='" +
+            XMLUtils.xmlEscape(to) + "' version='1.0'/>"
+        );
+        Stanza stanza = nextStanza();
+        if (!"open".equals(stanza.getName()) ||
+            !FRAMING_NAMESPACE.equals(stanza.getNamespace())) {
+            throw new XmppMalformedException("Expected <open/>, got " +
+                                             stanza.getXml());
+        }
+        Node features = nextStanza().getDocumentNode();
+        if (!XMLUtils.isInstance(
+                features,
+                "http://etherx.jabber.org/streams",
+                "features")) {
+            throw new XmppMalformedException("Expected stream features");
+        }
+        return features;
+    }
+
+    /**
+     * Read the next message as a stanza.
+     * @return Stanza The next stanza.
+     * @throws XmppException In case of a transport error, a malformed
+     *                       message or a closed stream.
+     * @see StanzaReader#nextStanza()
+     */
+    @Override
+    public Stanza nextStanza() throws XmppException {
+        byte[] message;
+        try {
+            message = readMessage();
+        } catch (IOException e) {
+            throw new XmppTransportException("error during stanza read", e);
+        }
+        if (message == null) {
+            throw new XmppTransportException("WebSocket closed");
+        }
+        Stanza stanza = StanzaFramer.parse(message);
+        if (debugEnabled) {
+            Log.d(TAG, "Stanza: " + stanza.getXml());
+        }
+        if ("close".equals(stanza.getName()) &&
+            FRAMING_NAMESPACE.equals(stanza.getNamespace())) {
+            throw new XmppTransportException("Stream closed by server");
+        }
+        lastReceiveTime = System.currentTimeMillis();
+        return stanza;
+    }
+
+    /**
+     * Send a xml fragment as a single text message.
+     * @param stanza String The xml fragment, including its namespace.
+     * @throws XmppTransportException In case of a transport error.
+     * @see StanzaWriter#sendUnchecked(String)
+     */
+    @Override
+    public synchronized void sendUnchecked(String stanza)
+        throws XmppTransportException
+    {
+        Log.d(TAG, stanza);
+        try {
+            byte[] data = stanza.getBytes("UTF-8");
+            rawBytesOut += data.length;
+            if (deflater != null) {
+                sendFrame(OP_TEXT, deflate(data), true);
+            } else {
+                sendFrame(OP_TEXT, data, false);
+            }
+            messagesOut++;
+        } catch (IOException e) {
+            throw new XmppTransportException("Stanza sending failed", e);
+        }
+    }
+
+    /**
+     * Send an empty ping frame as keepalive.
+     * @throws XmppTransportException In case of a transport error.
+     */
+    public void sendPing() throws XmppTransportException {
+        try {
+            sendFrame(OP_PING, new byte[0], false);
+        } catch (IOException e) {
+            throw new XmppTransportException("Keepalive failed", e);
+        }
+    }
+
+    /**
+     * Read the next complete data message, answering control frames.
+     * @return byte[] The message payload, or null if the WebSocket was
+     *                closed.
+     * @throws IOException In case of a transport or protocol error.
+     */
+    private byte[] readMessage() throws IOException {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        boolean started = false;
+        boolean compressed = false;
+        while (true) {
+            int head = readByte();
+            int length = readByte();
+            boolean fin = (head & 0x80) != 0;
+            boolean rsv1 = (head & 0x40) != 0;
+            int opcode = head & 0x0f;
+            boolean masked = (length & 0x80) != 0;
+            long size = length & 0x7f;
+            if (size == 126) {
+                size = (readByte() << 8) | readByte();
+            } else if (size == 127) {
+                size = 0;
+                for (int i = 0; i < 8; i++) {
+                    size = (size << 8) | readByte();
+                }
+            }
+            if (size < 0 || size > MAX_MESSAGE_SIZE) {
+                throw new IOException("WebSocket frame too large");
+            }
+            byte[] mask = masked ? readFully(4) : null;
+            byte[] payload = readFully((int) size);
+            if (mask != null) {
+                for (int i = 0; i < payload.length; i++) {
+                    payload[i] ^= mask[i & 3];
+                }
+            }
+            wireBytesIn += payload.length;
+            if (opcode == OP_CLOSE) {
+                if (!closed) {
+                    closed = true;
+                    sendFrame(OP_CLOSE, new byte[0], false);
+                }
+                return null;
+            }
+            if (opcode == OP_PING) {
+                sendFrame(OP_PONG, payload, false);
+                continue;
+            }
+            if (opcode == OP_PONG) {
+                // answer to a keepalive
+                lastReceiveTime = System.currentTimeMillis();
+                continue;
+            }
+            if (opcode == OP_CONTINUATION) {
+                if (!started) {
+                    throw new IOException("Unexpected continuation frame");
+                }
+            } else if (opcode == OP_TEXT || opcode == OP_BINARY) {
+                if (started) {
+                    throw new IOException("Unexpected data frame");
+                }
+                started = true;
+                compressed = rsv1;
+                if (compressed && inflater == null) {
+                    throw new IOException("Compressed frame without deflate");
+                }
+            } else {
+                throw new IOException("Unknown WebSocket opcode " + opcode);
+            }
+            message.write(payload);
+            if (message.size() > MAX_MESSAGE_SIZE) {
+                throw new IOException("WebSocket message too large");
+            }
+            if (fin) {
+                break;
+            }
+        }
+        byte[] data = message.toByteArray();
+        if (compressed) {
+            data = inflate(data);
+        }
+        rawBytesIn += data.length;
+        messagesIn++;
+        return data;
+    }
+
+    /**
+     * Write a single masked frame.
+     * @param opcode int The frame opcode.
+     * @param payload byte[] The unmasked payload.
+     * @param rsv1 boolean True for compressed messages.
+     * @throws IOException In case of a transport error.
+     */
+    private synchronized void sendFrame(int opcode, byte[] payload, boolean rsv1)
+        throws IOException
+    {
+        int head = 0x80 | opcode;
+        if (rsv1) {
+            head |= 0x40;
+        }
+        out.write(head);
+        if (payload.length < 126) {
+            out.write(0x80 | payload.length);
+        } else if (payload.length < 65536) {
+            out.write(0x80 | 126);
+            out.write(payload.length >> 8);
+            out.write(payload.length);
+        } else {
+            out.write(0x80 | 127);
+            for (int i = 7; i >= 0; i--) {
+                out.write(i >= 4 ? 0 : (payload.length >> (8 * i)));
+            }
+        }
+        byte[] mask = new byte[4];
+        random.nextBytes(mask);
+        out.write(mask);
+        byte[] masked = new byte[payload.length];
+        for (int i = 0; i < payload.length; i++) {
+            masked[i] = (byte) (payload[i] ^ mask[i & 3]);
+        }
+        out.write(masked);
+        out.flush();
+        wireBytesOut += payload.length;
+    }
+
+    /**
+     * Compress a message (RFC 7692), removing the flush tail.
+     * @param data byte[] The message.
+     * @return byte[] The compressed message.
+     * @throws IOException If the deflater can't be flushed.
+     */
+    private byte[] deflate(byte[] data) throws IOException {
+        deflater.setInput(data);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int count;
+        do {
+            count = ZLibOutputStream.syncFlush(deflater, buffer);
+            result.write(buffer, 0, count);
+        } while (count == buffer.length);
+        if (deflaterReset) {
+            deflater.reset();
+        }
+        byte[] compressed = result.toByteArray();
+        int length = compressed.length;
+        if (length >= 4 &&
+            compressed[length - 4] == DEFLATE_TAIL[0] &&
+            compressed[length - 3] == DEFLATE_TAIL[1] &&
+            compressed[length - 2] == DEFLATE_TAIL[2] &&
+            compressed[length - 1] == DEFLATE_TAIL[3]) {
+            byte[] trimmed = new byte[length - 4];
+            System.arraycopy(compressed, 0, trimmed, 0, length - 4);
+            return trimmed;
+        }
+        return compressed;
+    }
+
+    /**
+     * Decompress a message (RFC 7692).
+     * @param data byte[] The compressed message.
+     * @return byte[] The message.
+     * @throws IOException If the message can't be decompressed.
+     */
+    private byte[] inflate(byte[] data) throws IOException {
+        byte[] input = new byte[data.length + DEFLATE_TAIL.length];
+        System.arraycopy(data, 0, input, 0, data.length);
+        System.arraycopy(DEFLATE_TAIL, 0, input, data.length,
+                         DEFLATE_TAIL.length);
+        inflater.setInput(input);
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            int count;
+            while ((count = inflater.inflate(buffer)) > 0) {
+                result.write(buffer, 0, count);
+                if (result.size() > MAX_MESSAGE_SIZE) {
+                    throw new IOException("WebSocket message too large");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed message");
+        }
+        if (inflaterReset) {
+            inflater.reset();
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Close the socket of this stream. No closing handshake is attempted,
+     * as the stream may be stalled.
+     */
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            /* not important */
+        }
+        if (deflater != null) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Check if the WebSocket has been closed.
+     * @return boolean True after {@link #close()} or a received close frame.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Check if permessage-deflate is in use.
+     * @return boolean True if messages are compressed.
+     */
+    public boolean isDeflateEnabled() {
+        return deflater != null;
+    }
+
+    /**
+     * Retrieve the unix timestamp of the last received message.
+     * @return long The unix timestamp of the last received message.
+     */
+    public long getLastReceiveTime() {
+        return lastReceiveTime;
+    }
+
+    /**
+     * Change the debugging state.
+     * @param debugEnabled boolean True if stanzas should be replayed to the
+     *                             Android log.
+     */
+    public void setDebugEnabled(boolean debugEnabled) {
+        this.debugEnabled = debugEnabled;
+    }
+
+    /**
+     * Retrieve the number of received messages.
+     * @return long The number of received messages.
+     */
+    public long getMessagesIn() {
+        return messagesIn;
+    }
+
+    /**
+     * Retrieve the number of sent messages.
+     * @return long The number of sent messages.
+     */
+    public long getMessagesOut() {
+        return messagesOut;
+    }
+
+    /**
+     * Retrieve the received message bytes after decompression.
+     * @return long The received message bytes.
+     */
+    public long getRawBytesIn() {
+        return rawBytesIn;
+    }
+
+    /**
+     * Retrieve the sent message bytes before compression.
+     * @return long The sent message bytes.
+     */
+    public long getRawBytesOut() {
+        return rawBytesOut;
+    }
+
+    /**
+     * Retrieve the received payload bytes as seen on the wire.
+     * @return long The received payload bytes.
+     */
+    public long getWireBytesIn() {
+        return wireBytesIn;
+    }
+
+    /**
+     * Retrieve the sent payload bytes as seen on the wire.
+     * @return long The sent payload bytes.
+     */
+    public long getWireBytesOut() {
+        return wireBytesOut;
+    }
+
+}
@@ -38,16 +38,23 @@
 package com.googlecode.asmack.connection.impl;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 
+import android.os.Bundle;
 import android.util.Log;
 
 import com.googlecode.asmack.StanzaSink;
 import com.googlecode.asmack.XMPPUtils;
 import com.googlecode.asmack.XmppAccount;
 import com.googlecode.asmack.XmppException;
+import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.XmppTransportException;
 import com.googlecode.asmack.dns.Client;
 import com.googlecode.asmack.dns.DNSMessage;
 import com.googlecode.asmack.dns.Record;
@@ -56,15 +63,55 @@ import com.googlecode.asmack.dns.Record.TYPE;
 import com.googlecode.asmack.dns.record.SRV;
 
 /**
- * Xmpp compliant connection, resolving the XMPP server via DNS/SRV lookups.
+ * <p>Xmpp compliant connection, resolving the XMPP server via DNS/SRV lookups.
+ * The "xmpps:" scheme prefers direct tls (XEP-0368) via the
+ * _xmpps-client._tcp records and falls back to STARTTLS.</p>
+ * <p>All DNS/SRV targets are ordered as described by RFC 2782 and tried
+ * until one of them works or the connect budget is exhausted. The targets
+ * are raced if {@link XmppAccount#isTargetRacingEnabled()} is set.</p>
  */
 public class XmppConnection extends TcpConnection {
 
+    /**
+     * Log tag for this class (class.getSimpleName()).
+     */
+    private static final String TAG = XmppConnection.class.getSimpleName();
+
+    /**
+     * Total time available for trying the DNS/SRV targets, in milliseconds.
+     */
+    private static final long CONNECT_BUDGET = 60 * 1000;
+
+    /**
+     * Random source for the weighted target selection.
+     */
+    private static final Random RANDOM = new Random();
+
     /**
      * The initial xmpp domain.
      */
     private String xmppDomain;
 
+    /**
+     * True if direct tls should be tried first ("xmpps:" scheme).
+     */
+    private final boolean preferDirectTLS;
+
+    /**
+     * Number of DNS/SRV targets found during the last connect.
+     */
+    private int targetCount = 0;
+
+    /**
+     * Number of failed connect attempts during the last connect.
+     */
+    private int failoverCount = 0;
+
+    /**
+     * A host that should only be tried after all other targets, or null.
+     */
+    private String avoidedHost;
+
     /**
      * Create a new xmpp connection object.
      * @param account XmppAccount The underlying xmpp account.
@@ -72,6 +119,7 @@ public class XmppConnection extends TcpConnection {
     public XmppConnection(XmppAccount account) {
         super(account);
         xmppDomain = XMPPUtils.getDomain(account.getJid());
+        preferDirectTLS = account.getConnection().startsWith("xmpps:");
     }
 
     /**
@@ -84,58 +132,228 @@ public class XmppConnection extends TcpConnection {
      */
     @Override
     public void connect(StanzaSink sink) throws XmppException {
-        // resolve connection string
-        String[] resolvedXMPPDomain = resolveXMPPDomain(xmppDomain);
-        account.setConnection("tcp:" + resolvedXMPPDomain[0] + ":" + resolvedXMPPDomain[1]);
-        // handle by parent
-        super.connect(sink);
+        long deadline = System.currentTimeMillis() + CONNECT_BUDGET;
+        targetCount = 0;
+        failoverCount = 0;
+        if (preferDirectTLS) {
+            List<String[]> targets =
+                resolveSRV("_xmpps-client._tcp." + xmppDomain);
+            if (targets.size() > 0) {
+                try {
+                    connect(targets, true, deadline, sink);
+                    return;
+                } catch (XmppTransportException e) {
+                    Log.d(TAG, "Direct tls failed, falling back to starttls", e);
+                } catch (XmppMalformedException e) {
+                    Log.d(TAG, "Direct tls failed, falling back to starttls", e);
+                }
+            }
+        }
+        connect(resolveXMPPTargets(xmppDomain), false, deadline, sink);
+    }
+
+    /**
+     * Try an ordered list of targets until one of them can be connected and
+     * bound. Transport and stream errors move on to the next target, all
+     * other errors (e.g. authentication failures) are final.
+     * @param targets List<String[]> The ordered host/port pairs.
+     * @param directTLS boolean True if tls should be started right away.
+     * @param deadline long The end of the connect budget
+     *                      (System.currentTimeMillis()).
+     * @param sink StanzaSink The final stanza sink for incoming stanzas.
+     * @throws XmppException If no target could be used.
+     */
+    private void connect(
+        List<String[]> targets,
+        boolean directTLS,
+        long deadline,
+        StanzaSink sink
+    ) throws XmppException {
+        setDirectTLS(directTLS);
+        targetCount += targets.size();
+        LinkedList<String[]> remaining = new LinkedList<String[]>();
+        LinkedList<String[]> avoided = new LinkedList<String[]>();
+        for (String[] target: targets) {
+            if (target[0].equals(avoidedHost)) {
+                avoided.add(target);
+            } else {
+                remaining.add(target);
+            }
+        }
+        remaining.addAll(avoided);
+        XmppException lastError = null;
+        while (remaining.size() > 0) {
+            long budget = deadline - System.currentTimeMillis();
+            if (budget <= 0) {
+                Log.d(TAG, "Connect budget exhausted");
+                break;
+            }
+            setConnectTimeout((int) Math.min(CONNECT_TIMEOUT, budget));
+            List<String[]> attempt = new ArrayList<String[]>(
+                account.isTargetRacingEnabled() ?
+                    remaining : remaining.subList(0, 1)
+            );
+            try {
+                connect(attempt);
+                startReading(sink);
+                return;
+            } catch (XmppTransportException e) {
+                lastError = e;
+            } catch (XmppMalformedException e) {
+                lastError = e;
+            }
+            close();
+            failoverCount++;
+            String host = getHost();
+            boolean removed = false;
+            if (host != null) {
+                // the winning target failed during the negotiation
+                Iterator<String[]> iterator = remaining.iterator();
+                while (iterator.hasNext()) {
+                    if (host.equals(iterator.next()[0])) {
+                        iterator.remove();
+                        removed = true;
+                        break;
+                    }
+                }
+            }
+            if (!removed) {
+                // no target was reachable, never retry the same attempt
+                remaining.removeAll(attempt);
+            }
+            Log.d(TAG, "Connect failed, " + remaining.size() +
+                       " targets left", lastError);
+        }
+        if (lastError == null) {
+            lastError = new XmppTransportException(
+                "Connect budget exhausted for " + xmppDomain
+            );
+        }
+        throw lastError;
     }
 
     /**
-     * Tries to resolve the SRV record for a given domain.
+     * Move a host to the end of the target list, e.g. to place a standby
+     * connection on a different server than the primary connection.
+     * @param avoidedHost String The host name, or null.
+     */
+    public void setAvoidedHost(String avoidedHost) {
+        this.avoidedHost = avoidedHost;
+    }
+
+    /**
+     * Add the DNS/SRV failover statistics to the connection diagnostics.
+     * @param diagnostics Bundle The diagnostics bundle to fill.
+     * @see TcpConnection#addDiagnostics(Bundle)
+     */
+    @Override
+    public void addDiagnostics(Bundle diagnostics) {
+        super.addDiagnostics(diagnostics);
+        diagnostics.putInt("srv.targets", targetCount);
+        diagnostics.putInt("srv.failovers", failoverCount);
+    }
+
+    /**
+     * Resolve the SRV records for a given domain, ordered as described by
+     * RFC 2782: ascending priority, weighted random order within a
+     * priority.
      * @param domain String The target domain to check.
-     * @return String[] A host/port pair.
+     * @return List<String[]> The ordered host/port pairs, empty if there
+     *                        are no records or the service is unavailable.
      */
-    private static String[] resolveSRV(String domain) {
+    private static List<String[]> resolveSRV(String domain) {
+        List<String[]> result = new ArrayList<String[]>();
+
         Client client = new Client();
 
         DNSMessage reply = client.query(domain, TYPE.SRV, CLASS.IN);
 
         if (reply == null) {
-            Log.w("XMPPConnection", "Resolving SRV " + domain + " failed");
-            return null;
+            Log.w(TAG, "Resolving SRV " + domain + " failed");
+            return result;
         }
 
-        String bestHost = null;
-        int bestPort = -1;
-        int bestPriority = Integer.MAX_VALUE;
-        int bestWeight = 0;
-
-        List<Record> list = new ArrayList<Record>();
-        list.addAll(Arrays.asList(reply.getAnswers()));
-        Collections.shuffle(list);
-        for (Record rec : list) {
-            SRV srv = (SRV)rec.getPayload();
-            int weight = (int) (srv.getWeight() * srv.getWeight() *
-                                Math.random());
-            int priority = (int) (srv.getPriority() * srv.getPriority() *
-                                  Math.random());
-            if (priority < bestPriority && weight >= bestWeight) {
-                bestPriority = priority;
-                bestWeight = weight;
-                bestHost = srv.getName();
-                bestPort = srv.getPort();
+        List<SRV> records = new ArrayList<SRV>();
+        for (Record rec : reply.getAnswers()) {
+            if (!(rec.getPayload() instanceof SRV)) {
+                continue;
             }
+            SRV srv = (SRV) rec.getPayload();
+            String name = srv.getName();
+            if (name == null || name.length() == 0 || name.equals(".")) {
+                // "." means the service is decidedly not available
+                continue;
+            }
+            records.add(srv);
         }
 
-        if (bestHost == null) {
-            return null;
+        // priority first, weight 0 records at the start of each priority
+        Collections.sort(records, new Comparator<SRV>() {
+            @Override
+            public int compare(SRV a, SRV b) {
+                if (a.getPriority() != b.getPriority()) {
+                    return a.getPriority() - b.getPriority();
+                }
+                return (a.getWeight() == 0 ? 0 : 1) -
+                       (b.getWeight() == 0 ? 0 : 1);
+            }
+        });
+
+        while (records.size() > 0) {
+            int priority = records.get(0).getPriority();
+            int end = 1;
+            int sum = records.get(0).getWeight();
+            while (end < records.size() &&
+                   records.get(end).getPriority() == priority) {
+                sum += records.get(end).getWeight();
+                end++;
+            }
+            // weighted random selection: pick a random number in [0,sum] and
+            // take the first record whose running sum reaches it
+            int selected = RANDOM.nextInt(sum + 1);
+            int running = 0;
+            int index = 0;
+            for (; index < end - 1; index++) {
+                running += records.get(index).getWeight();
+                if (running >= selected) {
+                    break;
+                }
+            }
+            SRV srv = records.remove(index);
+            String host = srv.getName();
+            // Host entries in DNS should end with a ".".
+            if (host.endsWith(".")) {
+                host = host.substring(0, host.length() - 1);
+            }
+            result.add(new String[]{host, Integer.toString(srv.getPort())});
+        }
+
+        return result;
+    }
+
+    /**
+     * Resolve all xmpp DNS/SRV targets for a given domain. The
+     * _xmpp-client._tcp.domain.tld targets are followed by the legacy
+     * _jabber._tcp.domain.tld targets, duplicates are removed. The domain
+     * itself (port 5222) is used if there are no SRV records.
+     *
+     * @param domain String The target domain string.
+     * @return List<String[]> The ordered host/port pairs.
+     */
+    public static List<String[]> resolveXMPPTargets(String domain) {
+        List<String[]> result = new ArrayList<String[]>();
+        HashSet<String> seen = new HashSet<String>();
+        List<String[]> targets = resolveSRV("_xmpp-client._tcp." + domain);
+        targets.addAll(resolveSRV("_jabber._tcp." + domain));
+        for (String[] target: targets) {
+            if (seen.add(target[0].toLowerCase() + ":" + target[1])) {
+                result.add(target);
+            }
         }
-        // Host entries in DNS should end with a ".".
-        if (bestHost.endsWith(".")) {
-            bestHost = bestHost.substring(0, bestHost.length() - 1);
+        if (result.size() == 0) {
+            result.add(new String[]{domain, "5222"});
         }
-        return new String[]{bestHost, Integer.toString(bestPort)};
+        return result;
     }
 
     /**
@@ -144,17 +362,10 @@ public class XmppConnection extends TcpConnection {
      * _jabber._tcp.domain.tld.
      *
      * @param domain String The target domain string.
-     * @return String[] A host/port pair.
+     * @return String[] The preferred host/port pair.
      */
     public static String[] resolveXMPPDomain(String domain) {
-        String result[] = resolveSRV("_xmpp-client._tcp." + domain);
-        if (result == null) {
-            result = resolveSRV("_jabber._tcp." + domain);
-        }
-        if (result == null) {
-            result = new String[]{domain, "5222"};
-        }
-        return result;
+        return resolveXMPPTargets(domain).get(0);
     }
 
 }
@@ -39,6 +39,7 @@ package com.googlecode.asmack.connection.impl;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -54,7 +55,7 @@ import com.googlecode.asmack.connection.XmppTransportException;
 /**
  * A non-threaded input stream to xmpp stanza converter.
  */
-public class XmppInputStream {
+public class XmppInputStream implements StanzaReader {
 
     /**
      * Debugging tag of this class ("XmppInputStream").
@@ -108,6 +109,11 @@ public class XmppInputStream {
      */
     private XmlPullParser parser;
 
+    /**
+     * Optional round trip counter, notified on every read.
+     */
+    private RoundTripCounter roundTripCounter;
+
     /**
      * Create a new XMPP input stream on top of a lowlevel io stream.
      * @param in InputStream The underlying input stream. 
@@ -119,6 +125,19 @@ public class XmppInputStream {
         attach(in);
     }
 
+    /**
+     * Create a new XMPP input stream on top of a lowlevel io stream that is
+     * parsed through a given reader, see {@link #attach(InputStream, Reader)}.
+     * @param in InputStream The underlying input stream.
+     * @param reader Reader The reader of the stream, or null.
+     * @throws XmppTransportException In case of a transport exception.
+     */
+    public XmppInputStream(InputStream in, Reader reader)
+        throws XmppTransportException
+    {
+        attach(in, reader);
+    }
+
     /**
      * Read the stream opening.
      * @throws XmlPullParserException In case of invalid xml.
@@ -126,6 +145,9 @@ public class XmppInputStream {
      */
     public void readOpening() throws XmlPullParserException, IOException {
         parser.nextTag();
+        if (roundTripCounter != null) {
+            roundTripCounter.received();
+        }
 
         Log.d(TAG, "Receiving stream start...");
 
@@ -216,6 +238,9 @@ public class XmppInputStream {
         }
 
         lastReceiveTime = System.currentTimeMillis();
+        if (roundTripCounter != null) {
+            roundTripCounter.received();
+        }
         return stanza;
     }
 
@@ -234,10 +259,30 @@ public class XmppInputStream {
      * @throws XmppTransportException In case of a transport error.
      */
     public void attach(InputStream in) throws XmppTransportException {
+        attach(in, null);
+    }
+
+    /**
+     * Attach to an underlying input stream that is parsed through a given
+     * reader, e.g. a reader that doesn't read ahead of the current element
+     * (see {@link NioChannel#getReader()}).
+     * @param in InputStream The new underlying input stream, closed by
+     *                       {@link #close()}.
+     * @param reader Reader The reader of the stream, or null to parse the
+     *                      stream as utf-8.
+     * @throws XmppTransportException In case of a transport error.
+     */
+    public void attach(InputStream in, Reader reader)
+        throws XmppTransportException
+    {
         this.inputStream = in;
         try {
             parser = XMLUtils.getXMLPullParser();
-            parser.setInput(in, "UTF-8");
+            if (reader == null) {
+                parser.setInput(in, "UTF-8");
+            } else {
+                parser.setInput(reader);
+            }
         } catch (XmlPullParserException e) {
             throw new XmppTransportException("Can't initialize pull parser", e);
         }
@@ -300,6 +345,14 @@ public class XmppInputStream {
         this.debugEnabled = debugEnabled;
     }
 
+    /**
+     * Set the round trip counter that should be notified on reads.
+     * @param roundTripCounter RoundTripCounter The counter, or null.
+     */
+    public void setRoundTripCounter(RoundTripCounter roundTripCounter) {
+        this.roundTripCounter = roundTripCounter;
+    }
+
     /**
      * Retrieve the unix timestamp of the last receive event.
      * @return long The unix timestamp of the last received stanza.
@@ -58,13 +58,18 @@ import com.googlecode.asmack.connection.XmppTransportException;
 /**
  * Wrap an {@link OutputStream} into an XMPP compliant stream.
  */
-public class XmppOutputStream {
+public class XmppOutputStream implements StanzaWriter {
 
     /**
      * The debugging tag of this class ("XmppOutputStream").
      */
     private static final String TAG = XmppOutputStream.class.getSimpleName();
 
+    /**
+     * The pre-encoded whitespace keepalive.
+     */
+    private static final byte[] WHITESPACE = new byte[]{' '};
+
     /**
      * The lowlevel output stream.
      */
@@ -75,6 +80,11 @@ public class XmppOutputStream {
      */
     private XmlSerializer xmlSerializer;
 
+    /**
+     * Optional round trip counter, notified on every write.
+     */
+    private RoundTripCounter roundTripCounter;
+
     /**
      * Create a new XmppOutputStram. dirctly attached to the given OutputStream.
      * @param out OutputStream The low level io OutputStream.
@@ -156,6 +166,9 @@ public class XmppOutputStream {
         }
         xmlSerializer.flush();
         outputStream.flush();
+        if (roundTripCounter != null) {
+            roundTripCounter.sent();
+        }
     }
 
     /**
@@ -181,6 +194,25 @@ public class XmppOutputStream {
                 throw new XmppTransportException("Stanza sending failed", e);
             }
         }
+        if (roundTripCounter != null) {
+            roundTripCounter.sent();
+        }
+    }
+
+    /**
+     * Send a single whitespace byte as keepalive, flushing the stream
+     * afterwards.
+     * @throws XmppTransportException In case of a transport exception.
+     */
+    public void sendWhitespace() throws XmppTransportException {
+        synchronized (outputStream) {
+            try {
+                outputStream.write(WHITESPACE);
+                outputStream.flush();
+            } catch (IOException e) {
+                throw new XmppTransportException("Keepalive failed", e);
+            }
+        }
     }
 
     /**
@@ -191,6 +223,22 @@ public class XmppOutputStream {
      */
     public void send(Stanza stanza)
         throws XmppException
+    {
+        sendUnchecked(serialize(stanza, false));
+    }
+
+    /**
+     * Merge the stanza attributes into the stanza xml.
+     * @param stanza Stanza The stanza to serialize.
+     * @param declareNamespace boolean True to declare the stanza namespace
+     *                                 as the default namespace, as needed
+     *                                 for standalone stanzas (e.g. RFC 7395
+     *                                 messages).
+     * @return String The stanza xml.
+     * @throws XmppException In case of an error.
+     */
+    public static String serialize(Stanza stanza, boolean declareNamespace)
+        throws XmppException
     {
         XmlPullParser xmlPullParser;
         try {
@@ -223,6 +271,9 @@ public class XmppOutputStream {
         }
 
         try {
+            if (declareNamespace) {
+                xmlSerializer.setPrefix("", stanza.getNamespace());
+            }
             xmlSerializer.startTag(stanza.getNamespace(), stanza.getName());
 
             HashSet<String> addedAttributes = new HashSet<String>();
@@ -272,7 +323,15 @@ public class XmppOutputStream {
             e.printStackTrace();
         }
 
-        sendUnchecked(stringWriter.toString());
+        return stringWriter.toString();
+    }
+
+    /**
+     * Set the round trip counter that should be notified on writes.
+     * @param roundTripCounter RoundTripCounter The counter, or null.
+     */
+    public void setRoundTripCounter(RoundTripCounter roundTripCounter) {
+        this.roundTripCounter = roundTripCounter;
     }
 
     /**
@@ -49,6 +49,26 @@ import java.util.zip.InflaterInputStream;
  */
 public class ZLibInputStream extends InflaterInputStream {
 
+    /**
+     * Number of uncompressed bytes read from this stream.
+     */
+    private volatile long rawBytes = 0;
+
+    /**
+     * Number of compressed bytes read from the underlying stream.
+     */
+    private volatile long compressedBytes = 0;
+
+    /**
+     * Nanoseconds spent inside the inflater.
+     */
+    private volatile long inflateNanos = 0;
+
+    /**
+     * Nanoseconds spent waiting for the underlying stream.
+     */
+    private long fillNanos = 0;
+
     /**
      * Construct a ZLibInputStream, reading data from the underlying stream.
      *
@@ -86,4 +106,64 @@ public class ZLibInputStream extends InflaterInputStream {
         return super.available();
     }
 
+    /**
+     * Read and inflate a block of data, counting the raw bytes and the time
+     * spent in zlib. Time spent waiting for the network is not included.
+     * @param buffer byte[] The target buffer.
+     * @param off int The start offset within the buffer.
+     * @param nbytes int The maximum number of bytes to read.
+     * @return int The number of bytes read, or -1 at the end of the stream.
+     * @throws IOException In case of a lowlevel exception.
+     */
+    @Override
+    public int read(byte[] buffer, int off, int nbytes) throws IOException {
+        long start = System.nanoTime();
+        long fill = fillNanos;
+        int count = super.read(buffer, off, nbytes);
+        inflateNanos += System.nanoTime() - start - (fillNanos - fill);
+        if (count > 0) {
+            rawBytes += count;
+        }
+        return count;
+    }
+
+    /**
+     * Fill the inflater input buffer, counting the compressed bytes.
+     * @throws IOException In case of a lowlevel exception.
+     */
+    @Override
+    protected void fill() throws IOException {
+        long start = System.nanoTime();
+        super.fill();
+        fillNanos += System.nanoTime() - start;
+        if (len > 0) {
+            compressedBytes += len;
+        }
+    }
+
+    /**
+     * Retrieve the number of uncompressed bytes read from this stream.
+     * @return long The number of raw bytes.
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * Retrieve the number of compressed bytes read from the underlying
+     * stream.
+     * @return long The number of compressed bytes.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Retrieve the time spent inside the inflater.
+     * @return long The inflate time in nanoseconds.
+     */
+    public long getInflateNanos() {
+        return inflateNanos;
+    }
+
 }
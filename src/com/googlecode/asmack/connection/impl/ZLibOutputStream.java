@@ -77,6 +77,26 @@ public class ZLibOutputStream extends DeflaterOutputStream {
         SUPPORTED = (method != null);
     }
 
+    /**
+     * Number of uncompressed bytes written to this stream.
+     */
+    private volatile long rawBytes = 0;
+
+    /**
+     * Number of compressed bytes written to the underlying stream.
+     */
+    private volatile long compressedBytes = 0;
+
+    /**
+     * Number of flush calls on this stream.
+     */
+    private volatile long flushCount = 0;
+
+    /**
+     * Nanoseconds spent inside the deflater.
+     */
+    private volatile long deflateNanos = 0;
+
     /**
      * Create a new ZLib compatible output stream wrapping the given low level
      * stream. ZLib compatiblity means we will send a zlib header. 
@@ -89,29 +109,79 @@ public class ZLibOutputStream extends DeflaterOutputStream {
         super(os, new Deflater(Deflater.BEST_COMPRESSION));
     }
 
+    /**
+     * Write a block of uncompressed data, counting the raw bytes.
+     * @param buffer byte[] The data buffer.
+     * @param off int The start offset within the buffer.
+     * @param nbytes int The number of bytes to write.
+     * @throws IOException In case of a lowlevel exception.
+     */
+    @Override
+    public void write(byte[] buffer, int off, int nbytes) throws IOException {
+        rawBytes += nbytes;
+        super.write(buffer, off, nbytes);
+    }
+
+    /**
+     * Run the deflater once, counting the time spent in zlib and the
+     * compressed output.
+     * @throws IOException In case of a lowlevel exception.
+     */
+    @Override
+    protected void deflate() throws IOException {
+        long start = System.nanoTime();
+        int count = def.deflate(buf, 0, buf.length);
+        deflateNanos += System.nanoTime() - start;
+        if (count > 0) {
+            compressedBytes += count;
+            out.write(buf, 0, count);
+        }
+    }
+
     /**
      * Flush the given stream, preferring Java7 FLUSH_SYNC if available.
      * @throws IOException In case of a lowlevel exception.
      */
     @Override
     public void flush() throws IOException {
+        flushCount++;
         if (!SUPPORTED) {
             super.flush();
             return;
         }
         int count = 0;
+        long start;
         if (!def.needsInput()) {
             do {
+                start = System.nanoTime();
                 count = def.deflate(buf, 0, buf.length);
+                deflateNanos += System.nanoTime() - start;
+                compressedBytes += count;
                 out.write(buf, 0, count);
             } while (count > 0);
             out.flush();
         }
+        do {
+            start = System.nanoTime();
+            count = syncFlush(def, buf);
+            deflateNanos += System.nanoTime() - start;
+            compressedBytes += count;
+            out.write(buf, 0, count);
+        } while (count > 0);
+        super.flush();
+    }
+
+    /**
+     * Run a SYNC_FLUSH deflate call, which is only available through
+     * reflection. Must only be called if {@link #SUPPORTED} is true.
+     * @param deflater Deflater The deflater to flush.
+     * @param buffer byte[] The output buffer.
+     * @return int The number of bytes written to the buffer.
+     * @throws IOException If the flush fails.
+     */
+    static int syncFlush(Deflater deflater, byte[] buffer) throws IOException {
         try {
-            do {
-                count = (Integer) method.invoke(def, buf, 0, buf.length, 2);
-                out.write(buf, 0, count);
-            } while (count > 0);
+            return (Integer) method.invoke(deflater, buffer, 0, buffer.length, 2);
         } catch (IllegalArgumentException e) {
             throw new IOException("Can't flush");
         } catch (IllegalAccessException e) {
@@ -119,7 +189,39 @@ public class ZLibOutputStream extends DeflaterOutputStream {
         } catch (InvocationTargetException e) {
             throw new IOException("Can't flush");
         }
-        super.flush();
     }
 
-}
\ No newline at end of file
+    /**
+     * Retrieve the number of uncompressed bytes written to this stream.
+     * @return long The number of raw bytes.
+     */
+    public long getRawBytes() {
+        return rawBytes;
+    }
+
+    /**
+     * Retrieve the number of compressed bytes written to the underlying
+     * stream.
+     * @return long The number of compressed bytes.
+     */
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    /**
+     * Retrieve the number of flushes on this stream.
+     * @return long The number of flush calls.
+     */
+    public long getFlushCount() {
+        return flushCount;
+    }
+
+    /**
+     * Retrieve the time spent inside the deflater.
+     * @return long The deflate time in nanoseconds.
+     */
+    public long getDeflateNanos() {
+        return deflateNanos;
+    }
+
+}
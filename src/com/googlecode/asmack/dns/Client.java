@@ -21,6 +21,11 @@ import com.googlecode.asmack.dns.Record.TYPE;
  */
 public class Client {
 
+    /**
+     * The shared random instance, seeded on first use.
+     */
+    private static Random sharedRandom;
+
     /**
      * The internal random class for sequence generation.
      */
@@ -30,11 +35,24 @@ public class Client {
      * Create a new DNS client.
      */
     public Client() {
-        try {
-            random = SecureRandom.getInstance("SHA1PRNG");
-        } catch (NoSuchAlgorithmException e1) {
-            random = new SecureRandom();
+        random = getSharedRandom();
+    }
+
+    /**
+     * Retrieve the shared SHA1PRNG instance, creating and seeding it on
+     * first use. Seeding is expensive, so this is shared by all clients.
+     * @return The shared random instance.
+     */
+    public static synchronized Random getSharedRandom() {
+        if (sharedRandom == null) {
+            try {
+                sharedRandom = SecureRandom.getInstance("SHA1PRNG");
+            } catch (NoSuchAlgorithmException e1) {
+                sharedRandom = new SecureRandom();
+            }
+            sharedRandom.nextInt();
         }
+        return sharedRandom;
     }
 
     /**
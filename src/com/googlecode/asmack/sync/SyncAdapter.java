@@ -49,13 +49,11 @@ import org.w3c.dom.NodeList;
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.AbstractThreadedSyncAdapter;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SyncResult;
 import android.os.Bundle;
@@ -66,6 +64,9 @@ import android.util.Log;
 
 import com.googlecode.asmack.Attribute;
 import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XMLUtils;
+import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.IIqCallback;
 import com.googlecode.asmack.connection.IXmppTransportService;
 import com.googlecode.asmack.connection.XmppTransportService;
 import com.googlecode.asmack.contacts.ContactDataMapper;
@@ -84,6 +85,11 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
      */
     private static final String TAG = SyncAdapter.class.getSimpleName();
 
+    /**
+     * The roster request timeout in milliseconds.
+     */
+    private static final long ROSTER_TIMEOUT = 300 * 1000;
+
     /**
      * The application context used during sync.
      */
@@ -131,9 +137,23 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         SyncResult syncResult
     ) {
         Log.d(TAG, "Start Roster Sync");
-        final ArrayBlockingQueue<Node> rosterQueue = new ArrayBlockingQueue<Node>(1);
-        BroadcastReceiver receiver = new RosterResultReceiver(account, rosterQueue);
-        applicationContext.registerReceiver(receiver, new IntentFilter(XmppTransportService.XMPP_STANZA_INTENT));
+        final ArrayBlockingQueue<Stanza> rosterQueue =
+            new ArrayBlockingQueue<Stanza>(1);
+        IIqCallback callback = new IIqCallback.Stub() {
+
+            @Override
+            public void onResponse(Stanza response) {
+                rosterQueue.offer(response);
+            }
+
+            @Override
+            public void onFailure(String id, String reason) {
+                Log.w(TAG, "Roster request " + id + " failed: " + reason);
+                // an empty stanza without type wakes up the sync
+                rosterQueue.offer(new Stanza("iq", "", null, "", null));
+            }
+
+        };
         try {
             bindService();
             if (!waitForService()) {
@@ -143,19 +163,33 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
                 return;
             }
             Stanza stanza = getRosterRequest(account);
-            if (!sendWithRetry(stanza)) {
+            if (!sendWithRetry(stanza, callback)) {
                 syncResult.stats.numIoExceptions++;
                 return;
             }
-            Node roster = rosterQueue.poll(300, TimeUnit.SECONDS);
+            // the service answers or fails the request after the timeout
+            Stanza response = rosterQueue.poll(
+                ROSTER_TIMEOUT + 10000,
+                TimeUnit.MILLISECONDS
+            );
+            if (response == null ||
+                !"result".equals(response.getAttributeValue("type"))) {
+                return;
+            }
+            Node roster = XMLUtils.getFirstChild(
+                response.getDocumentNode(),
+                "jabber:iq:roster",
+                "query"
+            );
             if (roster == null) {
                 return;
             }
             handleRosterResult(account, roster, provider);
+        } catch (XmppMalformedException e) {
+            Log.w(TAG, "PLEASE REPORT", e);
         } catch (InterruptedException e) {
             Log.e(TAG, "Sync interrupted", e);
         } finally {
-            applicationContext.unregisterReceiver(receiver);
             unbindService();
         }
     }
@@ -244,10 +278,8 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
      * @return A roster iq stanza.
      */
     private Stanza getRosterRequest(final Account account) {
-        long syncCount = getAndIncrementSyncCount(account);
         List<Attribute> attributes = new ArrayList<Attribute>(3);
         attributes.add(new Attribute("type", null, "get"));
-        attributes.add(new Attribute("id", null, "rostersync-" + Long.toHexString(syncCount)));
         Stanza stanza = new Stanza("iq", "", account.name,
             "<iq><query xmlns='jabber:iq:roster'/></iq>", attributes);
         String fullJid = null;
@@ -261,22 +293,23 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
     }
 
     /**
-     * <p>Try to send a stanza, up to 2 times.</p>
+     * <p>Try to send an iq request, up to 2 times.</p>
      * <p><i>Note:</i> The guarantees of "send" are quite weak. The best
      * description is this: success means that the stanza has been written
      * to the network buffer of the gsm modem.</p>
-     * @param stanza The stanza to send.
+     * @param stanza The iq request to send.
+     * @param callback The receiver of the reply.
      * @return True on success, false otherwise.
      */
-    private boolean sendWithRetry(Stanza stanza) {
+    private boolean sendWithRetry(Stanza stanza, IIqCallback callback) {
         try {
-            if (!service.send(stanza)) {
+            if (service.sendIq(stanza, ROSTER_TIMEOUT, callback) == null) {
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException e) {
                     /* non-critical */
                 }
-                if (!service.send(stanza)) {
+                if (service.sendIq(stanza, ROSTER_TIMEOUT, callback) == null) {
                     return false;
                 }
             }